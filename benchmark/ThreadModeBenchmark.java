@@ -0,0 +1,116 @@
+package benchmark;
+
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Compares the platform-thread and virtual-thread modes of <code>Skeleton</code>.
+
+ <p>
+ The remote method sleeps for a fixed time, standing in for a call to a slow
+ downstream service. A number of client threads call it in a loop through a
+ shared stub for a fixed duration, once with a skeleton using platform
+ threads and once with a skeleton using virtual threads. For each mode, the
+ benchmark prints the call throughput, the mean call latency and the peak
+ number of live platform threads in the process.
+
+ <p>
+ Arguments, all optional: number of concurrent clients (default 200),
+ duration of each run in seconds (default 5), time spent in the remote method
+ in milliseconds (default 20). The virtual-thread run is skipped on runtimes
+ older than Java 21.
+ */
+public class ThreadModeBenchmark {
+
+    /** Remote interface used by the benchmark. */
+    public interface Work {
+        public void work() throws RMIException;
+    }
+
+    /** Server which blocks for a fixed time on every call. */
+    private static class SleepingWork implements Work {
+        private final long latency;
+
+        private SleepingWork(long latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public void work() {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long duration = (args.length > 1 ? Long.parseLong(args[1]) : 5) * 1000;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+        System.out.println(clients + " clients, " + duration / 1000 + " s per run, " + latency
+                + " ms per call");
+        run("platform", false, clients, duration, latency);
+        run("virtual", true, clients, duration, latency);
+    }
+
+    private static void run(String mode, boolean virtual, int clients, long duration, long latency)
+            throws Exception {
+        Skeleton<Work> skeleton = new Skeleton<>(Work.class, new SleepingWork(latency));
+        try {
+            skeleton.setVirtualThreads(virtual);
+        } catch (UnsupportedOperationException e) {
+            System.out.println(mode + ": skipped, " + e.getMessage());
+            return;
+        }
+        skeleton.start();
+
+        final Work stub = Stub.create(Work.class, skeleton);
+        final long deadline = System.currentTimeMillis() + duration;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        Thread[] clientThreads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            clientThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < deadline) {
+                        long start = System.nanoTime();
+                        try {
+                            stub.work();
+                        } catch (RMIException e) {
+                            failures.incrementAndGet();
+                            continue;
+                        }
+                        totalNanos.addAndGet(System.nanoTime() - start);
+                        calls.incrementAndGet();
+                    }
+                }
+            });
+            clientThreads[i].start();
+        }
+        for (Thread clientThread : clientThreads) {
+            clientThread.join();
+        }
+        int peakThreads = threads.getPeakThreadCount();
+        skeleton.stop();
+
+        long completed = calls.get();
+        System.out.printf("%s: %d calls, %.0f calls/s, mean latency %.2f ms, %d failures, "
+                        + "peak platform threads %d%n", mode, completed, completed * 1000.0 / duration,
+                completed == 0 ? 0.0 : totalNanos.get() / 1e6 / completed, failures.get(), peakThreads);
+    }
+}
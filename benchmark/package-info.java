@@ -0,0 +1,10 @@
+/** Benchmarks.
+
+    <p>
+    Benchmarks are not part of the main project code. Each benchmark is a
+    program which starts skeletons and stubs in the same process, drives them
+    under load, and prints its measurements. They are run with the
+    <code>benchmark</code> target of the Makefile, or individually with
+    <code>java benchmark.&lt;Name&gt; [arguments]</code>.
+ */
+package benchmark;
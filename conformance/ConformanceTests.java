@@ -29,6 +29,7 @@ public class ConformanceTests
                          conformance.rmi.ReturnTest.class,
                          conformance.rmi.ExceptionTest.class,
                          conformance.rmi.CompleteCallTest.class,
+                         conformance.rmi.KeepAliveTest.class,
                          conformance.rmi.ImplicitStubCallTest.class,
                          conformance.rmi.NullTest.class,
                          conformance.rmi.RemoteInterfaceTest.class,
@@ -46,7 +47,24 @@ public class ConformanceTests
                          conformance.rmi.InheritanceTest.class,
                          conformance.rmi.SubclassTest.class,
                          conformance.rmi.SecurityTest.class,
-                         conformance.rmi.ThreadTest.class};
+                         conformance.rmi.ThreadTest.class,
+                         conformance.rmi.ThreadPoolTest.class,
+                         conformance.rmi.MultiplexTest.class,
+                         conformance.rmi.PipelineTest.class,
+                         conformance.rmi.AsyncTest.class,
+                         conformance.rmi.BatchTest.class,
+                         conformance.rmi.CodecTest.class,
+                         conformance.rmi.PrimitiveTest.class,
+                         conformance.rmi.CompressionTest.class,
+                         conformance.rmi.BulkTest.class,
+                         conformance.rmi.StreamTest.class,
+                         conformance.rmi.UploadTest.class,
+                         conformance.rmi.NonBlockingTest.class,
+                         conformance.rmi.ConnectionPoolTest.class,
+                         conformance.rmi.GeneratedStubTest.class,
+                         conformance.rmi.CompiledStubTest.class,
+                         conformance.rmi.ExportTest.class,
+                         conformance.rmi.ExportAddressTest.class};
 
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
@@ -0,0 +1,219 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/** Tests asynchronous stubs.
+
+    <p>
+    The test starts many calls from a single thread before waiting for any of
+    them, and checks their results. It then starts a call which blocks in the
+    server until a second call, started afterwards from the same thread,
+    releases it, which requires neither call to hold up the thread that made
+    it. Finally, it checks that remote exceptions complete futures
+    exceptionally, wrapped in <code>RMIException</code> when the remote method
+    does not declare them, and that a call to an unreachable skeleton fails
+    the same way.
+ */
+public class AsyncTest extends BasicTestBase<AsyncTest.AsyncTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {MultiplexTest.class, ExceptionTest.class};
+
+    /** Number of calls started before the first result is awaited. */
+    private static final int    CALLS = 100;
+
+    private boolean             released = false;
+    private boolean             cancel = false;
+
+    private AsyncStub<AsyncTestInterface>   async;
+
+    public AsyncTest()
+    {
+        super(AsyncTestInterface.class);
+        setServer(new AsyncTestServer());
+    }
+
+    /** Creates the asynchronous stub after the skeleton has been started. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        async = Stub.createAsync(AsyncTestInterface.class,
+                                 skeleton.getAddress());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("starting " + CALLS + " calls from one thread");
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Integer>[]    results = new CompletableFuture[CALLS];
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            final int           value = call;
+            results[call] = async.call(s -> s.add(value, 1));
+        }
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            if(result(results[call]) != call + 1)
+                throw new TestFailed("remote method returned incorrect result");
+        }
+
+        task("releasing a pending call with a later call");
+
+        CompletableFuture<Void> blocked = async.run(s -> s.await());
+        CompletableFuture<Void> release = async.run(s -> s.release());
+
+        result(release);
+        result(blocked);
+
+        task("checking remote exceptions");
+
+        expectFailure(async.run(s -> s.throwDeclared()),
+                      FileNotFoundException.class);
+        expectFailure(async.run(s -> s.throwUndeclared()),
+                      RMIException.class);
+
+        task("calling a skeleton that is not running");
+
+        AsyncStub<AsyncTestInterface>   unreachable =
+            Stub.createAsync(AsyncTestInterface.class,
+                             new InetSocketAddress("127.0.0.1",
+                                                   TestConstants.PORT + 1));
+
+        expectFailure(unreachable.call(s -> s.add(1, 1)), RMIException.class);
+
+        task();
+    }
+
+    /** Wakes any call waiting to be released and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        synchronized(this)
+        {
+            cancel = true;
+            notifyAll();
+        }
+
+        super.clean();
+    }
+
+    /** Waits for a call to complete successfully.
+
+        @throws TestFailed If the call fails.
+     */
+    private <R> R result(CompletableFuture<R> future) throws TestFailed
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("asynchronous call failed", t);
+        }
+    }
+
+    /** Checks that a call fails with the given exception.
+
+        @throws TestFailed If the call succeeds, or fails differently.
+     */
+    private void expectFailure(CompletableFuture<?> future, Class<?> expected)
+        throws TestFailed
+    {
+        try
+        {
+            future.get();
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() == null ||
+               e.getCause().getClass() != expected)
+            {
+                throw new TestFailed("asynchronous call failed with " +
+                                     "unexpected exception", e.getCause());
+            }
+
+            return;
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+
+        throw new TestFailed("asynchronous call expected to fail succeeded");
+    }
+
+    /** Remote interface used by the test. */
+    public interface AsyncTestInterface
+    {
+        public int add(int first, int second) throws RMIException;
+        public void await() throws RMIException;
+        public void release() throws RMIException;
+        public void throwDeclared()
+            throws RMIException, FileNotFoundException;
+        public void throwUndeclared() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class AsyncTestServer implements AsyncTestInterface
+    {
+        @Override
+        public int add(int first, int second)
+        {
+            return first + second;
+        }
+
+        @Override
+        public void await()
+        {
+            synchronized(AsyncTest.this)
+            {
+                while(!released && !cancel)
+                {
+                    try
+                    {
+                        AsyncTest.this.wait();
+                    }
+                    catch(InterruptedException e) { }
+                }
+            }
+        }
+
+        @Override
+        public void release()
+        {
+            synchronized(AsyncTest.this)
+            {
+                released = true;
+                AsyncTest.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void throwDeclared() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("declared");
+        }
+
+        @Override
+        public void throwUndeclared()
+        {
+            throw new IllegalStateException("undeclared");
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/** Tests batches of calls.
+
+    <p>
+    The test records many calls in a batch, including calls that fail in the
+    server, and checks that executing the batch serves them in order and
+    completes the future of every call with its own outcome. It then checks
+    that the batch can be reused once executed, and that a batch sent to an
+    unreachable skeleton fails as a whole.
+ */
+public class BatchTest extends BasicTestBase<BatchTest.BatchTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking batches of calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {AsyncTest.class, ExceptionTest.class};
+
+    /** Number of calls recorded in the batch. */
+    private static final int    CALLS = 1000;
+
+    /** Values received by the server, in order. */
+    private final List<Integer> history = new ArrayList<>();
+
+    public BatchTest()
+    {
+        super(BatchTestInterface.class);
+        setServer(new BatchTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("executing a batch of " + CALLS + " calls");
+
+        Batch<BatchTestInterface>   batch = Stub.batch(stub);
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Integer>[]    results = new CompletableFuture[CALLS];
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            final int           value = call;
+            results[call] = batch.call(s -> s.append(value));
+        }
+
+        CompletableFuture<Void> declared = batch.run(s -> s.throwDeclared());
+        CompletableFuture<Void> undeclared =
+            batch.run(s -> s.throwUndeclared());
+        CompletableFuture<Integer>  last = batch.call(s -> s.append(CALLS));
+
+        if(batch.size() != CALLS + 3)
+            throw new TestFailed("batch has incorrect size");
+
+        execute(batch);
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            if(result(results[call]) != call)
+                throw new TestFailed("call returned incorrect result");
+        }
+
+        expectFailure(declared, FileNotFoundException.class);
+        expectFailure(undeclared, RMIException.class);
+
+        if(result(last) != CALLS)
+            throw new TestFailed("call after failures returned incorrect result");
+
+        synchronized(history)
+        {
+            for(int call = 0; call <= CALLS; ++call)
+            {
+                if(history.get(call) != call)
+                    throw new TestFailed("calls served out of order");
+            }
+        }
+
+        task("reusing the batch");
+
+        if(batch.size() != 0)
+            throw new TestFailed("batch not empty after execution");
+
+        CompletableFuture<Integer>  again = batch.call(s -> s.append(-1));
+        execute(batch);
+
+        if(result(again) != -1)
+            throw new TestFailed("reused batch returned incorrect result");
+
+        task("executing a batch for a skeleton that is not running");
+
+        BatchTestInterface          unreachable =
+            Stub.create(BatchTestInterface.class,
+                        new InetSocketAddress("127.0.0.1",
+                                              TestConstants.PORT + 1));
+        Batch<BatchTestInterface>   failing = Stub.batch(unreachable);
+        CompletableFuture<Integer>  lost = failing.call(s -> s.append(0));
+
+        try
+        {
+            failing.execute();
+            throw new TestFailed("batch executed without a skeleton");
+        }
+        catch(RMIException e) { }
+
+        expectFailure(lost, RMIException.class);
+
+        task();
+    }
+
+    /** Executes a batch, which is expected to succeed.
+
+        @throws TestFailed If the batch cannot be executed.
+     */
+    private void execute(Batch<BatchTestInterface> batch) throws TestFailed
+    {
+        try
+        {
+            batch.execute();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to execute batch", t);
+        }
+    }
+
+    /** Returns the result of a call, which is expected to have succeeded.
+
+        @throws TestFailed If the call is not complete, or has failed.
+     */
+    private <R> R result(CompletableFuture<R> future) throws TestFailed
+    {
+        if(!future.isDone())
+            throw new TestFailed("call not complete after batch execution");
+
+        try
+        {
+            return future.get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call in batch failed", t);
+        }
+    }
+
+    /** Checks that a call has failed with the given exception.
+
+        @throws TestFailed If the call has succeeded, or failed differently.
+     */
+    private void expectFailure(CompletableFuture<?> future, Class<?> expected)
+        throws TestFailed
+    {
+        try
+        {
+            future.getNow(null);
+        }
+        catch(Exception e)
+        {
+            Throwable   cause = e.getCause();
+
+            if(cause == null || cause.getClass() != expected)
+            {
+                throw new TestFailed("call failed with unexpected exception",
+                                     cause);
+            }
+
+            return;
+        }
+
+        throw new TestFailed("call expected to fail succeeded");
+    }
+
+    /** Remote interface used by the test. */
+    public interface BatchTestInterface
+    {
+        public int append(int value) throws RMIException;
+        public void throwDeclared()
+            throws RMIException, FileNotFoundException;
+        public void throwUndeclared() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class BatchTestServer implements BatchTestInterface
+    {
+        @Override
+        public int append(int value)
+        {
+            synchronized(history)
+            {
+                history.add(value);
+            }
+
+            return value;
+        }
+
+        @Override
+        public void throwDeclared() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("declared");
+        }
+
+        @Override
+        public void throwUndeclared()
+        {
+            throw new IllegalStateException("undeclared");
+        }
+    }
+}
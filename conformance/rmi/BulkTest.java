@@ -0,0 +1,248 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Tests the transfer of bulk data.
+
+    <p>
+    The test passes and returns byte arrays, buffers and file contents of
+    several sizes, including <code>null</code> and empty ones. It checks that
+    they arrive intact, that buffers are received as direct buffers without
+    the position of the buffer sent being moved, and that file contents are
+    received into new files which hold the bytes of the file sent. It checks
+    that the file received as an argument is deleted once the call is
+    complete, and that the file received as a result is deleted when its
+    content is closed. One of the files is larger than the maximum frame
+    size, which does not apply to bulk data.
+ */
+public class BulkTest extends BasicTestBase<BulkTest.BulkTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking bulk data transfer";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {ArgumentTest.class, ReturnTest.class};
+
+    /** Size of the large values sent. */
+    private static final int    LARGE = 1024 * 1024 + 3;
+    /** Number of large arrays making up the file larger than a frame. */
+    private static final int    HUGE = 65;
+
+    /** Files created by the server, deleted when the test ends. */
+    private final List<Path>    serverFiles = new ArrayList<>();
+    /** File received by the server as the argument of the last call. */
+    private Path                argument;
+
+    public BulkTest()
+    {
+        super(BulkTestInterface.class);
+        setServer(new BulkTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("passing and returning byte arrays");
+
+            if(stub.echo((byte[])null) != null)
+                throw new TestFailed("null array altered in transit");
+
+            if(stub.echo(new byte[0]).length != 0)
+                throw new TestFailed("empty array altered in transit");
+
+            byte[]              bytes = pattern(LARGE);
+
+            if(!Arrays.equals(stub.echo(bytes), bytes))
+                throw new TestFailed("large array altered in transit");
+
+            task("passing and returning buffers");
+
+            if(stub.echo((ByteBuffer)null) != null)
+                throw new TestFailed("null buffer altered in transit");
+
+            ByteBuffer          heap = ByteBuffer.wrap(bytes, 3, 1000);
+            ByteBuffer          received = stub.echo(heap);
+
+            if(heap.position() != 3 || !received.isDirect() ||
+               !received.equals(heap))
+            {
+                throw new TestFailed("heap buffer altered in transit");
+            }
+
+            ByteBuffer          direct = ByteBuffer.allocateDirect(LARGE);
+            direct.put(bytes).flip();
+
+            if(!stub.echo(direct).equals(direct) || direct.position() != 0)
+                throw new TestFailed("direct buffer altered in transit");
+
+            if(!stub.isDirect(heap))
+                throw new TestFailed("buffer not received as direct buffer");
+
+            task("passing and returning file contents");
+
+            if(stub.echo((FileContent)null) != null)
+                throw new TestFailed("null file content altered in transit");
+
+            expectFile(new byte[0], 1);
+            expectFile(bytes, 1);
+
+            task("passing and returning a file larger than a frame");
+
+            expectFile(bytes, HUGE);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Deletes the files created by the server and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        synchronized(serverFiles)
+        {
+            for(Path file : serverFiles)
+            {
+                try
+                {
+                    Files.deleteIfExists(file);
+                }
+                catch(IOException e) { }
+            }
+        }
+
+        super.clean();
+    }
+
+    /** Sends a file holding the given bytes repeated the given number of
+        times, and checks the file returned.
+
+        @throws TestFailed If the file returned differs from the file sent.
+     */
+    private void expectFile(byte[] bytes, int repeat) throws Throwable
+    {
+        Path                    sent =
+            Files.createTempFile("bulk-test", null);
+        Path                    received = null;
+
+        try
+        {
+            for(int index = 0; index < repeat; ++index)
+                Files.write(sent, bytes, StandardOpenOption.APPEND);
+
+            FileContent         content = stub.echo(new FileContent(sent));
+            received = content.getPath();
+
+            if(received.equals(sent) || Files.mismatch(received, sent) != -1)
+            {
+                throw new TestFailed("file content altered in transit");
+            }
+
+            synchronized(serverFiles)
+            {
+                if(argument == null || Files.exists(argument))
+                {
+                    throw new TestFailed("file received as argument not " +
+                                         "deleted after the call");
+                }
+            }
+
+            content.close();
+
+            if(Files.exists(received))
+            {
+                throw new TestFailed("file received as result not deleted " +
+                                     "when closed");
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(sent);
+
+            if(received != null)
+                Files.deleteIfExists(received);
+        }
+    }
+
+    /** Returns an array of the given length with varying contents. */
+    private static byte[] pattern(int length)
+    {
+        byte[]                  bytes = new byte[length];
+
+        for(int index = 0; index < length; ++index)
+            bytes[index] = (byte)(index * 31);
+
+        return bytes;
+    }
+
+    /** Remote interface used by the test. */
+    public interface BulkTestInterface
+    {
+        public byte[] echo(byte[] bytes) throws RMIException;
+        public ByteBuffer echo(ByteBuffer buffer) throws RMIException;
+        public boolean isDirect(ByteBuffer buffer) throws RMIException;
+        public FileContent echo(FileContent content)
+            throws RMIException, IOException;
+    }
+
+    /** Server for the test. */
+    private class BulkTestServer implements BulkTestInterface
+    {
+        @Override
+        public byte[] echo(byte[] bytes)
+        {
+            return bytes;
+        }
+
+        @Override
+        public ByteBuffer echo(ByteBuffer buffer)
+        {
+            return buffer;
+        }
+
+        @Override
+        public boolean isDirect(ByteBuffer buffer)
+        {
+            return buffer.isDirect();
+        }
+
+        /** Returns the content received in a file of its own, leaving the
+            file received to the skeleton. */
+        @Override
+        public FileContent echo(FileContent content) throws IOException
+        {
+            if(content == null)
+                return null;
+
+            Path                copy = Files.createTempFile("bulk-test", null);
+            Files.copy(content.getPath(), copy,
+                       StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized(serverFiles)
+            {
+                serverFiles.add(copy);
+                argument = content.getPath();
+            }
+
+            return new FileContent(copy);
+        }
+    }
+}
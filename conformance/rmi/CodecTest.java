@@ -0,0 +1,205 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests pluggable codecs.
+
+    <p>
+    The test registers a codec which marks every message it encodes, so that
+    a message it did not encode cannot be decoded with it, and counts the
+    messages. It checks that calls through a stub using the codec succeed and
+    are encoded with it in both directions, including calls returning
+    exceptions. It then restricts the skeleton to Java serialization, and
+    checks that the stub falls back to it after a single rejected request.
+    Finally, it checks that invalid and conflicting codec identifiers are
+    refused.
+ */
+public class CodecTest extends BasicTestBase<CodecTest.CodecTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking pluggable codecs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {CallTest.class, ExceptionTest.class};
+
+    /** Identifier of the codec used by the test. */
+    private static final int    CODEC_ID = 42;
+    /** Marker written at the start of every message encoded by the codec. */
+    private static final int    MARKER = 0x5a;
+
+    private final MarkingCodec  codec = new MarkingCodec();
+
+    public CodecTest()
+    {
+        super(CodecTestInterface.class);
+        setServer(new CodecTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling through a stub using a custom codec");
+
+        CodecTestInterface      encoded = Stub.withCodec(stub, codec);
+
+        expectEcho(encoded, "custom");
+
+        // The request may be encoded twice, if it is repeated over a new
+        // connection, but each message is decoded once.
+        if(codec.encoded.get() < 2 || codec.decoded.get() != 2)
+            throw new TestFailed("codec not used in both directions");
+
+        try
+        {
+            encoded.fail();
+            throw new TestFailed("exception not received through codec");
+        }
+        catch(FileNotFoundException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception through codec", t);
+        }
+
+        task("checking that stubs with different codecs are equal");
+
+        if(!encoded.equals(stub) || encoded.hashCode() != stub.hashCode())
+            throw new TestFailed("stub with codec not equal to plain stub");
+
+        task("falling back to Java serialization");
+
+        skeleton.setCodecs();
+        codec.encoded.set(0);
+        codec.decoded.set(0);
+
+        CodecTestInterface      fallback = Stub.withCodec(stub, codec);
+
+        expectEcho(fallback, "first");
+
+        int                     attempts = codec.encoded.get();
+
+        expectEcho(fallback, "second");
+
+        if(attempts == 0 || codec.encoded.get() != attempts ||
+           codec.decoded.get() != 0)
+        {
+            throw new TestFailed("stub did not fall back after its codec " +
+                                 "was rejected");
+        }
+
+        skeleton.setCodecs((Codec[])null);
+
+        task("registering invalid codecs");
+
+        expectRejected(new MarkingCodec(0));
+        expectRejected(new MarkingCodec(256));
+        expectRejected(new MarkingCodec(CODEC_ID));
+
+        task();
+    }
+
+    /** Checks that a call through the given stub returns its argument.
+
+        @throws TestFailed If the call fails or returns another value.
+     */
+    private void expectEcho(CodecTestInterface stub, String value)
+        throws TestFailed
+    {
+        try
+        {
+            if(!value.equals(stub.echo(value)))
+                throw new TestFailed("call returned incorrect result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call through codec failed", t);
+        }
+    }
+
+    /** Checks that registering the given codec fails.
+
+        @throws TestFailed If the codec is registered.
+     */
+    private void expectRejected(Codec codec) throws TestFailed
+    {
+        try
+        {
+            Codecs.register(codec);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return;
+        }
+
+        throw new TestFailed("codec with identifier " + codec.getId() +
+                             " registered");
+    }
+
+    /** Codec marking and counting the messages it encodes and decodes. */
+    private static class MarkingCodec implements Codec
+    {
+        private final int               id;
+        private final AtomicInteger     encoded = new AtomicInteger();
+        private final AtomicInteger     decoded = new AtomicInteger();
+
+        MarkingCodec()
+        {
+            this(CODEC_ID);
+        }
+
+        MarkingCodec(int id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public int getId()
+        {
+            return id;
+        }
+
+        @Override
+        public ObjectOutput newOutput(OutputStream out) throws IOException
+        {
+            encoded.incrementAndGet();
+            out.write(MARKER);
+            return new ObjectOutputStream(out);
+        }
+
+        @Override
+        public ObjectInput newInput(InputStream in) throws IOException
+        {
+            decoded.incrementAndGet();
+            if(in.read() != MARKER)
+                throw new StreamCorruptedException("message not marked");
+            return new ObjectInputStream(in);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface CodecTestInterface
+    {
+        public String echo(String value) throws RMIException;
+        public void fail() throws RMIException, FileNotFoundException;
+    }
+
+    /** Server for the test. */
+    private class CodecTestServer implements CodecTestInterface
+    {
+        @Override
+        public String echo(String value)
+        {
+            return value;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("declared");
+        }
+    }
+}
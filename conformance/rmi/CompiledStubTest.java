@@ -0,0 +1,250 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Tests the stubs and dispatchers generated at build time.
+
+    <p>
+    The remote interface of the test is marked with <code>Remote</code>, so
+    that the annotation processor generates its stub class and dispatcher
+    when the tests are compiled. The test checks that the stub is an instance
+    of the generated stub class, and that the server is called from the
+    generated dispatcher. It calls methods taking and returning primitive
+    values, which are passed as raw bits rather than boxed, arrays, variable
+    arguments, generic types and nothing, including methods inherited from a
+    generic interface, and checks that exceptions are thrown as by proxies
+    and that the stub survives serialization.
+ */
+public class CompiledStubTest
+    extends BasicTestBase<CompiledStubTest.CompiledStubTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking stubs and dispatchers generated at build time";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {GeneratedStubTest.class};
+
+    /** Name of the generated stub class. */
+    private static final String STUB_CLASS =
+        "conformance.rmi.CompiledStubTest_CompiledStubTestInterface_Stub";
+    /** Name of the generated dispatcher. */
+    private static final String DISPATCHER_CLASS =
+        "conformance.rmi.CompiledStubTest_CompiledStubTestInterface_Dispatcher";
+
+    /** Set when a call reaches the server other than through the dispatcher. */
+    private volatile boolean    undispatched = false;
+
+    public CompiledStubTest()
+    {
+        super(CompiledStubTestInterface.class);
+        setServer(new CompiledStubTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(!stub.getClass().getName().equals(STUB_CLASS))
+        {
+            throw new TestFailed("stub is not of the generated class: " +
+                                 stub.getClass().getName());
+        }
+
+        try
+        {
+            task("calling methods of a generated stub");
+
+            if(stub.add(2, 3L) != 5L ||
+               stub.add(-1, Long.MIN_VALUE + 1) != Long.MIN_VALUE ||
+               stub.scale(1.5f, true, (char)2) != -3.0 ||
+               !Double.isNaN(stub.scale(Float.NaN, false, '\0')))
+            {
+                throw new TestFailed("numbers altered in transit");
+            }
+
+            if(stub.sum(1, 2, 3) != 6 || stub.sum() != 0)
+                throw new TestFailed("variable arguments altered in transit");
+
+            if(!Arrays.equals(stub.reverse(new byte[] {1, 2, 3}),
+                              new byte[] {3, 2, 1}))
+            {
+                throw new TestFailed("array altered in transit");
+            }
+
+            List<String>        words = stub.words("a b");
+
+            if(!words.equals(Arrays.asList("a", "b")))
+                throw new TestFailed("list altered in transit");
+
+            stub.put("stored");
+            if(!stub.get().equals("stored"))
+                throw new TestFailed("inherited methods not carried out");
+
+            task("throwing exceptions from a generated stub");
+
+            try
+            {
+                stub.fail();
+                throw new TestFailed("declared exception not thrown");
+            }
+            catch(IOException e) { }
+
+            task("serializing a generated stub");
+
+            CompiledStubTestInterface   copy = copy(stub);
+
+            if(!copy.getClass().getName().equals(STUB_CLASS) ||
+               !copy.equals(stub) || copy.add(1, 1L) != 2L)
+            {
+                throw new TestFailed("serialized stub altered");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        if(undispatched)
+            throw new TestFailed("server not called through the dispatcher");
+
+        task();
+    }
+
+    /** Serializes and deserializes an object. */
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T object)
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream output = new ObjectOutputStream(bytes))
+        {
+            output.writeObject(object);
+        }
+
+        try(ObjectInputStream input =
+                new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            return (T)input.readObject();
+        }
+    }
+
+    /** Generic interface inherited by the remote interface. */
+    public interface Store<T>
+    {
+        public void put(T value) throws RMIException;
+        public T get() throws RMIException;
+    }
+
+    /** Remote interface used by the test. */
+    @Remote
+    public interface CompiledStubTestInterface extends Store<String>
+    {
+        public long add(int first, long second) throws RMIException;
+        public double scale(float value, boolean negate, char factor)
+            throws RMIException;
+        public int sum(int... values) throws RMIException;
+        public byte[] reverse(byte[] bytes) throws RMIException;
+        public List<String> words(String text) throws RMIException;
+        public void fail() throws RMIException, IOException;
+    }
+
+    /** Server for the test. */
+    private class CompiledStubTestServer implements CompiledStubTestInterface
+    {
+        private String          value;
+
+        /** Records whether the server is called from the dispatcher. */
+        private void check()
+        {
+            for(StackTraceElement frame : new Throwable().getStackTrace())
+            {
+                if(frame.getClassName().equals(DISPATCHER_CLASS))
+                    return;
+            }
+
+            undispatched = true;
+        }
+
+        @Override
+        public long add(int first, long second)
+        {
+            check();
+            return first + second;
+        }
+
+        @Override
+        public double scale(float value, boolean negate, char factor)
+        {
+            check();
+            return (negate ? -value : value) * factor;
+        }
+
+        @Override
+        public int sum(int... values)
+        {
+            check();
+
+            int                 sum = 0;
+
+            for(int value : values)
+                sum += value;
+
+            return sum;
+        }
+
+        @Override
+        public byte[] reverse(byte[] bytes)
+        {
+            check();
+
+            byte[]              reversed = new byte[bytes.length];
+
+            for(int index = 0; index < bytes.length; ++index)
+                reversed[index] = bytes[bytes.length - 1 - index];
+
+            return reversed;
+        }
+
+        @Override
+        public List<String> words(String text)
+        {
+            check();
+            return new ArrayList<>(Arrays.asList(text.split(" ")));
+        }
+
+        @Override
+        public synchronized void put(String value)
+        {
+            check();
+            this.value = value;
+        }
+
+        @Override
+        public synchronized String get()
+        {
+            check();
+            return value;
+        }
+
+        @Override
+        public void fail() throws IOException
+        {
+            check();
+            throw new IOException("failing as requested");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/** Tests the compression of large messages.
+
+    <p>
+    The test enables compression in the skeleton and in a stub, and checks
+    that large and small arguments and results come back intact, including
+    over a multiplexed stub and in a batch. It checks that a stub without
+    compression still receives compressed responses, and that negative
+    thresholds are refused.
+ */
+public class CompressionTest
+    extends BasicTestBase<CompressionTest.CompressionTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking message compression";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {CallTest.class, MultiplexTest.class, BatchTest.class};
+
+    /** Size in bytes above which messages are compressed. */
+    private static final int    THRESHOLD = 1024;
+
+    public CompressionTest()
+    {
+        super(CompressionTestInterface.class);
+        setServer(new CompressionTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        skeleton.setCompressionThreshold(THRESHOLD);
+
+        CompressionTestInterface    compressing =
+            Stub.withCompression(stub, THRESHOLD);
+
+        task("calling through a stub compressing its requests");
+
+        expectEcho(compressing, "small");
+        expectEcho(compressing, text(100000));
+        expectEcho(Stub.multiplex(compressing), text(50000));
+
+        try
+        {
+            List<String>        repeated = compressing.repeat("item", 10000);
+
+            if(repeated.size() != 10000 ||
+               !repeated.get(9999).equals("item9999"))
+                throw new TestFailed("compressed list altered in transit");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("calling a batch of large calls");
+
+        Batch<CompressionTestInterface> batch = Stub.batch(compressing);
+        final String                    large = text(20000);
+        CompletableFuture<String>       first = batch.call(s -> s.echo(large));
+        CompletableFuture<String>       second = batch.call(s -> s.echo("b"));
+
+        try
+        {
+            batch.execute();
+
+            if(!first.get().equals(large) || !second.get().equals("b"))
+                throw new TestFailed("batch returned incorrect results");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to execute batch", t);
+        }
+
+        task("receiving compressed responses without compressing requests");
+
+        expectEcho(stub, text(100000));
+
+        task("setting a negative threshold");
+
+        try
+        {
+            Stub.withCompression(stub, -1);
+            throw new TestFailed("stub accepted negative threshold");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            skeleton.setCompressionThreshold(-1);
+            throw new TestFailed("skeleton accepted negative threshold");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task();
+    }
+
+    /** Returns a compressible string of the given length. */
+    private static String text(int length)
+    {
+        StringBuilder           builder = new StringBuilder(length);
+
+        for(int index = 0; index < length; ++index)
+            builder.append((char)('a' + index % 7));
+
+        return builder.toString();
+    }
+
+    /** Checks that a string comes back unchanged from the server.
+
+        @throws TestFailed If the call fails or the string is altered.
+     */
+    private void expectEcho(CompressionTestInterface stub, String value)
+        throws TestFailed
+    {
+        try
+        {
+            if(!value.equals(stub.echo(value)))
+                throw new TestFailed("string altered in transit");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface CompressionTestInterface
+    {
+        public String echo(String value) throws RMIException;
+        public List<String> repeat(String value, int count)
+            throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class CompressionTestServer implements CompressionTestInterface
+    {
+        @Override
+        public String echo(String value)
+        {
+            return value;
+        }
+
+        @Override
+        public List<String> repeat(String value, int count)
+        {
+            List<String>        result = new ArrayList<>();
+
+            for(int index = 0; index < count; ++index)
+                result.add(value + index);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/** Tests that stubs share pooled connections.
+
+    <p>
+    The skeleton is given a pool with a single thread and no queue, so that
+    it rejects - and reports - any connection opened while another one is
+    open. The test first makes sequential calls through many equal stubs,
+    which succeeds only if the stubs share a single connection. It then limits
+    the shared pool to one connection per address, and checks that calls made
+    concurrently from several threads, each through its own stub, wait for
+    that connection rather than opening others.
+ */
+public class ConnectionPoolTest
+    extends BasicTestBase<ConnectionPoolTest.ConnectionPoolTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking connection pool shared by stubs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = {KeepAliveTest.class};
+
+    /** Number of stubs and of concurrent clients. */
+    private static final int    CLIENTS = 8;
+    /** Number of calls made by each client. */
+    private static final int    CALLS = 20;
+
+    /** Number of clients which have completed all their calls. */
+    private int                 completed = 0;
+
+    public ConnectionPoolTest()
+    {
+        super(ConnectionPoolTestInterface.class);
+        setServer(new ConnectionPoolTestServer());
+    }
+
+    /** Configures the thread pool after the skeleton has been created. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        task("configuring skeleton thread pool");
+
+        try
+        {
+            skeleton.setThreadPool(1, 1, 0,
+                                   new ThreadPoolExecutor.AbortPolicy());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to configure thread pool", t);
+        }
+
+        task();
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling remote method through " + CLIENTS + " equal stubs");
+
+        for(int index = 0; index < CLIENTS; ++index)
+        {
+            ConnectionPoolTestInterface client_stub =
+                Stub.create(remote_interface, skeleton.getAddress());
+
+            try
+            {
+                if(client_stub.echo(index) != index)
+                    throw new TestFailed("remote method returned incorrect result");
+            }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("remote method call threw an exception",
+                                     t);
+            }
+        }
+
+        task("calling remote method concurrently over a single connection");
+
+        Stub.setConnectionPool(0, 1, 30 * 1000, 0);
+
+        for(int client = 0; client < CLIENTS; ++client)
+            new Thread(new Client()).start();
+
+        synchronized(this)
+        {
+            while(completed < CLIENTS)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        task();
+    }
+
+    /** Restores the default limits of the pool and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        Stub.setConnectionPool(0, Integer.MAX_VALUE, 30 * 1000, 0);
+
+        super.clean();
+    }
+
+    /** Client making calls through its own stub. */
+    private class Client implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            ConnectionPoolTestInterface client_stub =
+                Stub.create(remote_interface, skeleton.getAddress());
+
+            try
+            {
+                for(int call = 0; call < CALLS; ++call)
+                {
+                    if(client_stub.echo(call) != call)
+                    {
+                        failure(new TestFailed("remote method returned " +
+                                               "incorrect result"));
+                        return;
+                    }
+                }
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("remote method call threw an " +
+                                       "exception", t));
+                return;
+            }
+
+            synchronized(ConnectionPoolTest.this)
+            {
+                ++completed;
+                ConnectionPoolTest.this.notifyAll();
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface ConnectionPoolTestInterface
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class ConnectionPoolTestServer
+        implements ConnectionPoolTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/** Tests the address of stubs returned for remote objects.
+
+    <p>
+    The skeleton of the test is bound to the wildcard address, as a server
+    reachable on all interfaces would be. Stubs returned for remote objects
+    are sent to other hosts, on which the wildcard address would designate
+    the host itself, so the test checks that they carry the address of the
+    local host instead, and that they can be called.
+ */
+public class ExportAddressTest
+    extends BasicTestBase<ExportAddressTest.ExportAddressTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the address of stubs returned by a wildcard skeleton";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = {ExportTest.class};
+
+    public ExportAddressTest()
+    {
+        super(ExportAddressTestInterface.class);
+        setServer(new ExportAddressTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("checking that the skeleton is bound to the wildcard " +
+                 "address");
+
+            if(!skeleton.getAddress().getAddress().isAnyLocalAddress())
+                throw new TestFailed("skeleton not bound to wildcard address");
+
+            task("returning the server object");
+
+            InetSocketAddress   local =
+                new InetSocketAddress(InetAddress.getLocalHost()
+                                          .getHostAddress(),
+                                      TestConstants.PORT);
+            ExportAddressTestInterface  self = stub.self();
+
+            if(!self.equals(Stub.create(ExportAddressTestInterface.class,
+                                        local)))
+            {
+                throw new TestFailed("returned stub does not carry the " +
+                                     "address of the local host");
+            }
+
+            task("returning another remote object");
+
+            ExportAddressTestInterface  other = stub.other();
+            String                      wildcard =
+                skeleton.getAddress().getAddress().toString();
+
+            if(other.toString().contains(wildcard) ||
+               !other.toString().contains(local.getAddress().toString()))
+            {
+                throw new TestFailed("returned stub does not carry the " +
+                                     "address of the local host");
+            }
+
+            if(other.self() == null)
+                throw new TestFailed("returned stub cannot be called");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Remote interface returning remote objects. */
+    public interface ExportAddressTestInterface
+    {
+        public ExportAddressTestInterface self() throws RMIException;
+        public ExportAddressTestInterface other() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private static class ExportAddressTestServer
+        implements ExportAddressTestInterface
+    {
+        @Override
+        public ExportAddressTestInterface self()
+        {
+            return this;
+        }
+
+        @Override
+        public ExportAddressTestInterface other()
+        {
+            return new ExportAddressTestServer();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/** Tests the export of remote objects returned by calls.
+
+    <p>
+    The server of the test returns remote objects through methods whose return
+    type is a remote interface. The test checks that calls through the stubs
+    returned reach the right objects, that an object returned twice is given
+    the same stub, that the server returning itself is given a stub equal to
+    a stub for the skeleton, and that <code>null</code> is returned as it
+    is. It checks that a stub for an unexported object can no longer be used,
+    and that the object is exported anew when returned again. It then stops
+    the skeleton and checks that the returned stubs can no longer be used,
+    since their objects are served by the skeleton rather than by skeletons
+    of their own, and were unexported when it stopped.
+ */
+public class ExportTest extends BasicTestBase<ExportTest.ExportTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking remote objects returned by calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = {ReturnTest.class};
+
+    /** Object returned by every call to <code>shared</code>. */
+    private final CounterServer shared = new CounterServer();
+
+    public ExportTest()
+    {
+        super(ExportTestInterface.class);
+        setServer(new ExportTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Counter                 first;
+        Counter                 second;
+
+        try
+        {
+            task("calling remote objects returned by calls");
+
+            first = stub.counter();
+            second = stub.counter();
+
+            if(first == null || second == null)
+                throw new TestFailed("no stub returned for remote object");
+
+            if(first.increment() != 1 || first.increment() != 2 ||
+               second.increment() != 1)
+            {
+                throw new TestFailed("calls reached the wrong remote object");
+            }
+
+            if(first.equals(second))
+                throw new TestFailed("stubs for different objects are equal");
+
+            task("returning the same remote object twice");
+
+            Counter             counter = stub.shared();
+
+            counter.increment();
+
+            if(!counter.equals(stub.shared()) ||
+               counter.hashCode() != stub.shared().hashCode() ||
+               stub.shared().increment() != 2)
+            {
+                throw new TestFailed("object returned twice given different " +
+                                     "stubs");
+            }
+
+            task("returning the server object");
+
+            // The skeleton is bound to the wildcard address, so stubs it
+            // returns carry the address of the local host.
+            InetSocketAddress   local =
+                new InetSocketAddress(InetAddress.getLocalHost()
+                                          .getHostAddress(),
+                                      TestConstants.PORT);
+
+            if(!stub.self().equals(Stub.create(ExportTestInterface.class,
+                                               local)))
+            {
+                throw new TestFailed("server object given a different stub");
+            }
+
+            task("returning null as a remote object");
+
+            if(stub.none() != null)
+                throw new TestFailed("null returned as a stub");
+
+            task("unexporting a returned object");
+
+            if(!skeleton.unexport(shared) || skeleton.unexport(shared))
+                throw new TestFailed("object not unexported once");
+
+            try
+            {
+                counter.increment();
+                throw new TestFailed("unexported object still served");
+            }
+            catch(RMIException e) { }
+
+            Counter             exported = stub.shared();
+
+            if(exported.equals(counter) || exported.increment() != 3)
+            {
+                throw new TestFailed("unexported object not exported " +
+                                     "anew");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("calling a returned stub after stopping the skeleton");
+
+        skeleton.stop();
+        skeleton.join();
+        started = false;
+
+        try
+        {
+            first.increment();
+            throw new TestFailed("returned stub served after its skeleton " +
+                                 "stopped");
+        }
+        catch(RMIException e) { }
+
+        task();
+    }
+
+    /** Remote interface returning remote objects. */
+    public interface ExportTestInterface
+    {
+        public Counter counter() throws RMIException;
+        public Counter shared() throws RMIException;
+        public ExportTestInterface self() throws RMIException;
+        public Counter none() throws RMIException;
+    }
+
+    /** Remote interface of the objects returned. */
+    public interface Counter
+    {
+        public int increment() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class ExportTestServer implements ExportTestInterface
+    {
+        @Override
+        public Counter counter()
+        {
+            return new CounterServer();
+        }
+
+        @Override
+        public Counter shared()
+        {
+            return shared;
+        }
+
+        @Override
+        public ExportTestInterface self()
+        {
+            return this;
+        }
+
+        @Override
+        public Counter none()
+        {
+            return null;
+        }
+    }
+
+    /** Remote object returned by the server. */
+    private static class CounterServer implements Counter
+    {
+        private int             count = 0;
+
+        @Override
+        public synchronized int increment()
+        {
+            return ++count;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/** Tests stubs of classes generated at runtime.
+
+    <p>
+    The test enables generated stubs, and checks that the stub created is not
+    a proxy. It calls methods taking and returning every primitive type,
+    with negative and extreme values, arrays and nothing, and checks that declared and undeclared exceptions
+    are thrown as by proxies. It checks that generated stubs and proxies for
+    the same interface and address are equal, that a generated stub survives
+    serialization and can be derived into a multiplexed stub, and that an
+    interface which is not public is still given a proxy.
+ */
+public class GeneratedStubTest
+    extends BasicTestBase<GeneratedStubTest.GeneratedStubTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking generated stub classes";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {PrimitiveTest.class, ExceptionTest.class, EqualsTest.class,
+         MultiplexTest.class};
+
+    public GeneratedStubTest()
+    {
+        super(GeneratedStubTestInterface.class);
+        setServer(new GeneratedStubTestServer());
+    }
+
+    /** Enables generated stubs before the stub is created. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Stub.setGeneratedStubs(true);
+        super.initialize();
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(Proxy.isProxyClass(stub.getClass()))
+            throw new TestFailed("stub is a proxy");
+
+        try
+        {
+            task("calling methods of a generated stub");
+
+            if(stub.combine(1, 2L, 0.5, 0.25f) != 3.75 ||
+               stub.combine(-1, Long.MIN_VALUE + 1, 0.0, -0.5f) !=
+                   Long.MIN_VALUE - 0.5 ||
+               !Double.isNaN(stub.combine(0, 0L, Double.NaN, 0.0f)))
+            {
+                throw new TestFailed("numbers altered in transit");
+            }
+
+            if(stub.shift('a', (byte)1, (short)2, true) != 'd' ||
+               stub.shift('d', (byte)1, (short)2, false) != 'a' ||
+               stub.shift('\0', (byte)-1, (short)0, true) !=
+                   Character.MAX_VALUE)
+            {
+                throw new TestFailed("characters altered in transit");
+            }
+
+            if(!Arrays.equals(stub.split("a b c"),
+                              new String[] {"a", "b", "c"}))
+            {
+                throw new TestFailed("array altered in transit");
+            }
+
+            stub.record("recorded");
+            if(!stub.last().equals("recorded"))
+                throw new TestFailed("void call not carried out");
+
+            task("throwing exceptions from a generated stub");
+
+            try
+            {
+                stub.fail(true);
+                throw new TestFailed("declared exception not thrown");
+            }
+            catch(IOException e) { }
+
+            try
+            {
+                stub.fail(false);
+                throw new TestFailed("undeclared exception not thrown");
+            }
+            catch(RMIException e)
+            {
+                if(!(e.getCause() instanceof IllegalStateException))
+                {
+                    throw new TestFailed("undeclared exception not wrapped",
+                                         e);
+                }
+            }
+
+            task("comparing a generated stub with a proxy");
+
+            InetSocketAddress   address =
+                new InetSocketAddress(TestConstants.PORT);
+
+            Stub.setGeneratedStubs(false);
+            GeneratedStubTestInterface  proxy =
+                Stub.create(GeneratedStubTestInterface.class, address);
+            Stub.setGeneratedStubs(true);
+
+            if(!Proxy.isProxyClass(proxy.getClass()))
+                throw new TestFailed("disabling generated stubs had no effect");
+
+            if(!stub.equals(proxy) || !proxy.equals(stub) ||
+               stub.hashCode() != proxy.hashCode() ||
+               !stub.toString().equals(proxy.toString()))
+            {
+                throw new TestFailed("generated stub and proxy differ");
+            }
+
+            task("serializing a generated stub");
+
+            GeneratedStubTestInterface  copy = copy(stub);
+
+            if(!copy.equals(stub) || copy.combine(1, 1L, 1.0, 1.0f) != 4.0)
+                throw new TestFailed("serialized stub altered");
+
+            task("deriving a multiplexed stub");
+
+            GeneratedStubTestInterface  multiplexed = Stub.multiplex(stub);
+
+            if(Proxy.isProxyClass(multiplexed.getClass()))
+                throw new TestFailed("multiplexed stub is a proxy");
+
+            if(multiplexed.combine(2, 2L, 0.0, 0.0f) != 4.0)
+                throw new TestFailed("multiplexed call altered");
+
+            task("creating a stub for an interface which is not public");
+
+            if(!Proxy.isProxyClass(Stub.create(HiddenInterface.class,
+                                               address).getClass()))
+            {
+                throw new TestFailed("stub for hidden interface generated");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Disables generated stubs again. */
+    @Override
+    protected void clean()
+    {
+        Stub.setGeneratedStubs(false);
+        super.clean();
+    }
+
+    /** Serializes and deserializes an object. */
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T object)
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream output = new ObjectOutputStream(bytes))
+        {
+            output.writeObject(object);
+        }
+
+        try(ObjectInputStream input =
+                new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            return (T)input.readObject();
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface GeneratedStubTestInterface
+    {
+        public double combine(int i, long l, double d, float f)
+            throws RMIException;
+        public char shift(char c, byte b, short s, boolean up)
+            throws RMIException;
+        public String[] split(String text) throws RMIException;
+        public void record(String value) throws RMIException;
+        public String last() throws RMIException;
+        public void fail(boolean declared) throws RMIException, IOException;
+    }
+
+    /** Remote interface which is not public. */
+    private interface HiddenInterface
+    {
+        public void call() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class GeneratedStubTestServer
+        implements GeneratedStubTestInterface
+    {
+        private String          last;
+
+        @Override
+        public double combine(int i, long l, double d, float f)
+        {
+            return i + l + d + f;
+        }
+
+        @Override
+        public char shift(char c, byte b, short s, boolean up)
+        {
+            return (char)(up ? c + b + s : c - b - s);
+        }
+
+        @Override
+        public String[] split(String text)
+        {
+            return text.split(" ");
+        }
+
+        @Override
+        public synchronized void record(String value)
+        {
+            last = value;
+        }
+
+        @Override
+        public synchronized String last()
+        {
+            return last;
+        }
+
+        @Override
+        public void fail(boolean declared) throws IOException
+        {
+            if(declared)
+                throw new IOException("failing as requested");
+
+            throw new IllegalStateException("failing as requested");
+        }
+    }
+}
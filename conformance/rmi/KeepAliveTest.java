@@ -0,0 +1,108 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+
+/** Tests that stubs and skeletons keep connections open between calls.
+
+    <p>
+    The test performs several calls over the same stub and checks that a
+    mutable argument sent in one call is not confused with the same object sent
+    again in a later call. It then checks that calls still succeed after the
+    skeleton has closed idle connections, and when keep-alive is disabled.
+ */
+public class KeepAliveTest
+    extends BasicTestBase<KeepAliveTest.KeepAliveTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking connection reuse between calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Idle timeout given to the skeleton, in milliseconds. */
+    private static final int    IDLE_TIMEOUT = 200;
+
+    public KeepAliveTest()
+    {
+        super(KeepAliveTestInterface.class);
+        setServer(new KeepAliveTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling remote method repeatedly with a mutated argument");
+
+        int[]       argument = new int[1];
+
+        for(int call = 0; call < 10; ++call)
+        {
+            argument[0] = call;
+            checkCall(argument, call);
+        }
+
+        task("calling remote method after the idle timeout has expired");
+
+        skeleton.setIdleTimeout(IDLE_TIMEOUT);
+        checkCall(argument, argument[0]);
+
+        try
+        {
+            Thread.sleep(2 * IDLE_TIMEOUT);
+        }
+        catch(InterruptedException e) { }
+
+        checkCall(argument, argument[0]);
+
+        task("calling remote method with keep-alive disabled");
+
+        skeleton.setKeepAlive(false);
+
+        for(int call = 0; call < 3; ++call)
+            checkCall(argument, argument[0]);
+
+        task();
+    }
+
+    /** Calls the remote method and checks its result.
+
+        @throws TestFailed If the call fails or returns an incorrect result.
+     */
+    private void checkCall(int[] argument, int expected) throws TestFailed
+    {
+        int     result;
+
+        try
+        {
+            result = stub.first(argument);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("remote method call threw an exception", t);
+        }
+
+        if(result != expected)
+        {
+            throw new TestFailed("remote method returned " + result +
+                                 " instead of " + expected);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface KeepAliveTestInterface
+    {
+        public int first(int[] values) throws RMIException;
+    }
+
+    /** Server returning the first element of its argument. */
+    private static class KeepAliveTestServer implements KeepAliveTestInterface
+    {
+        @Override
+        public int first(int[] values)
+        {
+            return values[0];
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/** Tests multiplexed stubs.
+
+    <p>
+    The skeleton is given a pool with a single thread, so that it can serve
+    only one connection at a time. The test then arranges a rendezvous between
+    two calls made concurrently through the same multiplexed stub. This
+    succeeds only if both calls share one connection and are served
+    concurrently, and if the response to the second call is delivered while
+    the first call is still in progress. Finally, many threads make calls
+    through the multiplexed stub at the same time, and the test checks that
+    each call receives its own result. The checks are repeated with the
+    non-blocking transport, and the test finally checks that a stub whose
+    connection has been released opens a new one when called.
+ */
+public class MultiplexTest
+    extends BasicTestBase<MultiplexTest.MultiplexTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking multiplexed stubs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {ThreadTest.class, KeepAliveTest.class};
+
+    /** Number of threads calling concurrently. */
+    private static final int    CLIENTS = 16;
+    /** Number of calls made by each thread. */
+    private static final int    CALLS = 50;
+
+    private boolean             wake;
+    private boolean             sleeping;
+    private boolean             cancel = false;
+    /** Number of threads which have completed all their calls. */
+    private int                 completed;
+
+    private MultiplexTestInterface  multiplexed;
+
+    public MultiplexTest()
+    {
+        super(MultiplexTestInterface.class);
+        setServer(new MultiplexTestServer());
+    }
+
+    /** Configures a single-thread pool after the skeleton has been created. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        task("configuring skeleton thread pool");
+
+        try
+        {
+            skeleton.setThreadPool(1, 1, 0,
+                                   new ThreadPoolExecutor.AbortPolicy());
+            multiplexed = Stub.multiplex(stub);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to configure test", t);
+        }
+
+        task();
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkMultiplexing();
+
+        task("restarting skeleton with the non-blocking transport");
+
+        try
+        {
+            skeleton.stop();
+            skeleton.setExecutor(null);
+            skeleton.setNonBlocking(true);
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to restart skeleton", t);
+        }
+
+        checkMultiplexing();
+
+        task("calling a multiplexed stub after releasing its connection");
+
+        try
+        {
+            Stub.close(multiplexed);
+
+            if(multiplexed.echo(1) != 1)
+                throw new TestFailed("remote method returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call multiplexed stub after " +
+                                 "releasing its connection", t);
+        }
+
+        task();
+    }
+
+    /** Wakes any thread waiting for the rendezvous and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        synchronized(this)
+        {
+            cancel = true;
+            notifyAll();
+        }
+
+        super.clean();
+    }
+
+    /** Arranges the rendezvous and the concurrent calls. */
+    private void checkMultiplexing() throws TestFailed
+    {
+        task("arranging rendezvous over a multiplexed stub");
+
+        synchronized(this)
+        {
+            wake = false;
+            sleeping = true;
+            completed = 0;
+        }
+
+        new Thread(new SecondThread()).start();
+
+        try
+        {
+            multiplexed.rendezvous();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to rendezvous in the first thread", t);
+        }
+
+        task("calling multiplexed stub from " + CLIENTS + " threads");
+
+        for(int client = 0; client < CLIENTS; ++client)
+            new Thread(new Client(client * CALLS)).start();
+
+        synchronized(this)
+        {
+            while(completed < CLIENTS)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+
+    /** Second party of the rendezvous. */
+    private class SecondThread implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                multiplexed.rendezvous();
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to rendezvous in second " +
+                                       "thread", t));
+            }
+        }
+    }
+
+    /** Thread making calls through the multiplexed stub. */
+    private class Client implements Runnable
+    {
+        private final int   first;
+
+        Client(int first)
+        {
+            this.first = first;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                for(int value = first; value < first + CALLS; ++value)
+                {
+                    if(multiplexed.echo(value) != value)
+                    {
+                        failure(new TestFailed("remote method returned " +
+                                               "result of another call"));
+                        return;
+                    }
+                }
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("remote method call threw an " +
+                                       "exception", t));
+                return;
+            }
+
+            synchronized(MultiplexTest.this)
+            {
+                ++completed;
+                MultiplexTest.this.notifyAll();
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface MultiplexTestInterface
+    {
+        public int echo(int value) throws RMIException;
+        public void rendezvous() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class MultiplexTestServer implements MultiplexTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public void rendezvous()
+        {
+            synchronized(MultiplexTest.this)
+            {
+                if(!wake)
+                {
+                    wake = true;
+
+                    while(sleeping && !cancel)
+                    {
+                        try
+                        {
+                            MultiplexTest.this.wait();
+                        }
+                        catch(InterruptedException e) { }
+                    }
+                }
+                else
+                {
+                    sleeping = false;
+                    MultiplexTest.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.net.InetSocketAddress;
+
+/** Tests the non-blocking transport of the skeleton.
+
+    <p>
+    The test opens many kept-alive connections, one per multiplexed stub -
+    ordinary stubs would share pooled connections - and checks that each of
+    them can still be used after all have been opened. It then checks
+    that calls arriving on different connections are served concurrently, by
+    arranging a rendezvous between two calls in the server.
+ */
+public class NonBlockingTest
+    extends BasicTestBase<NonBlockingTest.NonBlockingTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking non-blocking skeleton transport";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {KeepAliveTest.class, MultiplexTest.class};
+
+    /** Number of connections opened by the test. */
+    private static final int    CONNECTIONS = 100;
+
+    private boolean             wake = false;
+    private boolean             sleeping = true;
+    private boolean             cancel = false;
+
+    public NonBlockingTest()
+    {
+        super(NonBlockingTestInterface.class);
+        setServer(new NonBlockingTestServer());
+    }
+
+    /** Creates and starts a skeleton using the non-blocking transport. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        InetSocketAddress       address =
+            new InetSocketAddress(TestConstants.PORT);
+
+        task("creating skeleton");
+
+        try
+        {
+            skeleton = new TestSkeleton<NonBlockingTestInterface>(
+                                    remote_interface, server, address, this);
+            skeleton.setNonBlocking(true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create skeleton", t);
+        }
+
+        task("creating stub");
+
+        try
+        {
+            stub = Stub.create(remote_interface, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        task("starting skeleton");
+
+        try
+        {
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task();
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("opening " + CONNECTIONS + " kept-alive connections");
+
+        NonBlockingTestInterface[]  stubs =
+            new NonBlockingTestInterface[CONNECTIONS];
+
+        for(int index = 0; index < CONNECTIONS; ++index)
+        {
+            stubs[index] = Stub.multiplex(
+                Stub.create(remote_interface, skeleton.getAddress()));
+            checkCall(stubs[index], index);
+        }
+
+        task("calling remote method again over every connection");
+
+        for(int index = 0; index < CONNECTIONS; ++index)
+            checkCall(stubs[index], CONNECTIONS + index);
+
+        task("arranging thread rendezvous in the server");
+
+        new Thread(new SecondThread()).start();
+
+        try
+        {
+            stub.rendezvous();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to rendezvous in the first thread", t);
+        }
+
+        task();
+    }
+
+    /** Wakes any thread waiting for the rendezvous and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        synchronized(this)
+        {
+            cancel = true;
+            notifyAll();
+        }
+
+        super.clean();
+    }
+
+    /** Calls the echo method and checks its result.
+
+        @throws TestFailed If the call fails or returns an incorrect result.
+     */
+    private void checkCall(NonBlockingTestInterface client_stub, int value)
+        throws TestFailed
+    {
+        try
+        {
+            if(client_stub.echo(value) != value)
+                throw new TestFailed("remote method returned incorrect result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("remote method call threw an exception", t);
+        }
+    }
+
+    /** Second party of the rendezvous. */
+    private class SecondThread implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                stub.rendezvous();
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to rendezvous in second " +
+                                       "thread", t));
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface NonBlockingTestInterface
+    {
+        public int echo(int value) throws RMIException;
+        public void rendezvous() throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class NonBlockingTestServer implements NonBlockingTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public void rendezvous()
+        {
+            synchronized(NonBlockingTest.this)
+            {
+                if(!wake)
+                {
+                    wake = true;
+
+                    while(sleeping && !cancel)
+                    {
+                        try
+                        {
+                            NonBlockingTest.this.wait();
+                        }
+                        catch(InterruptedException e) { }
+                    }
+                }
+                else
+                {
+                    sleeping = false;
+                    NonBlockingTest.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/** Tests pipelined stubs.
+
+    <p>
+    The skeleton is given a pool with a single thread, so that it can serve
+    only one connection at a time. Many threads then make calls through the
+    same pipelined stub, so that requests are written while earlier ones are
+    still being served. The test checks that each call receives its own
+    result, and that the server never serves two calls at the same time,
+    which would mean that requests were not served in order. The checks are
+    repeated with the non-blocking transport.
+ */
+public class PipelineTest
+    extends BasicTestBase<PipelineTest.PipelineTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking pipelined stubs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = {KeepAliveTest.class};
+
+    /** Number of threads calling concurrently. */
+    private static final int    CLIENTS = 16;
+    /** Number of calls made by each thread. */
+    private static final int    CALLS = 50;
+
+    /** Number of threads which have completed all their calls. */
+    private int                 completed;
+    /** Number of calls being served. */
+    private int                 active = 0;
+
+    private PipelineTestInterface   pipelined;
+
+    public PipelineTest()
+    {
+        super(PipelineTestInterface.class);
+        setServer(new PipelineTestServer());
+    }
+
+    /** Configures a single-thread pool after the skeleton has been created. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        task("configuring skeleton thread pool");
+
+        try
+        {
+            skeleton.setThreadPool(1, 1, 0,
+                                   new ThreadPoolExecutor.AbortPolicy());
+            pipelined = Stub.pipeline(stub);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to configure test", t);
+        }
+
+        task();
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkPipelining();
+
+        task("restarting skeleton with the non-blocking transport");
+
+        try
+        {
+            skeleton.stop();
+            skeleton.setExecutor(null);
+            skeleton.setNonBlocking(true);
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to restart skeleton", t);
+        }
+
+        checkPipelining();
+
+        task();
+    }
+
+    /** Makes concurrent calls through the pipelined stub. */
+    private void checkPipelining() throws TestFailed
+    {
+        task("calling pipelined stub from " + CLIENTS + " threads");
+
+        synchronized(this)
+        {
+            completed = 0;
+        }
+
+        for(int client = 0; client < CLIENTS; ++client)
+            new Thread(new Client(client * CALLS)).start();
+
+        synchronized(this)
+        {
+            while(completed < CLIENTS)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+
+    /** Thread making calls through the pipelined stub. */
+    private class Client implements Runnable
+    {
+        private final int   first;
+
+        Client(int first)
+        {
+            this.first = first;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                for(int value = first; value < first + CALLS; ++value)
+                {
+                    if(pipelined.echo(value) != value)
+                    {
+                        failure(new TestFailed("remote method returned " +
+                                               "result of another call"));
+                        return;
+                    }
+                }
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("remote method call threw an " +
+                                       "exception", t));
+                return;
+            }
+
+            synchronized(PipelineTest.this)
+            {
+                ++completed;
+                PipelineTest.this.notifyAll();
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface PipelineTestInterface
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server returning its argument, checking that calls do not overlap. */
+    private class PipelineTestServer implements PipelineTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            synchronized(PipelineTest.this)
+            {
+                if(++active > 1)
+                {
+                    failure(new TestFailed("pipelined calls served " +
+                                           "concurrently"));
+                }
+            }
+
+            Thread.yield();
+
+            synchronized(PipelineTest.this)
+            {
+                --active;
+            }
+
+            return value;
+        }
+    }
+}
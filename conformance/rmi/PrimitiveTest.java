@@ -0,0 +1,160 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.concurrent.CompletableFuture;
+
+/** Tests the encoding of primitive arguments and results.
+
+    <p>
+    The test calls remote methods taking and returning each primitive type,
+    with extreme values, and a method mixing primitive and object parameters.
+    It checks that methods overloaded on primitive parameter types are told
+    apart, and that primitive results are also returned correctly in batches.
+ */
+public class PrimitiveTest
+    extends BasicTestBase<PrimitiveTest.PrimitiveTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking primitive arguments and results";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {ArgumentTest.class, ReturnTest.class, BatchTest.class};
+
+    public PrimitiveTest()
+    {
+        super(PrimitiveTestInterface.class);
+        setServer(new PrimitiveTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("passing and returning each primitive type");
+
+        try
+        {
+            if(stub.negate(true) != false ||
+               stub.negate((byte)Byte.MIN_VALUE) != Byte.MIN_VALUE ||
+               stub.negate((short)Short.MAX_VALUE) != -Short.MAX_VALUE ||
+               stub.next(Character.MAX_VALUE) != Character.MIN_VALUE ||
+               stub.negate(Integer.MIN_VALUE + 1) != Integer.MAX_VALUE ||
+               stub.negate(Long.MAX_VALUE) != -Long.MAX_VALUE ||
+               stub.negate(1.5f) != -1.5f ||
+               !Double.isNaN(stub.negate(Double.NaN)) ||
+               stub.negate(Double.MIN_VALUE) != -Double.MIN_VALUE)
+            {
+                throw new TestFailed("primitive value altered in transit");
+            }
+
+            if(!stub.describe(7, "seven", 7L, null).equals("7 seven 7 null"))
+                throw new TestFailed("mixed arguments altered in transit");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("calling a batch returning primitive values");
+
+        Batch<PrimitiveTestInterface>   batch = Stub.batch(stub);
+        CompletableFuture<Long>         first = batch.call(s -> s.negate(3L));
+        CompletableFuture<Boolean>      second =
+            batch.call(s -> s.negate(false));
+        CompletableFuture<Double>       third =
+            batch.call(s -> s.negate(2.0));
+
+        try
+        {
+            batch.execute();
+
+            if(first.get() != -3L || !second.get() || third.get() != -2.0)
+                throw new TestFailed("batch returned incorrect results");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to execute batch", t);
+        }
+
+        task();
+    }
+
+    /** Remote interface used by the test. */
+    public interface PrimitiveTestInterface
+    {
+        public boolean negate(boolean value) throws RMIException;
+        public byte negate(byte value) throws RMIException;
+        public short negate(short value) throws RMIException;
+        public char next(char value) throws RMIException;
+        public int negate(int value) throws RMIException;
+        public long negate(long value) throws RMIException;
+        public float negate(float value) throws RMIException;
+        public double negate(double value) throws RMIException;
+        public String describe(int number, String name, long wide,
+                               Object other) throws RMIException;
+    }
+
+    /** Server for the test. */
+    private class PrimitiveTestServer implements PrimitiveTestInterface
+    {
+        @Override
+        public boolean negate(boolean value)
+        {
+            return !value;
+        }
+
+        @Override
+        public byte negate(byte value)
+        {
+            return (byte)-value;
+        }
+
+        @Override
+        public short negate(short value)
+        {
+            return (short)-value;
+        }
+
+        @Override
+        public char next(char value)
+        {
+            return (char)(value + 1);
+        }
+
+        @Override
+        public int negate(int value)
+        {
+            return -value;
+        }
+
+        @Override
+        public long negate(long value)
+        {
+            return -value;
+        }
+
+        @Override
+        public float negate(float value)
+        {
+            return -value;
+        }
+
+        @Override
+        public double negate(double value)
+        {
+            return -value;
+        }
+
+        @Override
+        public String describe(int number, String name, long wide,
+                               Object other)
+        {
+            return number + " " + name + " " + wide + " " + other;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Tests results streamed in pages.
+
+    <p>
+    The test reads long results returned as iterators and streams, and checks
+    that their elements arrive in order, and that the server produces them
+    only a few pages ahead of the stub. It checks that closing a remote
+    iterator early, and reading a stream to its end, release the result in
+    the server, that the stub reopens the connection it fetches pages over
+    after it has been closed, that empty and <code>null</code> results are returned as
+    such, and that an exception thrown by the iterator of the server is
+    thrown by the remote iterator.
+ */
+public class StreamTest extends BasicTestBase<StreamTest.StreamTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed results";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {ReturnTest.class, MultiplexTest.class};
+
+    /** Number of elements of the long results. */
+    private static final int    COUNT = 10000;
+    /** Elements the server may produce ahead of the stub: a few pages. */
+    private static final int    AHEAD = 1000;
+    /** Time in milliseconds allowed for the server to release a result. */
+    private static final long   RELEASE_TIMEOUT = 5000;
+
+    /** The iterator most recently returned by the server. */
+    private volatile Range      last;
+
+    public StreamTest()
+    {
+        super(StreamTestInterface.class);
+        setServer(new StreamTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("reading a long iterator");
+
+            Iterator<Integer>   range = stub.range(COUNT, -1);
+
+            if(!range.hasNext() || range.next() != 0)
+                throw new TestFailed("first element altered in transit");
+
+            if(last.produced > AHEAD)
+                throw new TestFailed("server produced the whole result");
+
+            for(int expected = 1; expected < COUNT; ++expected)
+            {
+                if(range.next() != expected)
+                    throw new TestFailed("element altered in transit");
+            }
+
+            if(range.hasNext())
+                throw new TestFailed("iterator has extra elements");
+
+            expectNoSuchElement(range);
+            expectReleased(last);
+
+            task("closing a remote iterator early");
+
+            RemoteIterator<Integer> partial = stub.partial(COUNT);
+
+            for(int expected = 0; expected < 10; ++expected)
+            {
+                if(partial.next() != expected)
+                    throw new TestFailed("element altered in transit");
+            }
+
+            partial.close();
+
+            if(partial.hasNext())
+                throw new TestFailed("closed iterator has more elements");
+
+            expectReleased(last);
+
+            task("reading a stream");
+
+            try(Stream<Integer> stream = stub.stream(COUNT))
+            {
+                long            sum = stream.mapToLong(e -> e).sum();
+
+                if(sum != (long)COUNT * (COUNT - 1) / 2)
+                    throw new TestFailed("stream altered in transit");
+            }
+
+            expectReleased(last);
+
+            task("closing the connection of the stub between results");
+
+            Stub.close(stub);
+
+            Iterator<Integer>   reopened = stub.range(COUNT, -1);
+
+            for(int expected = 0; expected < COUNT; ++expected)
+            {
+                if(reopened.next() != expected)
+                    throw new TestFailed("element altered in transit");
+            }
+
+            expectReleased(last);
+
+            task("returning empty and null results");
+
+            if(stub.range(0, -1).hasNext())
+                throw new TestFailed("empty iterator has elements");
+
+            if(stub.range(-1, -1) != null)
+                throw new TestFailed("null iterator altered in transit");
+
+            task("failing in the iterator of the server");
+
+            Iterator<Integer>   failing = stub.range(COUNT, 600);
+
+            try
+            {
+                for(int element = 0; element < COUNT; ++element)
+                    failing.next();
+
+                throw new TestFailed("iterator failure not reported");
+            }
+            catch(RemoteIterationException e)
+            {
+                if(!(e.getCause() instanceof IllegalStateException))
+                {
+                    throw new TestFailed("iterator failed with unexpected " +
+                                         "exception", e);
+                }
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Checks that an exhausted iterator throws
+        <code>NoSuchElementException</code>.
+
+        @throws TestFailed If it does not.
+     */
+    private void expectNoSuchElement(Iterator<Integer> iterator)
+        throws TestFailed
+    {
+        try
+        {
+            iterator.next();
+            throw new TestFailed("exhausted iterator returned an element");
+        }
+        catch(NoSuchElementException e) { }
+    }
+
+    /** Waits for the server to release a result.
+
+        @throws TestFailed If the result is not released in time.
+     */
+    private void expectReleased(Range range) throws TestFailed
+    {
+        long                    deadline =
+            System.currentTimeMillis() + RELEASE_TIMEOUT;
+
+        synchronized(range)
+        {
+            while(!range.closed)
+            {
+                long            remaining =
+                    deadline - System.currentTimeMillis();
+
+                if(remaining <= 0)
+                    throw new TestFailed("result not released by the server");
+
+                try
+                {
+                    range.wait(remaining);
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface StreamTestInterface
+    {
+        public Iterator<Integer> range(int count, int failAt)
+            throws RMIException;
+        public RemoteIterator<Integer> partial(int count) throws RMIException;
+        public Stream<Integer> stream(int count) throws RMIException;
+    }
+
+    /** Iterator over a range of integers, produced on demand. */
+    private static class Range implements Iterator<Integer>, AutoCloseable
+    {
+        private final int       count;
+        private final int       failAt;
+        private volatile int    produced = 0;
+        private boolean         closed = false;
+
+        Range(int count, int failAt)
+        {
+            this.count = count;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return produced < count;
+        }
+
+        @Override
+        public Integer next()
+        {
+            if(produced == failAt)
+                throw new IllegalStateException("failing as requested");
+
+            return produced++;
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /** Server for the test. */
+    private class StreamTestServer implements StreamTestInterface
+    {
+        @Override
+        public Iterator<Integer> range(int count, int failAt)
+        {
+            if(count < 0)
+                return null;
+
+            last = new Range(count, failAt);
+            return last;
+        }
+
+        @Override
+        public RemoteIterator<Integer> partial(int count)
+        {
+            final Range         range = new Range(count, -1);
+            last = range;
+
+            return new RemoteIterator<Integer>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return range.hasNext();
+                }
+
+                @Override
+                public Integer next()
+                {
+                    return range.next();
+                }
+
+                @Override
+                public void close()
+                {
+                    range.close();
+                }
+            };
+        }
+
+        @Override
+        public Stream<Integer> stream(int count)
+        {
+            final Range         range = new Range(count, -1);
+            last = range;
+
+            Iterable<Integer>   iterable = () -> range;
+            return StreamSupport.stream(iterable.spliterator(), false)
+                .onClose(range::close);
+        }
+    }
+}
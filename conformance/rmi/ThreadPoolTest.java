@@ -0,0 +1,139 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/** Tests that a skeleton serves connections on a bounded thread pool.
+
+    <p>
+    The skeleton is given a pool with fewer threads than there are clients.
+    Each client makes several calls through its own stub, so that every client
+    holds a kept-alive connection. The test checks that all calls complete,
+    which requires idle connections to give up their pool threads to the
+    connections waiting for one.
+ */
+public class ThreadPoolTest
+    extends BasicTestBase<ThreadPoolTest.ThreadPoolTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking skeleton thread pool";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = {KeepAliveTest.class};
+
+    /** Number of pool threads. */
+    private static final int    POOL_SIZE = 2;
+    /** Number of concurrent clients. */
+    private static final int    CLIENTS = 6;
+    /** Number of calls made by each client. */
+    private static final int    CALLS = 20;
+
+    /** Number of clients which have completed all their calls. */
+    private int                 completed = 0;
+
+    public ThreadPoolTest()
+    {
+        super(ThreadPoolTestInterface.class);
+        setServer(new ThreadPoolTestServer());
+    }
+
+    /** Configures the thread pool after the skeleton has been created. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        task("configuring skeleton thread pool");
+
+        try
+        {
+            skeleton.setThreadPool(POOL_SIZE, POOL_SIZE, CLIENTS,
+                                   new ThreadPoolExecutor.AbortPolicy());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to configure thread pool", t);
+        }
+
+        task();
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling remote method from more clients than pool threads");
+
+        for(int client = 0; client < CLIENTS; ++client)
+            new Thread(new Client()).start();
+
+        synchronized(this)
+        {
+            while(completed < CLIENTS)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        task();
+    }
+
+    /** Client making calls through its own stub. */
+    private class Client implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            ThreadPoolTestInterface     client_stub =
+                Stub.create(ThreadPoolTestInterface.class,
+                            skeleton.getAddress());
+
+            try
+            {
+                for(int call = 0; call < CALLS; ++call)
+                {
+                    if(client_stub.echo(call) != call)
+                    {
+                        failure(new TestFailed("remote method returned " +
+                                               "incorrect result"));
+                        return;
+                    }
+                }
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("remote method call threw an " +
+                                       "exception", t));
+                return;
+            }
+
+            synchronized(ThreadPoolTest.this)
+            {
+                ++completed;
+                ThreadPoolTest.this.notifyAll();
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface ThreadPoolTestInterface
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class ThreadPoolTestServer
+        implements ThreadPoolTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+}
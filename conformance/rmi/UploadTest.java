@@ -0,0 +1,225 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.CRC32;
+
+/** Tests stream arguments.
+
+    <p>
+    The test passes streams of several megabytes to remote methods, which
+    read them as they arrive, and checks that the server reads exactly the
+    bytes of the stream, along with the other arguments of the call. It
+    checks that the stub stops reading its stream soon after the server
+    method returns without reading it to the end, that a <code>null</code>
+    stream is passed as such, and that a failure of the stream of the stub
+    is reported to the server method. It restarts the skeleton with
+    keep-alive connections disabled, and checks that a call with a stream is
+    refused before the stream is read, while one with a <code>null</code>
+    stream is still made. Finally, it restarts the skeleton with
+    the non-blocking transport and a single worker thread, which the call
+    occupies while the chunks of its stream arrive, and checks that the
+    stream is still received.
+ */
+public class UploadTest extends BasicTestBase<UploadTest.UploadTestInterface>
+{
+    /** Test notice. */
+    public static final String  notice = "checking stream arguments";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        {ArgumentTest.class, MultiplexTest.class, ExceptionTest.class};
+
+    /** Length of the streams sent, in bytes. */
+    private static final int    LENGTH = 5 * 1024 * 1024 + 17;
+    /** Bytes the stub may read ahead of the server: a few chunks. */
+    private static final int    AHEAD = 1024 * 1024;
+
+    public UploadTest()
+    {
+        super(UploadTestInterface.class);
+        setServer(new UploadTestServer());
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("sending a stream read to its end");
+
+            Generated           stream = new Generated(LENGTH, -1);
+            String              result = stub.checksum("label", stream);
+
+            if(!result.equals("label " + LENGTH + " " + stream.checksum()))
+                throw new TestFailed("stream altered in transit");
+
+            task("sending a stream the server does not read to its end");
+
+            Generated           unread = new Generated(100 * LENGTH, -1);
+
+            if(stub.first(unread) != Generated.value(0))
+                throw new TestFailed("first byte altered in transit");
+
+            if(unread.produced > AHEAD)
+                throw new TestFailed("stub sent the stream to its end");
+
+            task("sending a null stream");
+
+            if(!stub.checksum("null", null).equals("null"))
+                throw new TestFailed("null stream altered in transit");
+
+            task("sending a stream which fails");
+
+            try
+            {
+                stub.checksum("failing", new Generated(LENGTH, 100000));
+                throw new TestFailed("stream failure not reported to server");
+            }
+            catch(IOException e) { }
+
+            task("sending a stream to a skeleton without keep-alive " +
+                 "connections");
+
+            skeleton.stop();
+            skeleton.setKeepAlive(false);
+            skeleton.start();
+
+            Generated           refused = new Generated(LENGTH, -1);
+
+            try
+            {
+                stub.checksum("refused", refused);
+                throw new TestFailed("stream sent without keep-alive " +
+                                     "connections");
+            }
+            catch(RMIException e) { }
+
+            if(refused.produced != 0)
+                throw new TestFailed("stub read a stream which was refused");
+
+            if(!stub.checksum("null", null).equals("null"))
+                throw new TestFailed("null stream altered in transit");
+
+            task("sending a stream to a non-blocking skeleton with a single " +
+                 "worker");
+
+            skeleton.stop();
+            skeleton.setKeepAlive(true);
+            skeleton.setThreadPool(1, 1, 16,
+                                   new ThreadPoolExecutor.AbortPolicy());
+            skeleton.setNonBlocking(true);
+            skeleton.start();
+
+            stream = new Generated(LENGTH, -1);
+            result = stub.checksum("single", stream);
+
+            if(!result.equals("single " + LENGTH + " " + stream.checksum()))
+                throw new TestFailed("stream altered in transit");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Remote interface used by the test. */
+    public interface UploadTestInterface
+    {
+        public String checksum(String label, InputStream stream)
+            throws RMIException, IOException;
+        public int first(InputStream stream) throws RMIException, IOException;
+    }
+
+    /** Stream of generated bytes, which may fail after a number of bytes. */
+    private static class Generated extends InputStream
+    {
+        private final int       length;
+        private final int       failAt;
+        private final CRC32     crc = new CRC32();
+        private volatile int    produced = 0;
+
+        Generated(int length, int failAt)
+        {
+            this.length = length;
+            this.failAt = failAt;
+        }
+
+        /** Returns the byte at the given position of every stream. */
+        static int value(int position)
+        {
+            return (position * 31) & 0xff;
+        }
+
+        /** Returns the checksum of the bytes produced. */
+        long checksum()
+        {
+            return crc.getValue();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[]              b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(failAt >= 0 && produced >= failAt)
+                throw new IOException("failing as requested");
+
+            if(produced == length)
+                return -1;
+
+            int                 n = Math.min(len, length - produced);
+
+            for(int index = 0; index < n; ++index)
+                b[off + index] = (byte)value(produced + index);
+
+            crc.update(b, off, n);
+            produced += n;
+
+            return n;
+        }
+    }
+
+    /** Server for the test. */
+    private class UploadTestServer implements UploadTestInterface
+    {
+        @Override
+        public String checksum(String label, InputStream stream)
+            throws IOException
+        {
+            if(stream == null)
+                return label;
+
+            CRC32               crc = new CRC32();
+            byte[]              buffer = new byte[10000];
+            long                total = 0;
+            int                 n;
+
+            while((n = stream.read(buffer)) >= 0)
+            {
+                crc.update(buffer, 0, n);
+                total += n;
+            }
+
+            return label + " " + total + " " + crc.getValue();
+        }
+
+        @Override
+        public int first(InputStream stream) throws IOException
+        {
+            return stream.read();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ Asynchronous view of a remote object.
+
+ <p>
+ An asynchronous stub is created with <code>Stub.createAsync</code>. Each call
+ is given as a function applying one method of the remote interface to the
+ stub passed to it, for instance <code>async.call(s -&gt; s.add(1, 2))</code>.
+ The function is applied once, immediately, to a proxy which records the call
+ rather than performing it; the call is then sent to the skeleton, and the
+ returned future is completed when the response arrives.
+
+ <p>
+ Futures are completed by the thread reading responses from the connection,
+ so dependent actions registered without an executor run on that thread.
+ Actions that block or take long should be registered with the asynchronous
+ methods of <code>CompletableFuture</code> instead, so as not to delay the
+ responses to other calls.
+
+ <p>
+ Asynchronous stubs are serializable, and two of them are equal if they
+ implement the same interface and carry the same remote server address.
+
+ @param <T> The remote interface.
+ */
+public final class AsyncStub<T> implements Serializable {
+
+    private final Class<T> interfaceClass;
+    private final T stub;
+
+    /**
+     Creates an asynchronous view of a multiplexed stub.
+     */
+    AsyncStub(Class<T> interfaceClass, T stub) {
+        this.interfaceClass = interfaceClass;
+        this.stub = stub;
+    }
+
+    /**
+     Calls a remote method returning a result.
+
+     @param call A function calling exactly one method of the remote interface
+     on the stub given to it, and returning its result.
+     @return The future of the result. The future is completed exceptionally
+     with the exception thrown by the remote method, if the method declares it,
+     and with an <code>RMIException</code> otherwise, including when the call
+     cannot be carried out.
+     @throws NullPointerException If <code>call</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>call</code> does not call
+     exactly one remote method.
+     */
+    public <R> CompletableFuture<R> call(Call<T, R> call) {
+        if (call == null) {
+            throw new NullPointerException("Call is null");
+        }
+
+        Recorder recorder = new Recorder();
+        try {
+            call.invoke(recorder.proxy(interfaceClass));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Call threw an exception while being recorded", e);
+        }
+        return (CompletableFuture<R>) submit(recorder);
+    }
+
+    /**
+     Calls a remote method, ignoring its result if it has one.
+
+     @param call A procedure calling exactly one method of the remote interface
+     on the stub given to it.
+     @return A future completed with <code>null</code> when the call has
+     completed, or exceptionally as for <code>call</code>.
+     @throws NullPointerException If <code>call</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>call</code> does not call
+     exactly one remote method.
+     */
+    public CompletableFuture<Void> run(VoidCall<T> call) {
+        if (call == null) {
+            throw new NullPointerException("Call is null");
+        }
+
+        Recorder recorder = new Recorder();
+        try {
+            call.invoke(recorder.proxy(interfaceClass));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Call threw an exception while being recorded", e);
+        }
+        return submit(recorder).thenApply(new Function<Object, Void>() {
+            @Override
+            public Void apply(Object result) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     Releases the connection of the asynchronous stub. Calls still in progress
+     fail, and the next call opens a new connection. The connection is also
+     released once the asynchronous stub is no longer reachable.
+     */
+    public void close() {
+        Stub.close(stub);
+    }
+
+    /** Sends the single call recorded by a recorder. */
+    private CompletableFuture<Object> submit(Recorder recorder) {
+        if (recorder.size() != 1) {
+            throw new IllegalArgumentException("Expected one remote call, got " + recorder.size());
+        }
+        return Stub.invokeAsync(stub, recorder.method(0), recorder.arguments(0));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof AsyncStub && stub.equals(((AsyncStub<?>) other).stub);
+    }
+
+    @Override
+    public int hashCode() {
+        return stub.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "async " + stub;
+    }
+
+    /**
+     A call returning a result, as given to <code>AsyncStub.call</code>.
+
+     @param <T> The remote interface.
+     @param <R> The result type, boxed if the method returns a primitive value.
+     */
+    public interface Call<T, R> {
+        R invoke(T stub) throws Exception;
+    }
+
+    /**
+     A call whose result, if any, is ignored, as given to
+     <code>AsyncStub.run</code>.
+
+     @param <T> The remote interface.
+     */
+    public interface VoidCall<T> {
+        void invoke(T stub) throws Exception;
+    }
+}
@@ -0,0 +1,152 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ Batch of calls to a remote object, sent in a single round trip.
+
+ <p>
+ A batch is created with <code>Stub.batch</code>. Calls are added to it as
+ functions applying one method of the remote interface to the stub passed to
+ them, for instance <code>batch.call(s -&gt; s.add(1, 2))</code>; the call is
+ recorded, not performed, and its future is returned. <code>execute</code>
+ then sends all recorded calls to the skeleton as a single request. The
+ skeleton serves them in order, each one whether or not the previous ones
+ failed, and returns all their outcomes in a single response, which completes
+ the futures.
+
+ <p>
+ Arguments are serialized when the batch is executed, not when the calls are
+ added. Objects passed to several calls of the same batch arrive at the
+ server as a single object, as they would within a single call.
+
+ <p>
+ Batches are not thread-safe. Once executed, a batch is empty again and may be
+ reused.
+
+ @param <T> The remote interface.
+ */
+public final class Batch<T> {
+
+    private final T stub;
+    private final Recorder recorder = new Recorder();
+    private final T proxy;
+    private final List<CompletableFuture<Object>> results = new ArrayList<>();
+
+    /**
+     Creates an empty batch.
+     */
+    Batch(Class<T> interfaceClass, T stub) {
+        this.stub = stub;
+        this.proxy = recorder.proxy(interfaceClass);
+    }
+
+    /**
+     Adds a call to a remote method returning a result.
+
+     @param call A function calling exactly one method of the remote interface
+     on the stub given to it, and returning its result.
+     @return The future of the result. The future is completed when the batch
+     is executed: with the result, exceptionally with the exception thrown by
+     the remote method if the method declares it, or exceptionally with an
+     <code>RMIException</code> otherwise.
+     @throws NullPointerException If <code>call</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>call</code> does not call
+     exactly one remote method.
+     */
+    public <R> CompletableFuture<R> call(AsyncStub.Call<T, R> call) {
+        if (call == null) {
+            throw new NullPointerException("Call is null");
+        }
+
+        int size = recorder.size();
+        try {
+            call.invoke(proxy);
+        } catch (Exception e) {
+            recorder.truncate(size);
+            throw new IllegalArgumentException("Call threw an exception while being recorded", e);
+        }
+        return (CompletableFuture<R>) add(size);
+    }
+
+    /**
+     Adds a call to a remote method, ignoring its result if it has one.
+
+     @param call A procedure calling exactly one method of the remote interface
+     on the stub given to it.
+     @return A future completed with <code>null</code> when the batch has been
+     executed and the call has succeeded, or exceptionally as for
+     <code>call</code>.
+     @throws NullPointerException If <code>call</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>call</code> does not call
+     exactly one remote method.
+     */
+    public CompletableFuture<Void> run(AsyncStub.VoidCall<T> call) {
+        if (call == null) {
+            throw new NullPointerException("Call is null");
+        }
+
+        int size = recorder.size();
+        try {
+            call.invoke(proxy);
+        } catch (Exception e) {
+            recorder.truncate(size);
+            throw new IllegalArgumentException("Call threw an exception while being recorded", e);
+        }
+        return add(size).thenApply(new Function<Object, Void>() {
+            @Override
+            public Void apply(Object result) {
+                return null;
+            }
+        });
+    }
+
+    /** Checks that a single call was recorded, and creates its future. */
+    private CompletableFuture<Object> add(int size) {
+        if (recorder.size() != size + 1) {
+            int recorded = recorder.size() - size;
+            recorder.truncate(size);
+            throw new IllegalArgumentException("Expected one remote call, got " + recorded);
+        }
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        results.add(result);
+        return result;
+    }
+
+    /** Returns the number of calls in the batch. */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     Sends the calls of the batch to the skeleton, and waits for their
+     outcomes. Nothing is sent if the batch is empty. The batch is empty again
+     when the method returns, whether or not it succeeds.
+
+     @throws RMIException If the batch cannot be sent or its response cannot
+     be received. The futures of all calls are then completed exceptionally
+     with this exception; some of the calls may have been carried out.
+     */
+    public void execute() throws RMIException {
+        if (results.isEmpty()) {
+            return;
+        }
+
+        List<CompletableFuture<Object>> pending = new ArrayList<>(results);
+        try {
+            Stub.invokeBatch(stub, recorder, pending);
+        } catch (RMIException e) {
+            for (CompletableFuture<Object> result : pending) {
+                result.completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            recorder.truncate(0);
+            results.clear();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ Bulk data of a message, which travels after its frame rather than inside it.
+
+ <p>
+ Byte arrays, buffers and file contents, as marshalled by
+ <code>Marshal</code>, are not copied into the message: the message holds
+ the index of each of them among the bulk values of the message, and its
+ length prefix carries the <code>Frames.BULK</code> flag. The frame is then
+ followed by the number of values, and by each value in turn: a byte giving
+ its kind, its length as a long, and its raw bytes.
+
+ <p>
+ The sending side writes arrays and buffers straight from their memory into
+ the socket channel, and files with <code>FileChannel.transferTo</code>, so
+ that the kernel copies them to the socket without their bytes passing
+ through the Java heap. Arrays and heap buffers smaller than
+ <code>INLINE_SIZE</code> are written through the buffered stream of the
+ connection along with the frame instead, which saves a system call for a
+ copy of a few bytes. The receiving side reads each value straight from the
+ socket channel into its final place: an array of its exact size, a new
+ direct buffer, or a new temporary file. Only the bytes which the connection
+ had already buffered along with the frame are copied out of its buffer.
+
+ <p>
+ Arrays and buffers are allocated at the length announced by the peer, so
+ they are limited to the maximum frame size each. File contents are not
+ limited. Files are opened when the message is encoded, so that a file which
+ cannot be read fails the call before anything is sent, and so that a
+ temporary file received as an argument may be deleted once the response
+ returning it has been encoded.
+
+ <p>
+ A bulk belongs to a single message, and is released once the message has
+ been written or decoded: the files sent are closed, and the temporary files
+ of values received but never taken by the decoder, such as those of a call
+ which could not be decoded, are deleted.
+ */
+final class Bulk {
+
+    /** Kind of value: a byte array. */
+    private static final int BYTES = 0;
+    /** Kind of value: a buffer, received as a direct buffer. */
+    private static final int BUFFER = 1;
+    /** Kind of value: the content of a file, received into a temporary file. */
+    private static final int FILE = 2;
+
+    /** Size in bytes of the header of a value: its kind and its length. */
+    private static final int VALUE_HEADER_SIZE = 9;
+    /** Length below which arrays and heap buffers are written along with the frame. */
+    private static final int INLINE_SIZE = 8 * 1024;
+    /** Size of the direct buffer through which the non-blocking transport receives files. */
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final List<Value> values = new ArrayList<>();
+
+    /** Returns <code>true</code> if the message has no bulk data. */
+    boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     Adds a byte array to be sent.
+
+     @return The index of the value.
+     */
+    int add(byte[] bytes) {
+        return add(new Value(BYTES, bytes.length, ByteBuffer.wrap(bytes)));
+    }
+
+    /**
+     Adds the remaining bytes of a buffer to be sent, leaving its position as
+     it is.
+
+     @return The index of the value.
+     */
+    int add(ByteBuffer buffer) {
+        return add(new Value(BUFFER, buffer.remaining(), buffer.duplicate()));
+    }
+
+    /**
+     Adds the content of a file to be sent, opening the file.
+
+     @return The index of the value.
+     @throws IOException If the file cannot be opened.
+     */
+    int add(FileContent content) throws IOException {
+        FileChannel file = FileChannel.open(content.getPath(), StandardOpenOption.READ);
+        try {
+            Value value = new Value(FILE, file.size(), null);
+            value.file = file;
+            return add(value);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private int add(Value value) {
+        values.add(value);
+        return values.size() - 1;
+    }
+
+    /**
+     Takes a byte array received.
+
+     @throws StreamCorruptedException If the value does not exist, is not an
+     array, or has already been taken.
+     */
+    byte[] takeBytes(int index) throws StreamCorruptedException {
+        return take(index, BYTES).data.array();
+    }
+
+    /**
+     Takes a buffer received: a direct buffer, positioned at zero, with the
+     big-endian byte order whatever the order of the buffer sent.
+
+     @throws StreamCorruptedException If the value does not exist, is not a
+     buffer, or has already been taken.
+     */
+    ByteBuffer takeBuffer(int index) throws StreamCorruptedException {
+        ByteBuffer buffer = take(index, BUFFER).data;
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     Takes a file content received. Its temporary file then belongs to the
+     content, as described in <code>FileContent</code>.
+
+     @throws StreamCorruptedException If the value does not exist, is not a
+     file content, or has already been taken.
+     */
+    FileContent takeFile(int index) throws StreamCorruptedException {
+        return new FileContent(take(index, FILE).path, true);
+    }
+
+    private Value take(int index, int kind) throws StreamCorruptedException {
+        Value value = index >= 0 && index < values.size() ? values.get(index) : null;
+        if (value == null || value.kind != kind || value.taken) {
+            throw new StreamCorruptedException("Invalid bulk value " + index);
+        }
+        value.taken = true;
+        return value;
+    }
+
+    /**
+     Releases the values: closes the files opened, and deletes the temporary
+     files of the values received which have not been taken. The bulk may be
+     released more than once.
+     */
+    void release() {
+        for (Value value : values) {
+            if (value.file != null) {
+                try {
+                    value.file.close();
+                } catch (IOException e) {
+                    // The file is closed either way.
+                }
+                value.file = null;
+            }
+            if (value.path != null && !value.taken) {
+                try {
+                    Files.deleteIfExists(value.path);
+                } catch (IOException e) {
+                    // The file is left behind in the temporary directory.
+                }
+            }
+        }
+    }
+
+    /** Releases the values and forgets them, as when their message could not be encoded. */
+    void clear() {
+        release();
+        values.clear();
+    }
+
+    /**
+     Writes the values after a frame written to a blocking connection, and
+     flushes the stream.
+
+     @param out The buffered stream of the connection, holding the frame.
+     @param channel The socket channel of the connection.
+     @throws IOException If the values cannot be written, or a file has
+     shrunk since it was opened.
+     */
+    void write(OutputStream out, WritableByteChannel channel) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(values.size());
+        for (Value value : values) {
+            header.writeByte(value.kind);
+            header.writeLong(value.length);
+            if (value.file == null && value.length < INLINE_SIZE && value.data.hasArray()) {
+                out.write(value.data.array(), value.data.arrayOffset() + value.data.position(), (int) value.length);
+                continue;
+            }
+            header.flush();
+            if (value.file != null) {
+                while (!value.isSent()) {
+                    value.transferTo(channel);
+                }
+            } else {
+                while (value.data.hasRemaining()) {
+                    channel.write(value.data);
+                }
+            }
+        }
+        header.flush();
+    }
+
+    /**
+     Queues the values for a non-blocking connection, after the frame
+     queued, as buffers to be written and as values whose file is to be
+     transferred. The bulk itself is queued last, to be released once the
+     values have been written.
+
+     @param output The output queue of the connection.
+     */
+    void queue(Deque<Object> output) {
+        ByteBuffer header = ByteBuffer.allocate(4 + VALUE_HEADER_SIZE).putInt(values.size());
+        for (Value value : values) {
+            output.addLast(header.put((byte) value.kind).putLong(value.length).flip());
+            output.addLast(value.file != null ? value : value.data);
+            header = ByteBuffer.allocate(VALUE_HEADER_SIZE);
+        }
+        output.addLast(this);
+    }
+
+    /**
+     Reads the values following a frame from a blocking connection. The
+     values read are released if the others cannot be read.
+
+     @param in The input of the connection, positioned after the frame.
+     @throws IOException If the values are corrupt, or cannot be read.
+     */
+    void read(ChannelInput in) throws IOException {
+        boolean complete = false;
+        try {
+            DataInputStream header = new DataInputStream(in);
+            int count = checkCount(header.readInt());
+            for (int index = 0; index < count; index++) {
+                Value value = receive(header.readUnsignedByte(), header.readLong());
+                if (value.file != null) {
+                    in.readFully(value.file, value.length);
+                    value.file.close();
+                    value.file = null;
+                } else {
+                    in.readFully(value.data);
+                }
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                release();
+            }
+        }
+    }
+
+    private static int checkCount(int count) throws StreamCorruptedException {
+        if (count <= 0) {
+            throw new StreamCorruptedException("Invalid bulk value count " + count);
+        }
+        return count;
+    }
+
+    /**
+     Adds a value about to be received, allocating its destination.
+
+     @param kind The kind of the value.
+     @param length Its length, as announced by the peer.
+     @throws StreamCorruptedException If the kind or the length is invalid.
+     @throws IOException If the temporary file of a file content cannot be
+     created.
+     */
+    private Value receive(int kind, long length) throws IOException {
+        if (length < 0 || (kind != FILE && length > Frames.MAX_FRAME_SIZE)) {
+            throw new StreamCorruptedException("Invalid bulk value length " + length);
+        }
+        Value value;
+        if (kind == BYTES) {
+            value = new Value(kind, length, ByteBuffer.wrap(new byte[(int) length]));
+        } else if (kind == BUFFER) {
+            value = new Value(kind, length, ByteBuffer.allocateDirect((int) length));
+        } else if (kind == FILE) {
+            value = new Value(kind, length, null);
+            value.path = Files.createTempFile("rmi-", ".content");
+            add(value);
+            value.file = FileChannel.open(value.path, StandardOpenOption.WRITE);
+            return value;
+        } else {
+            throw new StreamCorruptedException("Unknown bulk value kind " + kind);
+        }
+        add(value);
+        return value;
+    }
+
+    /**
+     A bulk value, sent or received. The bytes of arrays and buffers are held
+     in a buffer; a file content is held as the file it is sent from, or as
+     the temporary file it is received into.
+     */
+    static final class Value {
+        private final int kind;
+        private final long length;
+        private final ByteBuffer data;
+        /** The file sent, or the temporary file while it is being received. */
+        private FileChannel file;
+        /** The temporary file of a file content received. */
+        private Path path;
+        /** The number of bytes of the file sent or received so far. */
+        private long position;
+        private boolean taken;
+
+        private Value(int kind, long length, ByteBuffer data) {
+            this.kind = kind;
+            this.length = length;
+            this.data = data;
+        }
+
+        /** Returns <code>true</code> once the whole file has been sent. */
+        boolean isSent() {
+            return position == length;
+        }
+
+        /**
+         Transfers as much of the rest of the file into a channel as it
+         takes, with <code>FileChannel.transferTo</code>.
+
+         @return The number of bytes transferred, which is zero if a
+         non-blocking channel is full.
+         @throws IOException If the file cannot be read, or has shrunk since
+         it was opened.
+         */
+        long transferTo(WritableByteChannel channel) throws IOException {
+            long n = file.transferTo(position, length - position, channel);
+            if (n == 0 && position >= file.size()) {
+                throw new IOException("File changed size while being sent");
+            }
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     Reader of the values following a frame from a non-blocking connection,
+     as far as the connection has received them. Files are received through a
+     direct buffer of its own.
+     */
+    static final class Reader {
+        private final Bulk bulk = new Bulk();
+        private final ByteBuffer header = ByteBuffer.allocate(VALUE_HEADER_SIZE);
+        private ByteBuffer fileBuffer;
+        /** The number of values, or -1 until it has been read. */
+        private int count = -1;
+        /** The value being received, or <code>null</code> between values. */
+        private Value value;
+
+        Reader() {
+            header.limit(4);
+        }
+
+        /**
+         Reads as much of the values as the connection has received.
+
+         @param channel The channel of the connection, in non-blocking mode.
+         @return <code>true</code> once all the values have been read.
+         @throws EOFException If the connection ends before all the values
+         have been read.
+         @throws IOException If the values are corrupt, or cannot be read.
+         */
+        boolean read(ReadableByteChannel channel) throws IOException {
+            while (true) {
+                if (value == null) {
+                    if (bulk.values.size() == count) {
+                        return true;
+                    }
+                    if (!fill(channel, header)) {
+                        return false;
+                    }
+                    header.flip();
+                    if (count < 0) {
+                        count = checkCount(header.getInt());
+                    } else {
+                        value = bulk.receive(header.get() & 0xff, header.getLong());
+                    }
+                    header.clear();
+                    continue;
+                }
+
+                if (value.data != null) {
+                    if (!fill(channel, value.data)) {
+                        return false;
+                    }
+                } else if (!fillFile(channel)) {
+                    return false;
+                }
+                value = null;
+            }
+        }
+
+        /**
+         Reads into a buffer.
+
+         @return <code>true</code> if the buffer is full.
+         */
+        private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+            if (buffer.hasRemaining() && channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed in the middle of bulk data");
+            }
+            return !buffer.hasRemaining();
+        }
+
+        /**
+         Reads into the file of the value being received.
+
+         @return <code>true</code> once the file is complete, and closed.
+         */
+        private boolean fillFile(ReadableByteChannel channel) throws IOException {
+            if (fileBuffer == null) {
+                fileBuffer = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+            }
+            while (value.position < value.length) {
+                fileBuffer.clear();
+                fileBuffer.limit((int) Math.min(fileBuffer.capacity(), value.length - value.position));
+                int n = channel.read(fileBuffer);
+                if (n < 0) {
+                    throw new EOFException("Connection closed in the middle of bulk data");
+                }
+                if (n == 0) {
+                    return false;
+                }
+                fileBuffer.flip();
+                while (fileBuffer.hasRemaining()) {
+                    value.position += value.file.write(fileBuffer, value.position);
+                }
+            }
+            value.file.close();
+            value.file = null;
+            return true;
+        }
+
+        /** Returns the values read, once <code>read</code> has returned <code>true</code>. */
+        Bulk bulk() {
+            return bulk;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ Buffered input of a connection, which can also read bulk data past its
+ buffer, straight from the socket channel into its destination.
+
+ <p>
+ Frames are read through the buffer, like from any buffered stream. The bulk
+ data following a frame, as described in <code>Bulk</code>, is read from the
+ channel directly: only the bytes the buffer already holds are copied out of
+ it first. The channel must be in blocking mode.
+ */
+class ChannelInput extends BufferedInputStream {
+
+    private final SocketChannel channel;
+
+    /**
+     Creates the input of a connection.
+
+     @param channel The socket channel of the connection, in blocking mode.
+     @throws IOException If the input stream of the socket cannot be opened.
+     */
+    ChannelInput(SocketChannel channel) throws IOException {
+        super(channel.socket().getInputStream());
+        this.channel = channel;
+    }
+
+    /**
+     Fills the remaining space of a buffer.
+
+     @param destination The buffer, which may be a direct buffer.
+     @throws EOFException If the connection ends before the buffer is full.
+     @throws IOException If the connection fails.
+     */
+    synchronized void readFully(ByteBuffer destination) throws IOException {
+        destination.put(buffered(destination.remaining()));
+        while (destination.hasRemaining()) {
+            if (channel.read(destination) < 0) {
+                throw new EOFException("Connection closed in the middle of bulk data");
+            }
+        }
+    }
+
+    /**
+     Reads bytes into a file, with <code>FileChannel.transferFrom</code> once
+     the buffered bytes have been written.
+
+     @param file The file, written from its start.
+     @param length The number of bytes to read.
+     @throws EOFException If the connection ends before all the bytes have
+     been read.
+     @throws IOException If the connection fails, or the file cannot be
+     written.
+     */
+    synchronized void readFully(FileChannel file, long length) throws IOException {
+        ByteBuffer buffered = buffered((int) Math.min(length, Integer.MAX_VALUE));
+        long position = 0;
+        while (buffered.hasRemaining()) {
+            position += file.write(buffered, position);
+        }
+        while (position < length) {
+            // A blocking channel only transfers nothing once it has ended.
+            long n = file.transferFrom(channel, position, length - position);
+            if (n == 0) {
+                throw new EOFException("Connection closed in the middle of bulk data");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     Takes up to the given number of bytes out of the buffer.
+
+     @return A buffer over the bytes taken, which may be empty.
+     */
+    private ByteBuffer buffered(int max) {
+        int n = Math.max(0, Math.min(count - pos, max));
+        ByteBuffer bytes = ByteBuffer.wrap(buf, pos, n);
+        pos += n;
+        markpos = -1;
+        return bytes;
+    }
+}
@@ -0,0 +1,278 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ Class descriptors shared by the messages of one connection.
+
+ <p>
+ Java serialization describes the class of every object it writes, field by
+ field, the first time the class appears in a stream, and each message is a
+ stream of its own. With a class cache, each side of a connection numbers the
+ classes it sends, and sends the full descriptor of a class only until it has
+ been written to the connection once; later messages refer to the class by
+ its number. Only descriptors are shared between messages: objects are never
+ written as references to objects of earlier messages, so an object modified
+ between two calls is sent again in full.
+
+ <p>
+ New descriptors travel in the prelude of the message that first uses them,
+ ahead of its objects, as a list of class numbers followed by a separate
+ stream holding their descriptors. The prelude is taken in by the reading side
+ as soon as the frame has been read, in the order of the connection, so that
+ the messages themselves can be decoded in any order and on any thread, as
+ multiplexed calls are. A class is only referred to by number once a frame
+ defining it has been written, so a message encoded concurrently with the
+ first message using a class defines the class again.
+
+ <p>
+ Each direction numbers at most <code>MAX_CLASSES</code> classes. Further
+ classes are described in full in every message, so the cache does not grow
+ without bound on long-lived connections; closing the connection, as the
+ connection pool does once a connection reaches its maximum lifetime, starts
+ afresh.
+ */
+class ClassCache {
+
+    /** Largest number of classes numbered in each direction. */
+    static final int MAX_CLASSES = 1024;
+
+    /** Marker written instead of a class number for a descriptor written in full. */
+    private static final int INLINE = -1;
+
+    /** Numbers of the classes sent, by class. */
+    private final Map<Class<?>, Integer> numbers = new HashMap<>();
+    /** Classes whose definition has been written to the connection, by number. */
+    private final boolean[] defined = new boolean[MAX_CLASSES];
+    /** Descriptors received, by number. */
+    private final AtomicReferenceArray<ObjectStreamClass> received = new AtomicReferenceArray<>(MAX_CLASSES);
+
+    /**
+     Writes the objects of a message, followed by the prelude that must be
+     sent ahead of them.
+
+     @param out The stream receiving the prelude and then the objects.
+     @param body Writes the objects.
+     @throws IOException If the objects cannot be written.
+     */
+    void write(OutputStream out, Frames.Body body) throws IOException {
+        ByteArrayOutputStream objects = new ByteArrayOutputStream();
+        Output output = new Output(objects);
+        body.write(output);
+        output.close();
+
+        DataOutputStream prelude = new DataOutputStream(out);
+        prelude.writeInt(output.definitions.size());
+        for (ObjectStreamClass desc : output.definitions) {
+            prelude.writeInt(number(desc.forClass()));
+        }
+        ByteArrayOutputStream descriptors = new ByteArrayOutputStream();
+        if (!output.definitions.isEmpty()) {
+            DefinitionOutput definitions = new DefinitionOutput(descriptors);
+            for (ObjectStreamClass desc : output.definitions) {
+                definitions.define(desc);
+            }
+            definitions.close();
+        }
+        prelude.writeInt(descriptors.size());
+        descriptors.writeTo(prelude);
+        objects.writeTo(prelude);
+        prelude.flush();
+    }
+
+    /**
+     Records that a message has been written to the connection, so that the
+     classes it defines can be referred to by number from now on. Must be
+     called in the order in which messages are written.
+
+     @param payload The payload of the message.
+     */
+    void sent(byte[] payload) throws IOException {
+        if ((Frames.flags(payload) & Frames.CLASS_CACHE) == 0) {
+            return;
+        }
+        DataInputStream prelude = prelude(payload);
+        int count = prelude.readInt();
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                defined[prelude.readInt()] = true;
+            }
+        }
+    }
+
+    /**
+     Takes in the descriptors defined by a message which has been read from
+     the connection. Must be called in the order in which messages are read,
+     and before the message is decoded.
+
+     @param payload The payload of the message.
+     @throws IOException If the prelude is corrupt.
+     */
+    void received(byte[] payload) throws IOException {
+        if ((Frames.flags(payload) & Frames.CLASS_CACHE) == 0) {
+            return;
+        }
+        DataInputStream prelude = prelude(payload);
+        int[] ids = new int[prelude.readInt()];
+        if (ids.length == 0) {
+            return;
+        }
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = checkNumber(prelude.readInt());
+        }
+        byte[] descriptors = new byte[prelude.readInt()];
+        prelude.readFully(descriptors);
+        DefinitionInput definitions = new DefinitionInput(new ByteArrayInputStream(descriptors));
+        for (int id : ids) {
+            try {
+                received.set(id, definitions.define());
+            } catch (ClassNotFoundException e) {
+                throw new StreamCorruptedException("Corrupt class descriptor " + id);
+            }
+        }
+    }
+
+    /**
+     Opens the objects of a message.
+
+     @param in The stream holding the objects, which follow the prelude.
+     @return The input from which the objects can be read.
+     @throws IOException If the objects do not start with a stream header.
+     */
+    ObjectInputStream read(InputStream in) throws IOException {
+        return new Input(in);
+    }
+
+    /**
+     Returns the offset of the objects of a message, past its prelude.
+
+     @param frame The frame, or the buffer in which it is being encoded.
+     @param length The length of the frame.
+     @throws StreamCorruptedException If the prelude is truncated.
+     */
+    static int objectsOffset(byte[] frame, int length) throws StreamCorruptedException {
+        int offset = Frames.BODY_OFFSET;
+        if (length - offset >= 4) {
+            long descriptors = offset + 4 + 4L * Frames.readInt(frame, offset);
+            if (descriptors >= offset + 4 && descriptors <= length - 4) {
+                long objects = descriptors + 4 + Frames.readInt(frame, (int) descriptors);
+                if (objects >= descriptors + 4 && objects <= length) {
+                    return (int) objects;
+                }
+            }
+        }
+        throw new StreamCorruptedException("Truncated class descriptors");
+    }
+
+    private static DataInputStream prelude(byte[] payload) {
+        return new DataInputStream(new ByteArrayInputStream(payload, Frames.BODY_OFFSET,
+                payload.length - Frames.BODY_OFFSET));
+    }
+
+    private static int checkNumber(int id) throws StreamCorruptedException {
+        if (id < 0 || id >= MAX_CLASSES) {
+            throw new StreamCorruptedException("Invalid class number " + id);
+        }
+        return id;
+    }
+
+    private synchronized int number(Class<?> c) {
+        return numbers.get(c);
+    }
+
+    /**
+     Returns the number under which a class is to be written in a message:
+     its number if it has been defined, or if the message defines it, and
+     <code>INLINE</code> if the cache is full.
+     */
+    private synchronized int reference(ObjectStreamClass desc, List<ObjectStreamClass> definitions) {
+        Class<?> c = desc.forClass();
+        Integer id = numbers.get(c);
+        if (id == null) {
+            if (c == null || numbers.size() == MAX_CLASSES) {
+                return INLINE;
+            }
+            id = numbers.size();
+            numbers.put(c, id);
+        }
+        if (!defined[id] && !definitions.contains(desc)) {
+            definitions.add(desc);
+        }
+        return id;
+    }
+
+    /** Object stream writing class numbers in place of descriptors. */
+    private class Output extends ObjectOutputStream {
+        private final List<ObjectStreamClass> definitions = new ArrayList<>();
+
+        Output(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            int id = reference(desc, definitions);
+            writeInt(id);
+            if (id == INLINE) {
+                super.writeClassDescriptor(desc);
+            }
+        }
+    }
+
+    /** Object stream reading class numbers in place of descriptors. */
+    private class Input extends ObjectInputStream {
+        Input(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int id = readInt();
+            if (id == INLINE) {
+                return super.readClassDescriptor();
+            }
+            ObjectStreamClass desc = received.get(checkNumber(id));
+            if (desc == null) {
+                throw new StreamCorruptedException("Undefined class number " + id);
+            }
+            return desc;
+        }
+    }
+
+    /** Stream carrying the descriptors defined by a message. */
+    private static class DefinitionOutput extends ObjectOutputStream {
+        DefinitionOutput(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        void define(ObjectStreamClass desc) throws IOException {
+            writeClassDescriptor(desc);
+        }
+    }
+
+    /** Stream from which the descriptors defined by a message are read. */
+    private static class DefinitionInput extends ObjectInputStream {
+        DefinitionInput(InputStream in) throws IOException {
+            super(in);
+        }
+
+        ObjectStreamClass define() throws IOException, ClassNotFoundException {
+            return readClassDescriptor();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+
+/**
+ Wire codec.
+
+ <p>
+ A codec turns the objects making up requests and responses - method names,
+ parameter types, arguments, results and exceptions - into bytes, and back.
+ Each message is encoded with a fresh output, and carries the identifier of
+ its codec in its header, so that the receiving side decodes it with the same
+ codec. Java serialization, available as <code>Codecs.JAVA</code>, is the
+ default codec, and is always available on both sides.
+
+ <p>
+ Codecs are registered with <code>Codecs.register</code> in every process
+ that uses them, and selected for a stub with <code>Stub.withCodec</code>. A
+ skeleton that does not accept the codec of a request rejects it without
+ serving it; the stub then falls back to Java serialization for its later
+ calls.
+
+ <p>
+ A codec must be able to encode every object it is given, including
+ <code>Class</code> objects, arrays, exceptions and stubs, for instance by
+ falling back to Java serialization for the objects it has no faster encoding
+ for. Codecs must be thread-safe.
+ */
+public interface Codec {
+
+    /**
+     Returns the identifier of the codec. Identifiers from 1 to 255 are
+     available to codecs; 0 identifies Java serialization.
+     */
+    int getId();
+
+    /**
+     Creates an output for encoding the objects of a single message. The
+     output is closed once all objects have been written.
+
+     @param out The stream receiving the encoded message.
+     @throws IOException If the output cannot be created.
+     */
+    ObjectOutput newOutput(OutputStream out) throws IOException;
+
+    /**
+     Creates an input for decoding the objects of a single message.
+
+     @param in The stream holding the encoded message.
+     @throws IOException If the message does not start as the codec expects.
+     */
+    ObjectInput newInput(InputStream in) throws IOException;
+}
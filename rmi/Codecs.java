@@ -0,0 +1,88 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ Registry of the wire codecs known to the process.
+
+ <p>
+ Java serialization is registered from the start, with identifier 0. Other
+ codecs are registered by the application, under the identifiers they
+ choose, before stubs or skeletons use them.
+ */
+public final class Codecs {
+
+    /** Java serialization, the default codec. */
+    public static final Codec JAVA = new JavaSerialization();
+
+    private static final AtomicReferenceArray<Codec> registered = new AtomicReferenceArray<>(256);
+
+    static {
+        registered.set(0, JAVA);
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     Registers a codec. Registering the same codec again has no effect.
+
+     @param codec The codec.
+     @throws NullPointerException If <code>codec</code> is <code>null</code>.
+     @throws IllegalArgumentException If the identifier of the codec is out of
+     range, or is already used by another codec.
+     */
+    public static synchronized void register(Codec codec) {
+        if (codec == null) {
+            throw new NullPointerException("Codec is null");
+        }
+
+        int id = codec.getId();
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("Codec identifier " + id + " out of range");
+        }
+        Codec existing = registered.get(id);
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("Codec identifier " + id + " already used by " + existing);
+        }
+        registered.set(id, codec);
+    }
+
+    /**
+     Returns the codec registered with the given identifier, or
+     <code>null</code> if there is none.
+     */
+    static Codec get(int id) {
+        return id < 0 || id > 255 ? null : registered.get(id);
+    }
+
+    /** The default codec. */
+    private static class JavaSerialization implements Codec {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public ObjectOutput newOutput(OutputStream out) throws IOException {
+            return new ObjectOutputStream(out);
+        }
+
+        @Override
+        public ObjectInput newInput(InputStream in) throws IOException {
+            return new ObjectInputStream(in);
+        }
+
+        @Override
+        public String toString() {
+            return "Java serialization";
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ Classes generated for remote interfaces at build time, and the order in
+ which generated classes number the methods of an interface.
+
+ <p>
+ Generated stubs and dispatchers number the methods of their interface, other
+ than static methods and the methods of <code>Object</code>, in the order of
+ their signatures: the name of the method followed by the names of its
+ parameter types, as given by <code>Class.getName</code>, separated by commas
+ and in parentheses. A method inherited from several interfaces has a single
+ number. The annotation processor in <code>rmic</code> numbers the methods in
+ the same way when it generates the classes.
+
+ @see Remote
+ */
+final class CompiledClasses {
+
+    private static final ClassValue<Method[]> methods = new ClassValue<Method[]>() {
+        @Override
+        protected Method[] computeValue(Class<?> type) {
+            return order(type);
+        }
+    };
+    private static final ClassValue<Compiled> compiled = new ClassValue<Compiled>() {
+        @Override
+        protected Compiled computeValue(Class<?> type) {
+            return new Compiled(type);
+        }
+    };
+
+    private CompiledClasses() {
+    }
+
+    /** Returns the signature of a method, by which generated classes order methods. */
+    static String signature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            signature.append(parameterTypes[i].getName());
+        }
+        return signature.append(')').toString();
+    }
+
+    /** Returns the methods of an interface implemented by generated classes, by index. */
+    static Method[] methods(Class<?> interfaceClass) {
+        return methods.get(interfaceClass);
+    }
+
+    private static Method[] order(Class<?> interfaceClass) {
+        Map<String, Method> bySignature = new TreeMap<>();
+        for (Method method : interfaceClass.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || isObjectMethod(method)) {
+                continue;
+            }
+            String signature = signature(method);
+            if (!bySignature.containsKey(signature)) {
+                try {
+                    bySignature.put(signature, interfaceClass.getMethod(method.getName(),
+                            method.getParameterTypes()));
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return bySignature.values().toArray(new Method[0]);
+    }
+
+    /** Returns <code>true</code> if a method has the signature of a public method of <code>Object</code>. */
+    static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     Returns the constructor of the stub class generated at build time for an
+     interface, taking the handler of the stub, or <code>null</code> if there
+     is none.
+     */
+    static MethodHandle stubConstructor(Class<?> interfaceClass) {
+        return of(interfaceClass).stubConstructor;
+    }
+
+    /**
+     Returns the dispatcher generated at build time for an interface, or
+     <code>null</code> if there is none.
+     */
+    static RemoteDispatcher<Object> dispatcher(Class<?> interfaceClass) {
+        return of(interfaceClass).dispatcher;
+    }
+
+    private static Compiled of(Class<?> interfaceClass) {
+        return compiled.get(interfaceClass);
+    }
+
+    /**
+     Returns the name of a class generated for an interface: the binary name
+     of the interface, with the names of nested classes separated by
+     underscores, followed by a suffix.
+     */
+    private static String generatedName(Class<?> interfaceClass, String suffix) {
+        String packageName = interfaceClass.getPackageName();
+        String name = interfaceClass.getName();
+        if (!packageName.isEmpty()) {
+            name = packageName + "." + name.substring(packageName.length() + 1).replace('$', '_');
+        } else {
+            name = name.replace('$', '_');
+        }
+        return name + suffix;
+    }
+
+    /** The classes generated for an interface, looked up once. */
+    private static final class Compiled {
+        private final MethodHandle stubConstructor;
+        private final RemoteDispatcher<Object> dispatcher;
+
+        Compiled(Class<?> interfaceClass) {
+            MethodHandle stubConstructor = null;
+            RemoteDispatcher<Object> dispatcher = null;
+            if (interfaceClass.isAnnotationPresent(Remote.class)) {
+                Class<?> stubClass = load(interfaceClass, "_Stub");
+                if (stubClass != null && GeneratedStub.class.isAssignableFrom(stubClass)
+                        && interfaceClass.isAssignableFrom(stubClass)) {
+                    try {
+                        stubConstructor = MethodHandles.publicLookup().findConstructor(stubClass,
+                                MethodType.methodType(void.class, Object.class));
+                    } catch (ReflectiveOperationException e) {
+                        stubConstructor = null;
+                    }
+                }
+                Class<?> dispatcherClass = load(interfaceClass, "_Dispatcher");
+                if (dispatcherClass != null && RemoteDispatcher.class.isAssignableFrom(dispatcherClass)) {
+                    try {
+                        dispatcher = (RemoteDispatcher<Object>) dispatcherClass.getConstructor().newInstance();
+                    } catch (ReflectiveOperationException e) {
+                        dispatcher = null;
+                    }
+                }
+            }
+            this.stubConstructor = stubConstructor;
+            this.dispatcher = dispatcher;
+        }
+
+        private static Class<?> load(Class<?> interfaceClass, String suffix) {
+            try {
+                return Class.forName(generatedName(interfaceClass, suffix), true, interfaceClass.getClassLoader());
+            } catch (ClassNotFoundException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package rmi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+
+/**
+ Persistent connection from a stub to a skeleton.
+
+ <p>
+ A connection owns a socket and carries any number of sequential calls. Each
+ request and each response is a frame, as described in <code>Frames</code>,
+ followed by its bulk data, if it has any. The socket is that of a socket
+ channel, so that bulk data can be written to and read from the channel
+ directly.
+
+ <p>
+ Connections are not thread-safe: a connection is used by one call at a time,
+ and is handed back to the <code>ConnectionPool</code> once the response has
+ been read completely.
+ */
+class Connection {
+
+    private final SocketChannel channel;
+    private final OutputStream out;
+    private final ChannelInput input;
+    private final DataInputStream in;
+    private boolean reused = false;
+    private final long created;
+    private long lastUsed;
+    private final MethodTable.Agreed methodTables = new MethodTable.Agreed();
+    private final ClassCache classCache = new ClassCache();
+
+    /**
+     Opens a new connection to the skeleton at the given address.
+
+     @param address The address of the skeleton.
+     @throws IOException If the connection cannot be established.
+     */
+    Connection(InetSocketAddress address) throws IOException {
+        channel = open(address);
+        try {
+            // Requests are flushed as a whole, so there is nothing for Nagle's
+            // algorithm to coalesce - it would only delay the next call.
+            channel.socket().setTcpNoDelay(true);
+            out = new BufferedOutputStream(channel.socket().getOutputStream());
+            input = new ChannelInput(channel);
+            in = new DataInputStream(input);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        created = System.currentTimeMillis();
+        lastUsed = created;
+    }
+
+    /**
+     Opens a socket channel connected to the given address, resolving its
+     host name anew.
+
+     @throws UnknownHostException If the host name cannot be resolved.
+     @throws IOException If the connection cannot be established.
+     */
+    static SocketChannel open(InetSocketAddress address) throws IOException {
+        InetSocketAddress resolved = new InetSocketAddress(address.getHostName(), address.getPort());
+        if (resolved.isUnresolved()) {
+            throw new UnknownHostException(address.getHostName());
+        }
+        return SocketChannel.open(resolved);
+    }
+
+    /**
+     Sends a request to the skeleton, followed by its bulk data. The bulk
+     data is released once it has been written.
+
+     @param request The payload of the request.
+     @param bulk The bulk data of the request.
+     @throws StaleConnectionException If the request cannot be written.
+     @throws IOException If the request is corrupt.
+     */
+    void send(byte[] request, Bulk bulk) throws IOException {
+        try {
+            Frames.write(out, request, bulk, channel);
+        } catch (IOException e) {
+            throw new StaleConnectionException("Request could not be written", e);
+        } finally {
+            bulk.release();
+        }
+        classCache.sent(request);
+    }
+
+    /**
+     Receives the next response from the skeleton, and its bulk data.
+
+     @param bulk Receives the bulk data of the response.
+     @return The payload of the response.
+     @throws StaleConnectionException If the connection ends before the
+     first byte of the response.
+     @throws IOException If the connection fails or the response is corrupt.
+     */
+    byte[] receive(Bulk bulk) throws IOException {
+        byte[] response = Frames.readResponse(in);
+        classCache.received(response);
+        if (Frames.hasBulk(response)) {
+            bulk.read(input);
+        }
+        return response;
+    }
+
+    /**
+     Marks the end of a call which left the connection in a consistent state.
+     The connection may then be used for further calls.
+     */
+    void completed() {
+        reused = true;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /** Returns <code>true</code> if the connection has carried a call before. */
+    boolean isReused() {
+        return reused;
+    }
+
+    /** Returns the method tables agreed with the skeleton over this connection. */
+    MethodTable.Agreed getMethodTables() {
+        return methodTables;
+    }
+
+    /** Returns the class cache of the connection. */
+    ClassCache getClassCache() {
+        return classCache;
+    }
+
+    /** Returns the time, in milliseconds, at which the connection was opened. */
+    long getCreated() {
+        return created;
+    }
+
+    /** Returns the time, in milliseconds, at which the last call completed. */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /** Closes the connection, ignoring any errors. */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with the connection either way.
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ Process-wide pool of connections from stubs to skeletons.
+
+ <p>
+ Connections are pooled by skeleton address, so all stubs for the same address
+ share them, however the stubs were obtained - created locally, deserialized,
+ or returned by a remote call. Idle connections are reused most recently used
+ first, which lets the least used ones reach the idle timeout and be evicted.
+
+ <p>
+ The pool limits the number of connections open to each address. A call that
+ finds all of them in use waits until one is released. Idle connections are
+ closed once they have been idle for longer than the idle timeout, except that
+ up to a minimum number of them are kept open per address. Connections are
+ also closed when they reach their maximum lifetime, instead of being reused.
+ Expired connections are evicted when the pool is used, so the pool needs no
+ thread of its own.
+ */
+class ConnectionPool {
+
+    /** Default time in milliseconds after which an idle connection is evicted. */
+    static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+    /** Interval in milliseconds at which all addresses are checked for expired connections. */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private static final ConnectionPool SHARED = new ConnectionPool();
+
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+    private int minIdle = 0;
+    private int maxConnections = Integer.MAX_VALUE;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long maxLifetime = 0;
+    private long lastSweep = System.currentTimeMillis();
+
+    /** Returns the pool shared by all stubs. */
+    static ConnectionPool shared() {
+        return SHARED;
+    }
+
+    /**
+     Changes the limits of the pool. Connections already open are brought
+     within the new limits as they are used.
+
+     @see Stub#setConnectionPool
+     */
+    synchronized void configure(int minIdle, int maxConnections, long idleTimeout, long maxLifetime) {
+        if (minIdle < 0 || maxConnections < 1 || idleTimeout < 0 || maxLifetime < 0) {
+            throw new IllegalArgumentException("Connection pool limits out of range");
+        }
+        this.minIdle = minIdle;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        notifyAll();
+    }
+
+    synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     Takes a connection to the given address: the most recently used idle
+     connection if there is one, and otherwise a new connection.
+
+     @throws IOException If a new connection cannot be established, or if the
+     thread is interrupted while waiting for a connection.
+     */
+    Connection acquire(InetSocketAddress address) throws IOException {
+        return take(address, true);
+    }
+
+    /**
+     Opens a new connection to the given address, bypassing the idle
+     connections. This is used to repeat a call which failed on a stale idle
+     connection.
+
+     @throws IOException If the connection cannot be established, or if the
+     thread is interrupted while waiting for the connection limit.
+     */
+    Connection connect(InetSocketAddress address) throws IOException {
+        return take(address, false);
+    }
+
+    private Connection take(InetSocketAddress address, boolean reuse) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            sweep(now);
+
+            entry = entries.get(address);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(address, entry);
+            }
+
+            while (true) {
+                if (reuse) {
+                    Connection connection = entry.idle.pollFirst();
+                    if (connection != null) {
+                        // The connection just taken counts as kept only if
+                        // fewer than the minimum number remain idle.
+                        boolean kept = entry.idle.size() < minIdle;
+                        if (!isRetired(connection, now) && (kept || !isIdleExpired(connection, now))) {
+                            return connection;
+                        }
+                        discard(entry, connection);
+                        continue;
+                    }
+                }
+                if (entry.open < maxConnections) {
+                    entry.open++;
+                    break;
+                }
+                if (!reuse && !entry.idle.isEmpty()) {
+                    // Make room by closing the least recently used idle connection.
+                    discard(entry, entry.idle.pollLast());
+                    continue;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection");
+                }
+                now = System.currentTimeMillis();
+            }
+        }
+
+        // Connecting may take a while, so it is done outside the lock; the
+        // connection has already been counted against the limit.
+        try {
+            return new Connection(address);
+        } catch (IOException e) {
+            synchronized (this) {
+                entry.open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     Returns a connection to the pool after a completed call. The connection is
+     closed instead if it has reached its maximum lifetime.
+     */
+    synchronized void release(InetSocketAddress address, Connection connection) {
+        connection.completed();
+        Entry entry = entries.get(address);
+        if (isRetired(connection, connection.getLastUsed())) {
+            discard(entry, connection);
+        } else {
+            entry.idle.addFirst(connection);
+        }
+        notifyAll();
+    }
+
+    /**
+     Closes a connection which failed, and frees its place in the pool.
+
+     <p>
+     A reused connection usually fails because the skeleton closed it, after
+     its idle timeout or because it was restarted. Idle connections to the
+     same address that have been idle at least as long are then likely to be
+     closed as well, so they are discarded too, rather than being tried one by
+     one by later calls.
+     */
+    synchronized void discard(InetSocketAddress address, Connection connection) {
+        Entry entry = entries.get(address);
+        discard(entry, connection);
+        if (connection.isReused()) {
+            Iterator<Connection> idle = entry.idle.iterator();
+            while (idle.hasNext()) {
+                Connection other = idle.next();
+                if (other.getLastUsed() <= connection.getLastUsed()) {
+                    idle.remove();
+                    discard(entry, other);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    private void discard(Entry entry, Connection connection) {
+        connection.close();
+        entry.open--;
+    }
+
+    /** Returns <code>true</code> if a connection has reached its maximum lifetime. */
+    private boolean isRetired(Connection connection, long now) {
+        return maxLifetime != 0 && now - connection.getCreated() >= maxLifetime;
+    }
+
+    /** Returns <code>true</code> if a connection has been idle for longer than the idle timeout. */
+    private boolean isIdleExpired(Connection connection, long now) {
+        return idleTimeout != 0 && now - connection.getLastUsed() >= idleTimeout;
+    }
+
+    /**
+     Closes expired idle connections to all addresses, keeping the minimum
+     number of idle connections unless they have reached their maximum
+     lifetime, and forgets addresses with no connection left. Runs at most once
+     per sweep interval.
+     */
+    private void sweep(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL) {
+            return;
+        }
+        lastSweep = now;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            int kept = 0;
+            Iterator<Connection> idle = entry.idle.iterator();
+            while (idle.hasNext()) {
+                Connection connection = idle.next();
+                if (isRetired(connection, now) || (kept >= minIdle && isIdleExpired(connection, now))) {
+                    idle.remove();
+                    discard(entry, connection);
+                } else {
+                    kept++;
+                }
+            }
+
+            if (entry.open == 0) {
+                iterator.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    /** Connections to a single address. */
+    private static class Entry {
+        /** Idle connections, most recently used first. */
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        /** Number of open connections, idle or in use. */
+        private int open = 0;
+    }
+}
@@ -0,0 +1,199 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ Result of a remote method streamed to the stub in pages, as kept by the
+ skeleton.
+
+ <p>
+ A cursor wraps the iterator or stream returned by the server. The first
+ page is sent with the response to the call; if more elements remain, the
+ cursor is kept by the skeleton under its identifier, and the stub fetches
+ the next pages with <code>Frames.STREAM_PAGE</code> requests. Elements
+ are read from the iterator of the server only as pages are requested.
+
+ <p>
+ Cursors are kept under random identifiers, and belong to the client address
+ which made the call: page requests from other addresses do not find them.
+
+ @see RemoteIterator
+ */
+final class Cursor {
+
+    /** Number of elements per page. */
+    static final int PAGE_SIZE = 256;
+    /** Largest number of elements sent in one page, whatever the stub asks for. */
+    static final int MAX_PAGE_SIZE = 16 * 1024;
+    /** Time in milliseconds after which a cursor whose pages are not requested is released. */
+    static final long TIMEOUT = 5 * 60 * 1000;
+
+    private final long id;
+    private final InetAddress owner;
+    private final Iterator<?> iterator;
+    /** Closed when the cursor is released, or <code>null</code>. */
+    private final AutoCloseable resource;
+    /** Guards the cursor, while the iterator of the server runs too. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private long lastUsed = System.currentTimeMillis();
+    private boolean closed;
+
+    /**
+     Creates a cursor over the result of a call.
+
+     @param id The identifier of the cursor, unique within its skeleton.
+     @param result The result, an iterator or a stream.
+     @param owner The address of the client which made the call.
+     */
+    Cursor(long id, Object result, InetAddress owner) {
+        this.id = id;
+        this.owner = owner;
+        if (result instanceof Stream) {
+            iterator = ((Stream<?>) result).iterator();
+            resource = (Stream<?>) result;
+        } else {
+            iterator = (Iterator<?>) result;
+            resource = result instanceof AutoCloseable ? (AutoCloseable) result : null;
+        }
+    }
+
+    /**
+     Returns <code>true</code> if the results of methods with the given return
+     type are streamed.
+     */
+    static boolean isStreamed(Class<?> returnType) {
+        return returnType == Iterator.class || returnType == RemoteIterator.class || returnType == Stream.class;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /** Returns <code>true</code> if the cursor was opened by a call from the given client. */
+    boolean isOwnedBy(InetAddress client) {
+        return owner.equals(client);
+    }
+
+    /**
+     Reads the next page from the iterator of the server. The cursor is
+     released once the last element has been read.
+
+     @param max The number of elements requested.
+     @return The page.
+     @throws RuntimeException If the iterator of the server throws one. The
+     cursor is then released.
+     */
+    Page next(int max) {
+        lock.lock();
+        try {
+            lastUsed = System.currentTimeMillis();
+            List<Object> elements = new ArrayList<>();
+            boolean more;
+            try {
+                while (!closed && elements.size() < Math.min(max, MAX_PAGE_SIZE) && iterator.hasNext()) {
+                    elements.add(iterator.next());
+                }
+                more = !closed && iterator.hasNext();
+            } catch (RuntimeException | Error e) {
+                close();
+                throw e;
+            }
+            if (!more) {
+                close();
+            }
+            return new Page(id, elements, more);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns <code>true</code> if no page has been requested for longer than the timeout. */
+    boolean isExpired(long now) {
+        lock.lock();
+        try {
+            return now - lastUsed > TIMEOUT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Releases the result of the server. */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    // The server no longer needs the result.
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Page of elements, as carried by a response: the identifier of the
+     cursor, the number of elements, the elements, and whether more follow.
+     */
+    static final class Page {
+        private final long cursorId;
+        private final List<Object> elements;
+        private final boolean more;
+
+        Page(long cursorId, List<Object> elements, boolean more) {
+            this.cursorId = cursorId;
+            this.elements = elements;
+            this.more = more;
+        }
+
+        long getCursorId() {
+            return cursorId;
+        }
+
+        List<Object> getElements() {
+            return elements;
+        }
+
+        /** Returns <code>true</code> if the cursor has more elements after this page. */
+        boolean hasMore() {
+            return more;
+        }
+
+        void write(ObjectOutput out) throws IOException {
+            out.writeLong(cursorId);
+            out.writeInt(elements.size());
+            for (Object element : elements) {
+                out.writeObject(element);
+            }
+            out.writeBoolean(more);
+        }
+
+        static Page read(ObjectInput in) throws IOException, ClassNotFoundException {
+            long cursorId = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_PAGE_SIZE) {
+                throw new StreamCorruptedException("Invalid page size " + count);
+            }
+            List<Object> elements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(in.readObject());
+            }
+            return new Page(cursorId, elements, in.readBoolean());
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package rmi;
+
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Dispatch table of a skeleton, built once for its server object.
+
+ <p>
+ The table holds an entry for each method of the method table of the remote
+ interface, under the same identifier. Each entry carries a method handle
+ bound to the server, which takes the arguments of a call as an array, and
+ what the skeleton needs to know of the method to serve a call, as kept by
+ <code>RemoteInterface</code>: whether its
+ result is streamed or returned as a remote reference, and which of its
+ parameters, if any, is a stream. Serving a call then takes a lookup in the
+ table and an invocation of the handle, without reflection. For interfaces
+ with a dispatcher generated at build time, entries call the dispatcher
+ instead, and no method handles are created.
+
+ <p>
+ An entry for a method whose values are all primitive also calls it with its
+ arguments and result held as raw bits, as described in <code>Marshal</code>,
+ so that they are never boxed: through a second handle taking the arguments
+ as a <code>long</code> array, which converts each of them from the array and
+ converts the result back, or through <code>dispatchPrimitive</code> of the
+ generated dispatcher.
+ */
+final class Dispatcher {
+
+    private static final MethodType SPREAD_TYPE = MethodType.methodType(Object.class, Object[].class);
+    private static final MethodType PRIMITIVE_TYPE = MethodType.methodType(long.class, long[].class);
+    private static final MethodHandle LONG_ELEMENT = MethodHandles.arrayElementGetter(long[].class);
+    private static final MethodHandle INT_BITS_TO_FLOAT;
+    private static final MethodHandle LONG_BITS_TO_DOUBLE;
+    private static final MethodHandle FLOAT_TO_RAW_INT_BITS;
+    private static final MethodHandle DOUBLE_TO_RAW_LONG_BITS;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            INT_BITS_TO_FLOAT = lookup.findStatic(Float.class, "intBitsToFloat",
+                    MethodType.methodType(float.class, int.class));
+            LONG_BITS_TO_DOUBLE = lookup.findStatic(Double.class, "longBitsToDouble",
+                    MethodType.methodType(double.class, long.class));
+            FLOAT_TO_RAW_INT_BITS = lookup.findStatic(Float.class, "floatToRawIntBits",
+                    MethodType.methodType(int.class, float.class));
+            DOUBLE_TO_RAW_LONG_BITS = lookup.findStatic(Double.class, "doubleToRawLongBits",
+                    MethodType.methodType(long.class, double.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodTable table;
+    private final Entry[] entries;
+    private final Map<String, List<Entry>> byName = new HashMap<>();
+
+    /**
+     Builds the dispatch table of a server object.
+
+     @param interfaceClass The remote interface.
+     @param server The server object, implementing the interface.
+     */
+    Dispatcher(Class<?> interfaceClass, Object server) {
+        table = MethodTable.of(interfaceClass);
+        RemoteInterface remoteInterface = RemoteInterface.of(interfaceClass);
+        RemoteDispatcher<Object> compiled = CompiledClasses.dispatcher(interfaceClass);
+        Map<String, Integer> indices = new HashMap<>();
+        if (compiled != null) {
+            Method[] ordered = CompiledClasses.methods(interfaceClass);
+            for (int index = 0; index < ordered.length; index++) {
+                indices.put(CompiledClasses.signature(ordered[index]), index);
+            }
+        }
+
+        Method[] methods = table.methods();
+        entries = new Entry[methods.length];
+        for (int id = 0; id < methods.length; id++) {
+            RemoteInterface.RemoteMethod method = remoteInterface.method(methods[id]);
+            if (method == null) {
+                method = new RemoteInterface.RemoteMethod(methods[id]);
+            }
+            Integer index = indices.get(CompiledClasses.signature(methods[id]));
+            entries[id] = index == null ? new Entry(method, server)
+                    : new Entry(method, server, compiled, index);
+            List<Entry> overloads = byName.get(methods[id].getName());
+            if (overloads == null) {
+                overloads = new ArrayList<>(1);
+                byName.put(methods[id].getName(), overloads);
+            }
+            overloads.add(entries[id]);
+        }
+    }
+
+    /** Returns the fingerprint of the method table of the interface. */
+    long fingerprint() {
+        return table.fingerprint();
+    }
+
+    /**
+     Returns the entry of the method with the given identifier.
+
+     @throws StreamCorruptedException If there is no such method.
+     */
+    Entry entry(int id) throws StreamCorruptedException {
+        if (id < 0 || id >= entries.length) {
+            throw new StreamCorruptedException("Unknown method identifier " + id);
+        }
+        return entries[id];
+    }
+
+    /**
+     Returns the entry of the method with the given name and parameter types,
+     or <code>null</code> if the interface has no such method.
+     */
+    Entry entry(String name, Class<?>[] parameterTypes) {
+        List<Entry> overloads = byName.get(name);
+        if (overloads != null) {
+            for (Entry entry : overloads) {
+                if (Arrays.equals(entry.parameterTypes(), parameterTypes)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Method of the interface, with its handle and what serving it requires. */
+    static final class Entry {
+        private final RemoteInterface.RemoteMethod method;
+        private final Class<?>[] parameterTypes;
+        /**
+         Takes the arguments as an array, or <code>null</code> if the method
+         cannot be accessed or is called through a generated dispatcher.
+         */
+        private final MethodHandle handle;
+        /**
+         Takes the arguments as raw bits and returns the result as raw bits,
+         or <code>null</code> if the method cannot be accessed, is called
+         through a generated dispatcher, or has values which are not
+         primitive.
+         */
+        private final MethodHandle primitiveHandle;
+        private final IllegalAccessException inaccessible;
+        private final Object server;
+        private final RemoteDispatcher<Object> compiled;
+        /** The index of the method in the generated dispatcher. */
+        private final int index;
+        private final boolean remote;
+        private final boolean primitive;
+
+        /** Creates the entry of a method called through its handle. */
+        Entry(RemoteInterface.RemoteMethod method, Object server) {
+            this(method, server, null, -1);
+        }
+
+        /**
+         Creates the entry of a method.
+
+         @param compiled The dispatcher generated for the interface, or
+         <code>null</code> to call the method through its handle.
+         @param index The index of the method in the generated dispatcher.
+         */
+        Entry(RemoteInterface.RemoteMethod method, Object server, RemoteDispatcher<Object> compiled, int index) {
+            this.method = method;
+            this.server = server;
+            this.compiled = compiled;
+            this.index = index;
+            parameterTypes = method.parameterTypes();
+
+            primitive = Marshal.isPrimitive(method.method());
+
+            MethodHandle handle = null;
+            MethodHandle primitiveHandle = null;
+            IllegalAccessException inaccessible = null;
+            if (compiled == null) {
+                try {
+                    MethodHandle bound = unreflect(method.method()).bindTo(server);
+                    handle = bound.asSpreader(Object[].class, parameterTypes.length).asType(SPREAD_TYPE);
+                    if (primitive) {
+                        primitiveHandle = primitive(bound);
+                    }
+                } catch (IllegalAccessException e) {
+                    inaccessible = e;
+                }
+            }
+            this.handle = handle;
+            this.primitiveHandle = primitiveHandle;
+            this.inaccessible = inaccessible;
+            remote = method.returnsRemote();
+        }
+
+        /**
+         Adapts the handle of a method whose values are all primitive into a
+         handle taking its arguments as raw bits in a <code>long</code> array
+         and returning its result as raw bits.
+         */
+        private static MethodHandle primitive(MethodHandle target) {
+            MethodType type = target.type();
+            MethodHandle[] filters = new MethodHandle[type.parameterCount()];
+            for (int i = 0; i < filters.length; i++) {
+                MethodHandle element = MethodHandles.insertArguments(LONG_ELEMENT, 1, i);
+                filters[i] = MethodHandles.filterReturnValue(element, fromBits(type.parameterType(i)));
+            }
+            MethodHandle handle = MethodHandles.filterArguments(target, 0, filters);
+
+            Class<?> returnType = type.returnType();
+            if (returnType == float.class) {
+                handle = MethodHandles.filterReturnValue(handle, FLOAT_TO_RAW_INT_BITS);
+            } else if (returnType == double.class) {
+                handle = MethodHandles.filterReturnValue(handle, DOUBLE_TO_RAW_LONG_BITS);
+            }
+            // Integral values and characters are widened, booleans become 0
+            // or 1, and a void method returns zero.
+            handle = MethodHandles.explicitCastArguments(handle, handle.type().changeReturnType(long.class));
+            return MethodHandles.permuteArguments(handle, PRIMITIVE_TYPE, new int[filters.length]);
+        }
+
+        /** Returns a handle converting raw bits to a value of a primitive type. */
+        private static MethodHandle fromBits(Class<?> type) {
+            if (type == float.class) {
+                return MethodHandles.explicitCastArguments(INT_BITS_TO_FLOAT,
+                        MethodType.methodType(float.class, long.class));
+            } else if (type == double.class) {
+                return LONG_BITS_TO_DOUBLE;
+            }
+            return MethodHandles.explicitCastArguments(MethodHandles.identity(long.class),
+                    MethodType.methodType(type, long.class));
+        }
+
+        /**
+         Returns the handle of a method. A method of an interface which is
+         not public is reached through a lookup with private access to it.
+         */
+        private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+            try {
+                return MethodHandles.lookup().unreflect(method);
+            } catch (IllegalAccessException e) {
+                return MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup())
+                        .unreflect(method);
+            }
+        }
+
+        Method method() {
+            return method.method();
+        }
+
+        /** Returns the parameter types of the method. The array must not be modified. */
+        Class<?>[] parameterTypes() {
+            return parameterTypes;
+        }
+
+        /**
+         Returns <code>true</code> if the method can be called with its values
+         held as raw bits, through <code>invokePrimitive</code>.
+         */
+        boolean isPrimitive() {
+            return primitive;
+        }
+
+        /** Returns <code>true</code> if the result of the method is streamed in pages. */
+        boolean isStreamed() {
+            return method.isStreamed();
+        }
+
+        /**
+         Returns <code>true</code> if the method returns a remote interface,
+         whose results are exported and returned as stubs.
+         */
+        boolean isRemote() {
+            return remote;
+        }
+
+        /** Returns the index of the stream parameter of the method, or -1 if it has none. */
+        int uploadParameter() {
+            return method.uploadParameter();
+        }
+
+        /**
+         Checks that arguments decoded from a request can be passed to the
+         method, so that any exception thrown by <code>invoke</code> is thrown
+         by the server.
+
+         @throws IllegalAccessException If the method cannot be accessed.
+         @throws IllegalArgumentException If an argument is not of the type of
+         its parameter.
+         */
+        void check(Object[] args) throws IllegalAccessException {
+            if (handle == null && compiled == null) {
+                throw inaccessible;
+            }
+            if (args.length != parameterTypes.length) {
+                throw new IllegalArgumentException("Wrong number of arguments");
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] == null ? parameterTypes[i].isPrimitive()
+                        : !parameterTypes[i].isPrimitive() && !parameterTypes[i].isInstance(args[i])) {
+                    throw new IllegalArgumentException("Argument " + i + " is not of type "
+                            + parameterTypes[i].getName());
+                }
+            }
+        }
+
+        /**
+         Checks that the method can be called with arguments decoded as raw
+         bits.
+
+         @throws IllegalAccessException If the method cannot be accessed.
+         @throws IllegalArgumentException If the method is not primitive, or
+         the number of arguments is wrong.
+         */
+        void check(long[] args) throws IllegalAccessException {
+            if (handle == null && compiled == null) {
+                throw inaccessible;
+            }
+            if (!primitive || args.length != parameterTypes.length) {
+                throw new IllegalArgumentException("Arguments do not match " + method.method());
+            }
+        }
+
+        /**
+         Calls the method on the server. The arguments must have been checked.
+
+         @return The result, boxed if primitive, or <code>null</code> if the
+         method is <code>void</code>.
+         @throws Throwable Whatever the server throws.
+         */
+        Object invoke(Object[] args) throws Throwable {
+            if (compiled != null) {
+                return compiled.dispatch(server, index, args);
+            }
+            return (Object) handle.invokeExact(args);
+        }
+
+        /**
+         Calls the method on the server with its values held as raw bits. The
+         arguments must have been checked.
+
+         @return The result as raw bits, or zero if the method is
+         <code>void</code>.
+         @throws Throwable Whatever the server throws.
+         */
+        long invokePrimitive(long[] args) throws Throwable {
+            if (compiled != null) {
+                return compiled.dispatchPrimitive(server, index, args);
+            }
+            return (long) primitiveHandle.invokeExact(args);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ Objects served by a skeleton, by object identifier.
+
+ <p>
+ A skeleton serves the object it was created for under identifier zero, and
+ the objects returned by calls to remote interfaces under identifiers of
+ their own, all through the same listening endpoint. Requests carry the
+ identifier of the object they are addressed to in their message header, and
+ the stubs returned for exported objects carry it in turn. An object
+ returned more than once as the same interface is exported once, and keeps
+ its identifier.
+
+ <p>
+ There is no distributed garbage collection: exported objects are kept until
+ they are unexported, or until the skeleton stops, which unexports all of
+ them. Identifiers are never reused, so that a stub for an object which has
+ been unexported fails rather than reaching another object.
+ */
+final class ExportTable {
+
+    /** The identifier of the object the skeleton was created for. */
+    static final int PRIMARY = 0;
+
+    /** Dispatch tables of the exported objects, by identifier. */
+    private final Map<Integer, Dispatcher> dispatchers = new ConcurrentHashMap<>();
+    /** Identifiers of the exported objects, by object and interface. */
+    private final Map<Object, Map<Class<?>, Integer>> ids = new IdentityHashMap<>();
+    private int nextId = PRIMARY + 1;
+
+    /**
+     Creates the table of a skeleton.
+
+     @param interfaceClass The remote interface of the object the skeleton
+     was created for.
+     @param server The object the skeleton was created for.
+     */
+    ExportTable(Class<?> interfaceClass, Object server) {
+        dispatchers.put(PRIMARY, new Dispatcher(interfaceClass, server));
+        register(interfaceClass, server, PRIMARY);
+    }
+
+    /**
+     Returns the dispatch table of an object, or <code>null</code> if no
+     object is exported under the identifier.
+     */
+    Dispatcher get(int objectId) {
+        return dispatchers.get(objectId);
+    }
+
+    /**
+     Exports an object, unless it is already exported as the same interface.
+
+     @param interfaceClass The remote interface through which the object is
+     called.
+     @param server The object.
+     @return The identifier of the object.
+     */
+    synchronized int export(Class<?> interfaceClass, Object server) {
+        Map<Class<?>, Integer> byInterface = ids.get(server);
+        Integer id = byInterface == null ? null : byInterface.get(interfaceClass);
+        if (id != null) {
+            return id;
+        }
+        Dispatcher dispatcher = new Dispatcher(interfaceClass, server);
+        int objectId = nextId++;
+        dispatchers.put(objectId, dispatcher);
+        register(interfaceClass, server, objectId);
+        return objectId;
+    }
+
+    /**
+     Unexports an object, under all the interfaces it was exported as. The
+     object the skeleton was created for is never unexported.
+
+     @return <code>true</code> if the object was exported.
+     */
+    synchronized boolean unexport(Object server) {
+        Map<Class<?>, Integer> byInterface = ids.get(server);
+        if (byInterface == null) {
+            return false;
+        }
+        boolean removed = false;
+        Iterator<Integer> objectIds = byInterface.values().iterator();
+        while (objectIds.hasNext()) {
+            int objectId = objectIds.next();
+            if (objectId != PRIMARY) {
+                dispatchers.remove(objectId);
+                objectIds.remove();
+                removed = true;
+            }
+        }
+        if (byInterface.isEmpty()) {
+            ids.remove(server);
+        }
+        return removed;
+    }
+
+    /** Unexports every object but the one the skeleton was created for. */
+    synchronized void clear() {
+        for (Object server : new ArrayList<>(ids.keySet())) {
+            unexport(server);
+        }
+    }
+
+    private void register(Class<?> interfaceClass, Object server, int objectId) {
+        Map<Class<?>, Integer> byInterface = ids.get(server);
+        if (byInterface == null) {
+            byInterface = new HashMap<>(2);
+            ids.put(server, byInterface);
+        }
+        byInterface.put(interfaceClass, objectId);
+    }
+}
@@ -0,0 +1,83 @@
+package rmi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ Content of a file, passed to or returned from a remote method.
+
+ <p>
+ A remote method whose parameter or return type is <code>FileContent</code>
+ sends the bytes of the file rather than its name. The bytes are not part of
+ the message of the call: they follow it on the connection, as bulk data, and
+ are transferred from the file to the socket without being copied through
+ the heap. The receiving side transfers them from the socket into a new
+ temporary file, to which the <code>FileContent</code> it receives refers.
+
+ <p>
+ Temporary files received as arguments belong to the call: the skeleton
+ deletes them once the method has returned and its result has been sent. A
+ method which keeps the content should move the file elsewhere, which costs
+ no copy within the same file system. A temporary file received as a result
+ belongs to the caller, who should move it, or delete it by closing the
+ <code>FileContent</code>. Closing a <code>FileContent</code> created by the
+ application does nothing.
+
+ <p>
+ Since the file does not travel within the message of its call, its size is
+ not limited by the maximum frame size. A <code>FileContent</code> is only
+ sent as a file when it is itself the argument or the result; it is not
+ serializable, and cannot be sent within another object.
+ */
+public final class FileContent implements Closeable {
+
+    private final Path path;
+    /** <code>true</code> if the file was created when the content was received. */
+    private final boolean temporary;
+
+    /**
+     Creates the content of a file, to be sent as it is when the call is
+     made.
+
+     @param path The file.
+     @throws NullPointerException If <code>path</code> is <code>null</code>.
+     */
+    public FileContent(Path path) {
+        this(path, false);
+    }
+
+    /** Creates the content of a file, which is deleted when closed if it is temporary. */
+    FileContent(Path path, boolean temporary) {
+        if (path == null) {
+            throw new NullPointerException("Path is null");
+        }
+        this.path = path;
+        this.temporary = temporary;
+    }
+
+    /** Returns the file holding the content. */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     Deletes the temporary file into which the content was received, unless
+     it has been moved. Does nothing if the content was created by the
+     application.
+
+     @throws IOException If the file cannot be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (temporary) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "content of " + path;
+    }
+}
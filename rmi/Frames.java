@@ -0,0 +1,683 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ Message framing.
+
+ <p>
+ Every request and every response travels as one frame: a four-byte,
+ big-endian payload length followed by the payload. The payload is a message:
+ a binary message header followed by a self-contained object stream, carrying
+ its own stream header, so that a message can be decoded on its own once its
+ frame has been read completely. This is what lets the non-blocking transport
+ of the skeleton collect requests without dedicating a thread to each
+ connection.
+
+ <p>
+ The message header holds the call identifier, chosen by the stub and echoed
+ by the skeleton in the response, a byte of flags, the identifier of the
+ codec which encoded the objects, and the identifier of the object the
+ request is addressed to among those exported by the skeleton. Call
+ identifiers let responses be matched to requests when they do not come back
+ in order. The object identifier is zero for the object the skeleton was
+ created for, and in responses.
+
+ <p>
+ Messages are handled as whole frames, length prefix included, from the time
+ they are encoded until they are decoded, so that each one is written with a
+ single write. Messages are encoded into a buffer taken from a pool shared by
+ all threads, and copied out once, at their exact size. The pool keeps at
+ most <code>POOLED_BUFFERS</code> buffers of up to
+ <code>MAX_POOLED_BUFFER</code> bytes each, so that the memory it holds does
+ not grow with the number of threads which ever encoded a message. Frames
+ larger than <code>MAX_FRAME_SIZE</code> are refused on both sides: when
+ encoded, and before their payload is allocated when read.
+
+ <p>
+ Byte arrays, buffers and file contents passed to or returned from remote
+ methods are not copied into the message. They travel as bulk data, after
+ the frame, as described in <code>Bulk</code>; the length prefix of a frame
+ followed by bulk data carries the <code>BULK</code> flag in its top bit,
+ which is not part of the length. Frames are then written through the
+ buffered stream of the connection, and their bulk data through its socket
+ channel.
+
+ <p>
+ Messages whose objects take more than a threshold set by the sending side
+ have their objects compressed with the deflate algorithm of
+ <code>java.util.zip</code>, and carry the <code>COMPRESSED</code> flag.
+ The compressed objects are preceded by their uncompressed length, which is
+ held to the maximum frame size before anything is inflated. Messages below
+ the threshold, and messages which do not shrink, are sent as they are, so
+ small calls cost nothing more. The message header and the prelude of class
+ descriptors are never compressed, so that both can be read without
+ inflating the message.
+ */
+class Frames {
+
+    /** Size in bytes of the length prefix. */
+    static final int PREFIX_SIZE = 4;
+    /** Largest payload accepted, in bytes. */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /** Length prefix flag: the frame is followed by bulk data. */
+    static final int BULK = 0x80000000;
+    /** Size in bytes of the message header: call identifier, flags, codec and object identifier. */
+    static final int MESSAGE_HEADER_SIZE = 10;
+    /** Offset of the objects of a message within its frame. */
+    static final int BODY_OFFSET = PREFIX_SIZE + MESSAGE_HEADER_SIZE;
+    /** Largest encoding buffer returned to the pool once a message has been encoded. */
+    static final int MAX_POOLED_BUFFER = 1024 * 1024;
+    /** Number of encoding buffers kept in the pool. */
+    static final int POOLED_BUFFERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /** Encoding buffers not in use. */
+    private static final BlockingQueue<Buffer> buffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    /**
+     Request flag: the call may be served concurrently with the other calls
+     of its connection, and its response may overtake theirs.
+     */
+    static final int MULTIPLEXED = 0x01;
+    /**
+     Request flag: the message carries a batch of calls, preceded by their
+     number, and the response carries their outcomes in the same order.
+     */
+    static final int BATCH = 0x02;
+    /**
+     Response flag: the skeleton does not accept the codec of the request,
+     which was not served. The response is encoded with Java serialization.
+     */
+    static final int CODEC_REJECTED = 0x04;
+    /**
+     Request flag: calls are identified by their identifier in the method
+     table of the interface, rather than by name and parameter types.
+     */
+    static final int METHOD_IDS = 0x08;
+    /**
+     Request flag: the message starts with the fingerprint of the method table
+     of the stub. Response flag: the skeleton has the same method table, so
+     that later requests over the connection may carry method identifiers.
+     */
+    static final int METHOD_TABLE = 0x10;
+    /**
+     Message flag: the objects are preceded by a prelude of class
+     descriptors, and refer to the descriptors sent over the connection by
+     number, as described in <code>ClassCache</code>.
+     */
+    static final int CLASS_CACHE = 0x20;
+    /**
+     Message flag: the objects are compressed, and preceded by their length
+     once inflated.
+     */
+    static final int COMPRESSED = 0x40;
+    /**
+     Request flag: the message carries an operation on a streamed result or
+     argument rather than calls. It starts with the operation, one of the
+     <code>STREAM_</code> constants.
+     */
+    static final int STREAM = 0x80;
+
+    /**
+     Stream operation: asks for the next page of a streamed result. The
+     request holds the identifier of the cursor and the number of elements
+     requested, zero to release the cursor, and the response holds the
+     outcome of the request.
+     */
+    static final int STREAM_PAGE = 0;
+    /**
+     Stream operation: opens an upload for a stream argument. The response
+     holds the identifier of the upload.
+     */
+    static final int STREAM_OPEN = 1;
+    /**
+     Stream operation: sends a chunk of a stream argument. The request holds
+     the identifier of the upload, the number of the chunk, its length, as
+     described in <code>Upload</code>, and its bytes. The response holds
+     <code>false</code> if the upload wants no more chunks.
+     */
+    static final int STREAM_CHUNK = 2;
+
+    private Frames() {
+    }
+
+    /**
+     Encodes a message.
+
+     @param callId The call identifier.
+     @param flags The message flags.
+     @param codec The codec encoding the objects.
+     @param objects The objects, in the order in which they are to be read.
+     @return The frame.
+     @throws IOException If an object cannot be serialized.
+     */
+    static byte[] encode(int callId, int flags, Codec codec, final Object... objects) throws IOException {
+        return encode(callId, flags, codec, new Body() {
+            @Override
+            public void write(ObjectOutput out) throws IOException {
+                for (Object object : objects) {
+                    out.writeObject(object);
+                }
+            }
+        });
+    }
+
+    /**
+     Encodes a message whose contents are written by the caller.
+
+     @param callId The call identifier.
+     @param flags The message flags.
+     @param codec The codec encoding the contents.
+     @param body Writes the contents of the message.
+     @return The frame.
+     @throws IOException If the contents cannot be written.
+     */
+    static byte[] encode(int callId, int flags, Codec codec, Body body) throws IOException {
+        return encode(callId, flags, codec, body, null);
+    }
+
+    /**
+     Encodes a message for a connection, sharing class descriptors with the
+     earlier messages of the connection if the codec is Java serialization.
+
+     @param callId The call identifier.
+     @param flags The message flags.
+     @param codec The codec encoding the contents.
+     @param body Writes the contents of the message.
+     @param cache The class cache of the connection, or <code>null</code> for
+     a self-contained message.
+     @return The frame.
+     @throws IOException If the contents cannot be written, or if the frame
+     would exceed the maximum frame size.
+     */
+    static byte[] encode(int callId, int flags, Codec codec, Body body, ClassCache cache) throws IOException {
+        return encode(callId, flags, codec, body, cache, 0);
+    }
+
+    /**
+     Encodes a message for a connection, compressing its objects if they
+     take more than the given number of bytes.
+
+     @param callId The call identifier.
+     @param flags The message flags.
+     @param codec The codec encoding the contents.
+     @param body Writes the contents of the message.
+     @param cache The class cache of the connection, or <code>null</code> for
+     a self-contained message.
+     @param compressionThreshold The size in bytes above which the objects are
+     compressed, or zero for no compression.
+     @return The frame.
+     @throws IOException If the contents cannot be written, or if the frame
+     would exceed the maximum frame size before compression.
+     */
+    static byte[] encode(int callId, int flags, Codec codec, Body body, ClassCache cache, int compressionThreshold)
+            throws IOException {
+        return encode(callId, flags, codec, body, cache, compressionThreshold, null);
+    }
+
+    /**
+     Encodes a message whose bulk values are sent after its frame.
+
+     @param callId The call identifier.
+     @param flags The message flags.
+     @param codec The codec encoding the contents.
+     @param body Writes the contents of the message, adding its bulk values
+     to <code>bulk</code>.
+     @param cache The class cache of the connection, or <code>null</code> for
+     a self-contained message.
+     @param compressionThreshold The size in bytes above which the objects are
+     compressed, or zero for no compression.
+     @param bulk The bulk data of the message, or <code>null</code> if it has
+     none. It is cleared if the message cannot be encoded.
+     @return The frame, with the <code>BULK</code> flag if the body added bulk
+     values.
+     @throws IOException If the contents cannot be written, or if the frame
+     would exceed the maximum frame size before compression.
+     */
+    static byte[] encode(int callId, int flags, Codec codec, Body body, ClassCache cache, int compressionThreshold,
+            Bulk bulk) throws IOException {
+        if (cache != null && codec == Codecs.JAVA) {
+            flags |= CLASS_CACHE;
+        }
+
+        // A buffer is allocated when the pool is empty, which includes a body
+        // encoding a nested message while every pooled buffer is taken.
+        Buffer bytes = buffers.poll();
+        if (bytes == null) {
+            bytes = new Buffer();
+        }
+        try {
+            bytes.reset();
+            bytes.write(new byte[PREFIX_SIZE], 0, PREFIX_SIZE);
+            bytes.write(callId >>> 24);
+            bytes.write(callId >>> 16);
+            bytes.write(callId >>> 8);
+            bytes.write(callId);
+            bytes.write(flags);
+            bytes.write(codec.getId());
+            bytes.write(new byte[4], 0, 4);
+            if ((flags & CLASS_CACHE) != 0) {
+                cache.write(bytes, body);
+            } else {
+                ObjectOutput out = codec.newOutput(bytes);
+                body.write(out);
+                out.close();
+            }
+            byte[] frame = bytes.toFrame(compressionThreshold);
+            if (bulk != null && !bulk.isEmpty()) {
+                frame[0] |= (byte) (BULK >>> 24);
+            }
+            return frame;
+        } catch (IOException | RuntimeException e) {
+            if (bulk != null) {
+                bulk.clear();
+            }
+            throw e;
+        } finally {
+            if (bytes.capacity() > MAX_POOLED_BUFFER || !buffers.offer(bytes)) {
+                bytes.release();
+            }
+        }
+    }
+
+    /**
+     Opens a message for decoding its objects, with the codec named in its
+     header.
+
+     @param frame The frame.
+     @return An input from which the objects of the message can be read.
+     @throws IOException If the message is truncated, its codec is not
+     registered, or its objects do not start as the codec expects.
+     */
+    static ObjectInput decode(byte[] frame) throws IOException {
+        return decode(frame, null);
+    }
+
+    /**
+     Opens a message received over a connection for decoding its objects.
+
+     @param frame The frame.
+     @param cache The class cache of the connection, which has already taken
+     in the prelude of the message, or <code>null</code> if the connection has
+     none.
+     @return An input from which the objects of the message can be read.
+     @throws IOException If the message is truncated, its codec is not
+     registered, its objects cannot be inflated, or they do not start as the
+     codec expects.
+     */
+    static ObjectInput decode(byte[] frame, ClassCache cache) throws IOException {
+        Codec codec = Codecs.get(codec(frame));
+        if (codec == null) {
+            throw new StreamCorruptedException("Unknown codec " + codec(frame));
+        }
+        int flags = flags(frame);
+        int offset = BODY_OFFSET;
+        if ((flags & CLASS_CACHE) != 0) {
+            if (cache == null || codec != Codecs.JAVA) {
+                throw new StreamCorruptedException("Unexpected class descriptor prelude");
+            }
+            offset = ClassCache.objectsOffset(frame, frame.length);
+        }
+        InputStream in = (flags & COMPRESSED) != 0
+                ? new ByteArrayInputStream(inflate(frame, offset))
+                : new ByteArrayInputStream(frame, offset, frame.length - offset);
+        return (flags & CLASS_CACHE) != 0 ? cache.read(in) : codec.newInput(in);
+    }
+
+    /**
+     Returns the length of the objects of a message once inflated, which
+     bounds the number of values a request can hold.
+
+     @param frame The frame, which has already been opened with
+     <code>decode</code>.
+     @return The length of the objects, past any class descriptor prelude.
+     @throws StreamCorruptedException If the message is truncated.
+     */
+    static int objectsLength(byte[] frame) throws StreamCorruptedException {
+        int offset = (flags(frame) & CLASS_CACHE) != 0 ? ClassCache.objectsOffset(frame, frame.length) : BODY_OFFSET;
+        if ((flags(frame) & COMPRESSED) == 0) {
+            return frame.length - offset;
+        }
+        if (frame.length - offset < 4) {
+            throw new StreamCorruptedException("Truncated compressed message");
+        }
+        return readInt(frame, offset);
+    }
+
+    /**
+     Inflates the compressed objects of a message.
+
+     @param frame The frame.
+     @param offset The offset of the uncompressed length, which the
+     compressed objects follow.
+     @return The objects.
+     @throws StreamCorruptedException If the length is invalid, or the
+     objects do not inflate to exactly that length.
+     */
+    private static byte[] inflate(byte[] frame, int offset) throws StreamCorruptedException {
+        if (frame.length - offset < 4) {
+            throw new StreamCorruptedException("Truncated compressed message");
+        }
+        int length = readInt(frame, offset);
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid uncompressed length " + length);
+        }
+        // The declared length is only the peer's claim, so the output grows
+        // with what actually inflates rather than being allocated up front.
+        int compressed = frame.length - offset - 4;
+        byte[] objects = new byte[(int) Math.min(length, Math.max(256L, 4L * compressed))];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(frame, offset + 4, compressed);
+            int inflated = 0;
+            while (!inflater.finished()) {
+                if (inflated == objects.length) {
+                    if (inflated == length) {
+                        // The output is full: the stream must end here.
+                        if (inflater.inflate(new byte[1]) != 0 || !inflater.finished()) {
+                            throw new StreamCorruptedException("Compressed message does not match its length");
+                        }
+                        break;
+                    }
+                    objects = Arrays.copyOf(objects, (int) Math.min(length, 2L * objects.length));
+                }
+                int n = inflater.inflate(objects, inflated, objects.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new StreamCorruptedException("Compressed message does not match its length");
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new StreamCorruptedException("Compressed message does not match its length");
+            }
+            return objects;
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt compressed message: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Reads a big-endian integer from a frame. */
+    static int readInt(byte[] frame, int offset) {
+        return ((frame[offset] & 0xff) << 24) | ((frame[offset + 1] & 0xff) << 16)
+                | ((frame[offset + 2] & 0xff) << 8) | (frame[offset + 3] & 0xff);
+    }
+
+    /** Writes a big-endian integer into a frame. */
+    private static void writeInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 24);
+        frame[offset + 1] = (byte) (value >>> 16);
+        frame[offset + 2] = (byte) (value >>> 8);
+        frame[offset + 3] = (byte) value;
+    }
+
+    /**
+     Returns the call identifier of a message.
+
+     @throws StreamCorruptedException If the message is truncated.
+     */
+    static int callId(byte[] frame) throws StreamCorruptedException {
+        checkMessage(frame);
+        return ((frame[4] & 0xff) << 24) | ((frame[5] & 0xff) << 16) | ((frame[6] & 0xff) << 8)
+                | (frame[7] & 0xff);
+    }
+
+    /**
+     Sets the call identifier of an encoded message.
+     */
+    static void setCallId(byte[] frame, int callId) {
+        frame[4] = (byte) (callId >>> 24);
+        frame[5] = (byte) (callId >>> 16);
+        frame[6] = (byte) (callId >>> 8);
+        frame[7] = (byte) callId;
+    }
+
+    /**
+     Returns the identifier of the object a message is addressed to.
+
+     @throws StreamCorruptedException If the message is truncated.
+     */
+    static int objectId(byte[] frame) throws StreamCorruptedException {
+        checkMessage(frame);
+        return readInt(frame, 10);
+    }
+
+    /**
+     Sets the identifier of the object an encoded message is addressed to.
+     */
+    static void setObjectId(byte[] frame, int objectId) {
+        writeInt(frame, 10, objectId);
+    }
+
+    /**
+     Returns the flags of a message.
+
+     @throws StreamCorruptedException If the message is truncated.
+     */
+    static int flags(byte[] frame) throws StreamCorruptedException {
+        checkMessage(frame);
+        return frame[8] & 0xff;
+    }
+
+    /**
+     Returns the identifier of the codec of a message.
+
+     @throws StreamCorruptedException If the message is truncated.
+     */
+    static int codec(byte[] frame) throws StreamCorruptedException {
+        checkMessage(frame);
+        return frame[9] & 0xff;
+    }
+
+    private static void checkMessage(byte[] frame) throws StreamCorruptedException {
+        if (frame.length < BODY_OFFSET) {
+            throw new StreamCorruptedException("Truncated message header");
+        }
+    }
+
+    /**
+     Writes a frame and flushes the stream.
+
+     @param out The stream to write to.
+     @param frame The frame.
+     @throws IOException If the frame cannot be written.
+     */
+    static void write(OutputStream out, byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     Writes a frame followed by its bulk data, if it has any, and flushes the
+     stream.
+
+     @param out The buffered stream of the connection.
+     @param frame The frame.
+     @param bulk The bulk data of the frame, or <code>null</code> if it has
+     none.
+     @param channel The socket channel of the connection, to which the bulk
+     data is written.
+     @throws IOException If the frame or its bulk data cannot be written.
+     */
+    static void write(OutputStream out, byte[] frame, Bulk bulk, WritableByteChannel channel) throws IOException {
+        if (!hasBulk(frame)) {
+            write(out, frame);
+            return;
+        }
+        out.write(frame);
+        bulk.write(out, channel);
+    }
+
+    /** Returns <code>true</code> if a frame is followed by bulk data. */
+    static boolean hasBulk(byte[] frame) {
+        return (frame[0] & (BULK >>> 24)) != 0;
+    }
+
+    /**
+     Reads a complete frame.
+
+     @param in The stream to read from.
+     @return The frame, length prefix included.
+     @throws java.io.EOFException If the stream ends, including when it ends
+     cleanly before the first byte of the frame.
+     @throws IOException If the frame is corrupt or cannot be read.
+     */
+    static byte[] read(DataInputStream in) throws IOException {
+        byte[] frame = allocate(in.readInt());
+        in.readFully(frame, PREFIX_SIZE, frame.length - PREFIX_SIZE);
+        return frame;
+    }
+
+    /**
+     Reads a complete frame sent in response to a request.
+
+     @param in The stream to read from.
+     @return The frame, length prefix included.
+     @throws StaleConnectionException If the stream ends cleanly before the
+     first byte of the frame.
+     @throws IOException If the frame is corrupt or cannot be read.
+     */
+    static byte[] readResponse(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            throw new StaleConnectionException("Connection closed before the response", null);
+        }
+        byte[] frame = allocate((first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort());
+        in.readFully(frame, PREFIX_SIZE, frame.length - PREFIX_SIZE);
+        return frame;
+    }
+
+    /**
+     Allocates a frame, once its length prefix has been read, and fills in
+     the prefix.
+
+     @param prefix The length prefix, which may carry the <code>BULK</code>
+     flag.
+     @return The frame, whose payload is still to be read.
+     @throws StreamCorruptedException If the length is too large, or too
+     small for a message header.
+     */
+    static byte[] allocate(int prefix) throws StreamCorruptedException {
+        byte[] frame = new byte[PREFIX_SIZE + checkLength(prefix & ~BULK)];
+        writeInt(frame, 0, prefix);
+        return frame;
+    }
+
+    /**
+     Checks the length prefix of a frame before its payload is allocated.
+
+     @param length The length read from the prefix.
+     @return The length.
+     @throws StreamCorruptedException If the length is too small for a message
+     header, or too large.
+     */
+    static int checkLength(int length) throws StreamCorruptedException {
+        if (length < MESSAGE_HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    /**
+     Encoding buffer, with room for the length prefix of the frame at its
+     start, and the compressor used for its messages.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        private Deflater deflater;
+
+        Buffer() {
+            super(4096);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        /**
+         Copies out the frame, with its length prefix filled in, compressing
+         its objects if they take more than the threshold and shrink.
+
+         @param compressionThreshold The size in bytes above which the objects
+         are compressed, or zero for no compression.
+         @throws IOException If the frame exceeds the maximum frame size.
+         */
+        byte[] toFrame(int compressionThreshold) throws IOException {
+            int length = count - PREFIX_SIZE;
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("Message of " + length + " bytes exceeds the maximum frame size");
+            }
+            byte[] frame = null;
+            if (compressionThreshold > 0) {
+                int objects = (buf[8] & CLASS_CACHE) != 0 ? ClassCache.objectsOffset(buf, count) : BODY_OFFSET;
+                if (count - objects > compressionThreshold) {
+                    frame = compress(objects);
+                }
+            }
+            if (frame == null) {
+                frame = Arrays.copyOf(buf, count);
+            }
+            writeInt(frame, 0, frame.length - PREFIX_SIZE);
+            return frame;
+        }
+
+        /**
+         Compresses the objects of the message, which start at the given
+         offset.
+
+         @return The frame, whose length prefix is still to be filled in, or
+         <code>null</code> if the objects do not shrink.
+         */
+        private byte[] compress(int objects) {
+            if (deflater == null) {
+                deflater = new Deflater();
+            }
+            byte[] frame = new byte[count];
+            int start = objects + 4;
+            int end = start;
+            try {
+                deflater.setInput(buf, objects, count - objects);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (end >= frame.length) {
+                        return null;
+                    }
+                    end += deflater.deflate(frame, end, frame.length - end);
+                }
+            } finally {
+                deflater.reset();
+            }
+            System.arraycopy(buf, 0, frame, 0, objects);
+            frame[8] |= COMPRESSED;
+            writeInt(frame, objects, count - objects);
+            return Arrays.copyOf(frame, end);
+        }
+
+        /** Frees the compressor of a buffer which is not kept. */
+        void release() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /** Contents of a message, written to the output of its codec. */
+    interface Body {
+        void write(ObjectOutput out) throws IOException;
+    }
+}
@@ -0,0 +1,125 @@
+package rmi;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+
+/**
+ Superclass of generated stub classes.
+
+ <p>
+ Stub classes are generated at runtime by <code>StubGenerator</code>, or at
+ build time for interfaces marked with <code>Remote</code>. A generated class
+ implements each method of its remote interface by boxing the arguments into
+ an array and passing them, along with the index of the method, to
+ <code>invokeRemote</code>, which hands the call to the handler of the stub.
+ A method whose parameters and result are all primitive, or whose result is
+ <code>void</code>, is instead implemented by passing its arguments as raw
+ bits to <code>invokePrimitive</code>, as described in <code>Marshal</code>,
+ so that none of its values is boxed. Methods are numbered as described in <code>CompiledClasses</code>. The
+ methods of <code>Object</code> are implemented here, as the handler
+ implements them for proxies.
+
+ <p>
+ A stub is serialized as a reference to its handler, from which a stub is
+ created anew when it is deserialized, since classes generated at runtime
+ cannot be found by name. This class is not meant to be extended other than
+ by generated classes.
+ */
+public abstract class GeneratedStub implements Serializable {
+
+    private final Stub.StubInvocationHandler<?> handler;
+    /** The methods implemented by the generated class, by index. */
+    private final Method[] methods;
+
+    /**
+     Creates a stub.
+
+     @param handler The handler of the stub, as passed by the stub factory to
+     the constructor of the generated class.
+     */
+    protected GeneratedStub(Object handler) {
+        this.handler = (Stub.StubInvocationHandler<?>) handler;
+        this.methods = CompiledClasses.methods(this.handler.getInterfaceClass());
+    }
+
+    Stub.StubInvocationHandler<?> handler() {
+        return handler;
+    }
+
+    /**
+     Performs a remote call. Called by the methods of the generated class.
+
+     <p>
+     The exception the call fails with is thrown as it is, although it is not
+     declared here: it is either declared by the method called, or an
+     <code>RMIException</code>, as for proxies.
+
+     @param index The index of the method.
+     @param args The arguments, boxed if primitive.
+     @return The result, boxed if primitive.
+     */
+    protected final Object invokeRemote(int index, Object[] args) {
+        try {
+            return handler.invokeRemote(methods[index], args);
+        } catch (Exception e) {
+            throw GeneratedStub.<RuntimeException>rethrow(e);
+        }
+    }
+
+    /**
+     Performs a remote call to a method whose parameters and result are all
+     primitive, with its values held as raw bits. Called by the methods of
+     the generated class. Exceptions are thrown as by
+     <code>invokeRemote</code>.
+
+     @param index The index of the method.
+     @param args The arguments, as raw bits.
+     @return The result as raw bits, or zero if the method is
+     <code>void</code>.
+     */
+    protected final long invokePrimitive(int index, long[] args) {
+        try {
+            return handler.invokePrimitive(methods[index], args);
+        } catch (Exception e) {
+            throw GeneratedStub.<RuntimeException>rethrow(e);
+        }
+    }
+
+    /** Throws an exception without declaring it. */
+    private static <E extends Exception> E rethrow(Exception e) throws E {
+        throw (E) e;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return handler.stubEquals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return handler.stubHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return handler.stubToString();
+    }
+
+    /** Replaces the stub by a reference to its handler when it is serialized. */
+    protected final Object writeReplace() {
+        return new Reference(handler);
+    }
+
+    /** Serialized form of a generated stub. */
+    private static final class Reference implements Serializable {
+        private final Stub.StubInvocationHandler<?> handler;
+
+        Reference(Stub.StubInvocationHandler<?> handler) {
+            this.handler = handler;
+        }
+
+        private Object readResolve() {
+            return Stub.newStub(handler);
+        }
+    }
+}
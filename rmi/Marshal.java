@@ -0,0 +1,360 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ Encoding of arguments and results, driven by the method signature.
+
+ <p>
+ Values of primitive types are written as raw fixed-width values, with the
+ primitive methods of the codec output, rather than as serialized wrapper
+ objects with their class descriptors. All other values are written as
+ objects. As both sides know the signature of the method, nothing in the
+ message says which encoding a value uses.
+
+ <p>
+ Values declared as <code>byte[]</code>, <code>ByteBuffer</code> or
+ <code>FileContent</code> are bulk data: they are not written into the
+ message, which holds their index among the bulk values of the message, or
+ -1 for <code>null</code>. Their bytes follow the frame of the message, as
+ described in <code>Bulk</code>, and are received into an array of their
+ exact size, a new direct buffer, or a new temporary file, as described in
+ <code>FileContent</code>.
+
+ <p>
+ A value declared as <code>InputStream</code> is sent separately from the
+ call, as described in <code>Upload</code>; the call carries the identifier
+ of its upload, or -1 for <code>null</code>.
+
+ <p>
+ The calls of a method whose parameters and result are all primitive, or
+ whose result is <code>void</code>, can also be marshalled without boxing,
+ with each value held as raw bits in a <code>long</code>: integral values
+ and characters widened, booleans as 0 or 1, floats as the bits given by
+ <code>Float.floatToRawIntBits</code>, widened, and doubles as the bits given
+ by <code>Double.doubleToRawLongBits</code>. The bytes written are the same
+ as for boxed values, so either side may use either form.
+ */
+final class Marshal {
+
+    private Marshal() {
+    }
+
+    /**
+     Writes the arguments of a call.
+
+     @param out The output.
+     @param types The parameter types of the method.
+     @param args The arguments, or <code>null</code> if the method has no
+     parameters.
+     @param bulk The bulk data of the message, or <code>null</code> if it
+     cannot have any.
+     @throws IOException If an argument cannot be written.
+     */
+    static void writeArguments(ObjectOutput out, Class<?>[] types, Object[] args, Bulk bulk) throws IOException {
+        for (int i = 0; i < types.length; i++) {
+            writeValue(out, types[i], args[i], bulk);
+        }
+    }
+
+    /**
+     Reads the arguments of a call.
+
+     @param in The input.
+     @param types The parameter types of the method.
+     @param bulk The bulk data received after the message.
+     @return The arguments.
+     @throws IOException If an argument cannot be read. The temporary files
+     of the arguments already read are then deleted.
+     @throws ClassNotFoundException If the class of an argument cannot be
+     found.
+     */
+    static Object[] readArguments(ObjectInput in, Class<?>[] types, Bulk bulk)
+            throws IOException, ClassNotFoundException {
+        Object[] args = new Object[types.length];
+        boolean complete = false;
+        try {
+            for (int i = 0; i < types.length; i++) {
+                args[i] = readValue(in, types[i], bulk);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                discard(args);
+            }
+        }
+        return args;
+    }
+
+    /**
+     Returns <code>true</code> if the calls of a method can be marshalled as
+     raw bits: its parameter types are primitive, and its return type is
+     primitive or <code>void</code>.
+     */
+    static boolean isPrimitive(Method method) {
+        if (!method.getReturnType().isPrimitive()) {
+            return false;
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            if (!type.isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     Writes the arguments of a call to a method whose parameter types are
+     all primitive, held as raw bits.
+
+     @param out The output.
+     @param types The parameter types of the method.
+     @param args The arguments.
+     @throws IOException If an argument cannot be written.
+     */
+    static void writePrimitives(ObjectOutput out, Class<?>[] types, long[] args) throws IOException {
+        for (int i = 0; i < types.length; i++) {
+            writePrimitive(out, types[i], args[i]);
+        }
+    }
+
+    /**
+     Reads the arguments of a call to a method whose parameter types are all
+     primitive, as raw bits.
+
+     @param in The input.
+     @param types The parameter types of the method.
+     @return The arguments.
+     @throws IOException If an argument cannot be read.
+     */
+    static long[] readPrimitives(ObjectInput in, Class<?>[] types) throws IOException {
+        long[] args = new long[types.length];
+        for (int i = 0; i < types.length; i++) {
+            args[i] = readPrimitive(in, types[i]);
+        }
+        return args;
+    }
+
+    /**
+     Writes a primitive value held as raw bits.
+
+     @param out The output.
+     @param type The primitive type of the value.
+     @param bits The raw bits of the value.
+     @throws IOException If the value cannot be written.
+     */
+    static void writePrimitive(ObjectOutput out, Class<?> type, long bits) throws IOException {
+        if (type == Integer.TYPE || type == Float.TYPE) {
+            out.writeInt((int) bits);
+        } else if (type == Long.TYPE || type == Double.TYPE) {
+            out.writeLong(bits);
+        } else if (type == Boolean.TYPE) {
+            out.writeBoolean(bits != 0);
+        } else if (type == Byte.TYPE) {
+            out.writeByte((int) bits);
+        } else if (type == Short.TYPE) {
+            out.writeShort((int) bits);
+        } else if (type == Character.TYPE) {
+            out.writeChar((int) bits);
+        } else {
+            throw new IllegalArgumentException("Cannot write a value of type " + type);
+        }
+    }
+
+    /**
+     Reads a primitive value as raw bits.
+
+     @param in The input.
+     @param type The primitive type of the value.
+     @return The raw bits of the value.
+     @throws IOException If the value cannot be read.
+     */
+    static long readPrimitive(ObjectInput in, Class<?> type) throws IOException {
+        if (type == Integer.TYPE || type == Float.TYPE) {
+            return in.readInt();
+        } else if (type == Long.TYPE || type == Double.TYPE) {
+            return in.readLong();
+        } else if (type == Boolean.TYPE) {
+            return in.readBoolean() ? 1 : 0;
+        } else if (type == Byte.TYPE) {
+            return in.readByte();
+        } else if (type == Short.TYPE) {
+            return in.readShort();
+        } else if (type == Character.TYPE) {
+            return in.readChar();
+        } else {
+            throw new IllegalArgumentException("Cannot read a value of type " + type);
+        }
+    }
+
+    /**
+     Writes a value of the given type.
+
+     @param out The output.
+     @param type The declared type of the value. A primitive value is written
+     raw, and must not be <code>null</code>.
+     @param value The value, boxed if the type is primitive.
+     @param bulk The bulk data of the message, to which bulk values are
+     added, or <code>null</code> if it cannot have any.
+     @throws IOException If the value cannot be written.
+     */
+    static void writeValue(ObjectOutput out, Class<?> type, Object value, Bulk bulk) throws IOException {
+        if (type == byte[].class || type == ByteBuffer.class || type == FileContent.class) {
+            writeBulk(out, value, bulk);
+        } else if (type == InputStream.class) {
+            writeUpload(out, value);
+        } else if (!type.isPrimitive()) {
+            out.writeObject(value);
+        } else if (type == Integer.TYPE) {
+            out.writeInt((Integer) value);
+        } else if (type == Long.TYPE) {
+            out.writeLong((Long) value);
+        } else if (type == Double.TYPE) {
+            out.writeDouble((Double) value);
+        } else if (type == Boolean.TYPE) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == Float.TYPE) {
+            out.writeFloat((Float) value);
+        } else if (type == Byte.TYPE) {
+            out.writeByte((Byte) value);
+        } else if (type == Short.TYPE) {
+            out.writeShort((Short) value);
+        } else if (type == Character.TYPE) {
+            out.writeChar((Character) value);
+        } else {
+            throw new IllegalArgumentException("Cannot write a value of type " + type);
+        }
+    }
+
+    /**
+     Reads a value of the given type.
+
+     @param in The input.
+     @param type The declared type of the value.
+     @param bulk The bulk data received after the message, or
+     <code>null</code> if there was none.
+     @return The value, boxed if the type is primitive.
+     @throws IOException If the value cannot be read.
+     @throws ClassNotFoundException If the class of the value cannot be found.
+     */
+    static Object readValue(ObjectInput in, Class<?> type, Bulk bulk) throws IOException, ClassNotFoundException {
+        if (type == byte[].class || type == ByteBuffer.class || type == FileContent.class) {
+            return readBulk(in, type, bulk);
+        } else if (type == InputStream.class) {
+            long uploadId = in.readLong();
+            return uploadId < 0 ? null : (Object) uploadId;
+        } else if (!type.isPrimitive()) {
+            return in.readObject();
+        } else if (type == Integer.TYPE) {
+            return in.readInt();
+        } else if (type == Long.TYPE) {
+            return in.readLong();
+        } else if (type == Double.TYPE) {
+            return in.readDouble();
+        } else if (type == Boolean.TYPE) {
+            return in.readBoolean();
+        } else if (type == Float.TYPE) {
+            return in.readFloat();
+        } else if (type == Byte.TYPE) {
+            return in.readByte();
+        } else if (type == Short.TYPE) {
+            return in.readShort();
+        } else if (type == Character.TYPE) {
+            return in.readChar();
+        } else {
+            throw new IllegalArgumentException("Cannot read a value of type " + type);
+        }
+    }
+
+    /**
+     Writes the index of a bulk value, which is added to the bulk data of
+     the message.
+
+     @throws IOException If the message cannot carry bulk data, or the file
+     of a file content cannot be opened.
+     */
+    private static void writeBulk(ObjectOutput out, Object value, Bulk bulk) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        if (bulk == null) {
+            throw new IOException("Bulk data can only be sent as the argument or the result of a call");
+        }
+        if (value instanceof byte[]) {
+            out.writeInt(bulk.add((byte[]) value));
+        } else if (value instanceof ByteBuffer) {
+            out.writeInt(bulk.add((ByteBuffer) value));
+        } else {
+            out.writeInt(bulk.add((FileContent) value));
+        }
+    }
+
+    /**
+     Reads the index of a bulk value, and takes the value out of the bulk
+     data received after the message.
+
+     @throws StreamCorruptedException If the value is not among the bulk
+     data, or is not of the given type.
+     */
+    private static Object readBulk(ObjectInput in, Class<?> type, Bulk bulk) throws IOException {
+        int index = in.readInt();
+        if (index == -1) {
+            return null;
+        }
+        if (bulk == null) {
+            throw new StreamCorruptedException("Bulk value " + index + " without bulk data");
+        }
+        if (type == byte[].class) {
+            return bulk.takeBytes(index);
+        } else if (type == ByteBuffer.class) {
+            return bulk.takeBuffer(index);
+        } else {
+            return bulk.takeFile(index);
+        }
+    }
+
+    /**
+     Deletes the temporary files of the file contents among received
+     arguments, unless the method they were passed to moved them.
+
+     @param args The arguments, or <code>null</code> if they were not read.
+     */
+    static void discard(Object[] args) {
+        if (args == null) {
+            return;
+        }
+        for (Object arg : args) {
+            if (arg instanceof FileContent) {
+                try {
+                    ((FileContent) arg).close();
+                } catch (IOException e) {
+                    // The file is left behind in the temporary directory.
+                }
+            }
+        }
+    }
+
+    /**
+     Writes the identifier of the upload of a stream argument.
+
+     @param value The identifier, or <code>null</code>.
+     @throws IOException If the stream has not been opened as an upload, as
+     for calls which do not support stream arguments.
+     */
+    private static void writeUpload(ObjectOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeLong(-1);
+        } else if (value instanceof Long) {
+            out.writeLong((Long) value);
+        } else {
+            throw new IOException("InputStream arguments are only supported by synchronous calls");
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package rmi;
+
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ Table of the methods of a remote interface, by compact identifier.
+
+ <p>
+ The methods of the interface, including inherited methods, are sorted by
+ signature and numbered from zero, so that the stub and the skeleton of the
+ same interface build the same table independently. Each table has a
+ fingerprint, computed from the signatures and return types of its methods.
+ The first request a stub sends over a connection identifies its calls by name
+ and parameter types, and carries the fingerprint of the table of the stub;
+ if the skeleton's table has the same fingerprint, it says so in the response,
+ and later requests for the interface over the connection carry only method
+ identifiers. Stubs of several interfaces share connections, so each
+ connection records the tables agreed over it in an <code>Agreed</code> set.
+ */
+final class MethodTable {
+
+    private static final ClassValue<MethodTable> tables = new ClassValue<MethodTable>() {
+        @Override
+        protected MethodTable computeValue(Class<?> type) {
+            return new MethodTable(type);
+        }
+    };
+
+    private final Method[] methods;
+    private final Map<Method, Integer> ids = new HashMap<>();
+    private final long fingerprint;
+
+    private MethodTable(Class<?> interfaceClass) {
+        // Methods inherited from several interfaces appear once per interface,
+        // but are a single remote method.
+        Map<String, Method> bySignature = new TreeMap<>();
+        for (Method method : interfaceClass.getMethods()) {
+            String signature = signature(method);
+            if (!bySignature.containsKey(signature)) {
+                try {
+                    bySignature.put(signature, interfaceClass.getMethod(method.getName(), method.getParameterTypes()));
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        methods = bySignature.values().toArray(new Method[0]);
+
+        long hash = 0xcbf29ce484222325L;
+        for (String signature : bySignature.keySet()) {
+            Method method = bySignature.get(signature);
+            String entry = signature + method.getReturnType().getName() + ';';
+            for (int i = 0; i < entry.length(); i++) {
+                hash = (hash ^ entry.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        fingerprint = hash == 0 ? 1 : hash;
+
+        List<String> signatures = new ArrayList<>(bySignature.keySet());
+        for (Method method : interfaceClass.getMethods()) {
+            ids.put(method, signatures.indexOf(signature(method)));
+        }
+    }
+
+    private static String signature(Method method) {
+        return method.getName() + Arrays.toString(method.getParameterTypes());
+    }
+
+    /** Returns the method table of a remote interface. */
+    static MethodTable of(Class<?> interfaceClass) {
+        return tables.get(interfaceClass);
+    }
+
+    /**
+     Returns the fingerprint of the table. The fingerprint is never zero, so
+     that zero can stand for no table.
+     */
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /** Returns the identifier of a method, or -1 if it is not in the table. */
+    int id(Method method) {
+        Integer id = ids.get(method);
+        return id == null ? -1 : id;
+    }
+
+    /** Returns the methods of the table, in the order of their identifiers. */
+    Method[] methods() {
+        return methods.clone();
+    }
+
+    /**
+     Returns the method with the given identifier.
+
+     @throws StreamCorruptedException If there is no such method.
+     */
+    Method method(int id) throws StreamCorruptedException {
+        if (id < 0 || id >= methods.length) {
+            throw new StreamCorruptedException("Unknown method identifier " + id);
+        }
+        return methods[id];
+    }
+
+    /**
+     Fingerprints of the method tables agreed with the skeleton over a
+     connection. A connection serves the few interfaces its stubs use, so
+     the set holds a fixed number of fingerprints, and once it is full each
+     new one replaces the oldest. A table whose fingerprint was replaced is
+     agreed again by its next request.
+     */
+    static final class Agreed {
+        /** Number of fingerprints held. */
+        static final int CAPACITY = 8;
+
+        private final long[] fingerprints = new long[CAPACITY];
+        private int next = 0;
+
+        /** Returns <code>true</code> if the table with the given fingerprint has been agreed. */
+        synchronized boolean contains(long fingerprint) {
+            // Unused entries are zero, which is never a fingerprint.
+            for (long agreed : fingerprints) {
+                if (agreed == fingerprint) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Records that the skeleton has the table with the given fingerprint. */
+        synchronized void add(long fingerprint) {
+            if (!contains(fingerprint)) {
+                fingerprints[next] = fingerprint;
+                next = (next + 1) % CAPACITY;
+            }
+        }
+    }
+}
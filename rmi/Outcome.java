@@ -0,0 +1,221 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+
+/**
+ Outcome of a call, as carried by a response.
+
+ <p>
+ Each outcome starts with a status byte, written as a raw value rather than
+ as an object. The status says whether the call failed, in which case the
+ exception follows, and otherwise whether a result follows; the result is
+ encoded according to the return type of the method, as described in
+ <code>Marshal</code>. The result of a method whose result is streamed is
+ the first page of its cursor, as described in <code>Cursor</code>. The
+ length of the response is given by its frame.
+
+ <p>
+ The primitive result of a method marshalled as raw bits, as described in
+ <code>Marshal</code>, is held as raw bits rather than boxed.
+ */
+final class Outcome {
+
+    /** Status flag: the call failed, and the exception follows. */
+    static final int FAILED = 0x01;
+    /** Status flag: the method is void, and nothing follows. */
+    static final int VOID = 0x02;
+    /** Status flag: the result is a stub for a remote object created by the call. */
+    static final int REMOTE = 0x04;
+    /** Status flag: the result is streamed, and its first page follows. */
+    static final int STREAM = 0x08;
+
+    private final int status;
+    private final Object value;
+    /** <code>true</code> if the result is primitive and held as raw bits. */
+    private final boolean raw;
+    private final long bits;
+
+    private Outcome(int status, Object value) {
+        this(status, value, false, 0);
+    }
+
+    private Outcome(int status, Object value, boolean raw, long bits) {
+        this.status = status;
+        this.value = value;
+        this.raw = raw;
+        this.bits = bits;
+    }
+
+    /** Creates the outcome of a call which returned normally. */
+    static Outcome returned(Method method, Object result) {
+        return method.getReturnType() == Void.TYPE ? new Outcome(VOID, null) : new Outcome(0, result);
+    }
+
+    /**
+     Creates the outcome of a call which returned normally, with its result
+     held as raw bits.
+     */
+    static Outcome returnedPrimitive(Method method, long bits) {
+        return method.getReturnType() == Void.TYPE ? new Outcome(VOID, null) : new Outcome(0, null, true, bits);
+    }
+
+    /** Creates the outcome of a call which returned a stub for a new remote object. */
+    static Outcome remote(Object stub) {
+        return new Outcome(REMOTE, stub);
+    }
+
+    /** Creates the outcome of a call whose result is streamed, or of a request for a page of it. */
+    static Outcome streamed(Cursor.Page page) {
+        return new Outcome(STREAM, page);
+    }
+
+    /** Creates the outcome of a call which failed. */
+    static Outcome failed(Throwable exception) {
+        return new Outcome(FAILED, exception);
+    }
+
+    /** Returns <code>true</code> if the call failed. */
+    boolean isFailed() {
+        return (status & FAILED) != 0;
+    }
+
+    /** Returns <code>true</code> if the result is streamed. */
+    boolean isStreamed() {
+        return (status & STREAM) != 0;
+    }
+
+    /**
+     Returns the result of the call, <code>null</code> for a void method, the
+     page for a streamed result, or the exception if the call failed.
+     */
+    Object getValue() {
+        return value;
+    }
+
+    /**
+     Returns the raw bits of the primitive result of the call, as read by
+     <code>readPrimitive</code>, or zero for a void method.
+     */
+    long getBits() {
+        return bits;
+    }
+
+    /**
+     Writes the outcome.
+
+     @param out The output.
+     @param returnType The return type of the method. Ignored if the call
+     failed, or if the method is void.
+     @throws IOException If the result or the exception cannot be written.
+     */
+    void write(ObjectOutput out, Class<?> returnType) throws IOException {
+        write(out, returnType, null);
+    }
+
+    /**
+     Writes the outcome of a call whose result may be bulk data.
+
+     @param out The output.
+     @param returnType The return type of the method. Ignored if the call
+     failed, or if the method is void.
+     @param bulk The bulk data of the response, or <code>null</code> if it
+     cannot have any.
+     @throws IOException If the result or the exception cannot be written.
+     */
+    void write(ObjectOutput out, Class<?> returnType, Bulk bulk) throws IOException {
+        out.writeByte(status);
+        if ((status & FAILED) != 0) {
+            out.writeObject(value);
+        } else if ((status & STREAM) != 0) {
+            ((Cursor.Page) value).write(out);
+        } else if ((status & VOID) == 0) {
+            if (raw) {
+                Marshal.writePrimitive(out, returnType, bits);
+            } else {
+                Marshal.writeValue(out, returnType, value, bulk);
+            }
+        }
+    }
+
+    /**
+     Reads an outcome.
+
+     @param in The input.
+     @param returnType The return type of the method.
+     @return The outcome.
+     @throws IOException If the outcome cannot be read, or does not match the
+     return type.
+     @throws ClassNotFoundException If the class of the result or of the
+     exception cannot be found.
+     */
+    static Outcome read(ObjectInput in, Class<?> returnType) throws IOException, ClassNotFoundException {
+        return read(in, returnType, null);
+    }
+
+    /**
+     Reads the outcome of a call whose result may be bulk data.
+
+     @param in The input.
+     @param returnType The return type of the method.
+     @param bulk The bulk data received after the response, or
+     <code>null</code> if there was none.
+     @return The outcome.
+     @throws IOException If the outcome cannot be read, or does not match the
+     return type.
+     @throws ClassNotFoundException If the class of the result or of the
+     exception cannot be found.
+     */
+    static Outcome read(ObjectInput in, Class<?> returnType, Bulk bulk) throws IOException, ClassNotFoundException {
+        return read(in.readUnsignedByte(), in, returnType, bulk);
+    }
+
+    /** Reads the rest of an outcome, after its status. */
+    private static Outcome read(int status, ObjectInput in, Class<?> returnType, Bulk bulk)
+            throws IOException, ClassNotFoundException {
+        if ((status & FAILED) != 0) {
+            Object exception = in.readObject();
+            if (!(exception instanceof Throwable)) {
+                throw new StreamCorruptedException("Call failed without an exception");
+            }
+            return new Outcome(status, exception);
+        }
+        if ((status & STREAM) != 0) {
+            if (!Cursor.isStreamed(returnType)) {
+                throw new StreamCorruptedException("Streamed result does not match return type " + returnType);
+            }
+            return new Outcome(status, Cursor.Page.read(in));
+        }
+        if ((status & VOID) != 0 || returnType == Void.TYPE) {
+            if ((status & VOID) == 0 || returnType != Void.TYPE) {
+                throw new StreamCorruptedException("Result does not match return type " + returnType);
+            }
+            return new Outcome(status, null);
+        }
+        return new Outcome(status, Marshal.readValue(in, returnType, bulk));
+    }
+
+    /**
+     Reads the outcome of a call to a method marshalled as raw bits, keeping
+     its result as raw bits.
+
+     @param in The input.
+     @param returnType The return type of the method, primitive or
+     <code>void</code>.
+     @return The outcome.
+     @throws IOException If the outcome cannot be read, or does not match the
+     return type.
+     @throws ClassNotFoundException If the class of the exception cannot be
+     found.
+     */
+    static Outcome readPrimitive(ObjectInput in, Class<?> returnType) throws IOException, ClassNotFoundException {
+        int status = in.readUnsignedByte();
+        if ((status & (FAILED | STREAM | VOID)) != 0 || returnType == Void.TYPE) {
+            return read(status, in, returnType, null);
+        }
+        return new Outcome(status, null, true, Marshal.readPrimitive(in, returnType));
+    }
+}
@@ -0,0 +1,100 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ Records the calls made on a proxy for a remote interface, instead of
+ performing them.
+
+ <p>
+ Recorded calls return the default value of their return type: zero,
+ <code>false</code> or <code>null</code>. The methods of
+ <code>Object</code> are not recorded; they behave as for any other object,
+ based on the identity of the proxy.
+ */
+class Recorder implements InvocationHandler {
+
+    private final List<Method> methods = new ArrayList<>();
+    private final List<Object[]> arguments = new ArrayList<>();
+
+    /**
+     Creates a proxy whose calls are recorded by this recorder.
+
+     @param c The remote interface.
+     @return The proxy.
+     */
+    <T> T proxy(Class<T> c) {
+        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "Recorder for " + proxy.getClass().getInterfaces()[0].getCanonicalName();
+            }
+        }
+
+        methods.add(method);
+        arguments.add(args);
+        return defaultValue(method.getReturnType());
+    }
+
+    /** Returns the number of calls recorded. */
+    int size() {
+        return methods.size();
+    }
+
+    /** Returns the method of a recorded call. */
+    Method method(int index) {
+        return methods.get(index);
+    }
+
+    /** Returns the arguments of a recorded call, or <code>null</code> if there are none. */
+    Object[] arguments(int index) {
+        return arguments.get(index);
+    }
+
+    /** Removes the calls recorded after the first <code>size</code> ones. */
+    void truncate(int size) {
+        methods.subList(size, methods.size()).clear();
+        arguments.subList(size, arguments.size()).clear();
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == Void.TYPE) {
+            return null;
+        }
+        if (type == Boolean.TYPE) {
+            return false;
+        }
+        if (type == Character.TYPE) {
+            return '\0';
+        }
+        if (type == Byte.TYPE) {
+            return (byte) 0;
+        }
+        if (type == Short.TYPE) {
+            return (short) 0;
+        }
+        if (type == Integer.TYPE) {
+            return 0;
+        }
+        if (type == Long.TYPE) {
+            return 0L;
+        }
+        if (type == Float.TYPE) {
+            return 0f;
+        }
+        return 0d;
+    }
+}
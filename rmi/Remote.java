@@ -0,0 +1,34 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ Marks a remote interface whose stub class and skeleton dispatcher are
+ generated at build time.
+
+ <p>
+ When the <code>rmic.RemoteProcessor</code> annotation processor runs over
+ the sources, it checks that every method of each annotated interface is
+ marked as throwing <code>RMIException</code>, and generates two classes in
+ the package of the interface: a stub class, named after the interface with
+ the suffix <code>_Stub</code>, and a dispatcher, with the suffix
+ <code>_Dispatcher</code>. The names of nested interfaces are prefixed with
+ those of their enclosing classes, separated by underscores.
+ <code>Stub</code> creates stubs of the generated stub class, and
+ <code>Skeleton</code> calls the server through the generated dispatcher,
+ whenever they are present, so that neither uses proxies nor reflection to
+ carry out calls.
+
+ <p>
+ Interfaces without the annotation, or whose classes were not generated,
+ are served as before.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Remote {
+}
@@ -0,0 +1,127 @@
+package rmi;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ Stub side of a streamed result.
+
+ <p>
+ The cursor holds the page being read, and requests the next page as soon as
+ it has one, so that at most one request is in progress and at most two pages
+ are held at a time.
+ */
+final class RemoteCursor<T> implements RemoteIterator<T> {
+
+    private final Pages pages;
+    private final long id;
+    /** The elements of the current page not yet returned. */
+    private Iterator<Object> current;
+    /** The next page, or <code>null</code> if the current page is the last. */
+    private CompletableFuture<Cursor.Page> next;
+
+    /**
+     Creates the cursor over a streamed result.
+
+     @param pages Fetches the pages of the cursor from the skeleton.
+     @param first The first page, sent with the response to the call.
+     */
+    RemoteCursor(Pages pages, Cursor.Page first) {
+        this.pages = pages;
+        this.id = first.getCursorId();
+        take(first);
+    }
+
+    /** Makes a page the current page, and requests the next one. */
+    private void take(Cursor.Page page) {
+        current = page.getElements().iterator();
+        next = page.hasMore() ? pages.fetch(id, Cursor.PAGE_SIZE) : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (next == null) {
+                return false;
+            }
+            Cursor.Page page;
+            try {
+                page = next.get();
+            } catch (ExecutionException e) {
+                next = null;
+                throw new RemoteIterationException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteIterationException(new RMIException("Interrupted while waiting for a page", e));
+            }
+            take(page);
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return (T) current.next();
+    }
+
+    @Override
+    public void close() {
+        current = Collections.emptyIterator();
+        if (next == null) {
+            return;
+        }
+        // The cursor is released once the page requested is in, unless it
+        // was the last.
+        next.whenComplete(new BiConsumer<Cursor.Page, Throwable>() {
+            @Override
+            public void accept(Cursor.Page page, Throwable failure) {
+                if (failure == null && page.hasMore()) {
+                    pages.fetch(id, 0);
+                }
+            }
+        });
+        next = null;
+    }
+
+    /** Returns a sequential stream over the elements, which closes the cursor when closed. */
+    Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+    }
+
+    @Override
+    public String toString() {
+        return "remote iterator " + id;
+    }
+
+    /** Fetches pages from the skeleton. */
+    interface Pages {
+        /**
+         Requests a page.
+
+         @param cursorId The identifier of the cursor.
+         @param max The number of elements requested, or zero to release the
+         cursor.
+         @return The future of the page, completed exceptionally with the
+         exception thrown by the iterator of the server, or with an
+         <code>RMIException</code> if the page cannot be fetched.
+         */
+        CompletableFuture<Cursor.Page> fetch(long cursorId, int max);
+    }
+}
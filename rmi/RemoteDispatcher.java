@@ -0,0 +1,43 @@
+package rmi;
+
+/**
+ Dispatcher of calls to the server objects of a remote interface, generated
+ at build time for interfaces marked with <code>Remote</code>.
+
+ <p>
+ The methods of the interface are numbered in the order of their
+ signatures, as for the methods of the generated stub class. Methods whose
+ values are all primitive are also reached without boxing, through
+ <code>dispatchPrimitive</code>. This interface is implemented by generated
+ classes, and is not meant to be implemented or called otherwise.
+
+ @param <T> The remote interface.
+ */
+public interface RemoteDispatcher<T> {
+
+    /**
+     Calls a method on a server object.
+
+     @param server The server object.
+     @param index The index of the method.
+     @param args The arguments of the call, boxed if primitive.
+     @return The result of the call, boxed if primitive, or <code>null</code>
+     if the method is <code>void</code>.
+     @throws Throwable Whatever the server throws.
+     */
+    Object dispatch(T server, int index, Object[] args) throws Throwable;
+
+    /**
+     Calls a method whose parameters and result are all primitive, or whose
+     result is <code>void</code>, with its values held as raw bits as
+     described in <code>Marshal</code>.
+
+     @param server The server object.
+     @param index The index of the method.
+     @param args The arguments, as raw bits.
+     @return The result as raw bits, or zero if the method is
+     <code>void</code>.
+     @throws Throwable Whatever the server throws.
+     */
+    long dispatchPrimitive(T server, int index, long[] args) throws Throwable;
+}
@@ -0,0 +1,164 @@
+package rmi;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ What stubs and skeletons need to know of a class used as a remote interface,
+ computed once per class.
+
+ <p>
+ A class is a remote interface if it is an interface, and each of its public
+ methods, including inherited methods, is marked as throwing
+ <code>RMIException</code> and takes at most one <code>InputStream</code>
+ parameter, since a call carries at most one upload. The metadata of the methods of a remote interface
+ is kept along with its validity, so that creating a stub or a skeleton, and
+ serving or performing a call, does not scan the signatures of the interface
+ again. The registry is keyed by <code>ClassValue</code>, so that it does not
+ keep classes from being unloaded.
+ */
+final class RemoteInterface {
+
+    private static final ClassValue<RemoteInterface> registry = new ClassValue<RemoteInterface>() {
+        @Override
+        protected RemoteInterface computeValue(Class<?> type) {
+            return new RemoteInterface(type);
+        }
+    };
+
+    /** Why the class is not a remote interface, or <code>null</code> if it is one. */
+    private final String problem;
+    /** The methods of the interface, empty if it is not a remote interface. */
+    private final Map<Method, RemoteMethod> methods;
+
+    private RemoteInterface(Class<?> c) {
+        String problem = c.isInterface() ? null : c.getName() + " is not an interface";
+        Map<Method, RemoteMethod> methods = new HashMap<>();
+        if (problem == null) {
+            for (Method method : c.getMethods()) {
+                RemoteMethod metadata = new RemoteMethod(method);
+                if (!metadata.declares(RMIException.class)) {
+                    problem = "Every method of " + c.getCanonicalName() + " must throw "
+                            + RMIException.class.getCanonicalName() + " to be used as remote interface";
+                    break;
+                }
+                if (metadata.streamParameters > 1) {
+                    problem = "Method " + method.getName() + " of " + c.getCanonicalName()
+                            + " has more than one InputStream parameter";
+                    break;
+                }
+                methods.put(method, metadata);
+            }
+        }
+        this.problem = problem;
+        this.methods = problem == null ? methods : Collections.<Method, RemoteMethod>emptyMap();
+    }
+
+    /** Returns what is known of a class used as a remote interface. */
+    static RemoteInterface of(Class<?> c) {
+        return registry.get(c);
+    }
+
+    /** Returns <code>true</code> if a class is a remote interface. */
+    static boolean isRemote(Class<?> c) {
+        return registry.get(c).problem == null;
+    }
+
+    /** Returns <code>true</code> if the class is a remote interface. */
+    boolean isRemote() {
+        return problem == null;
+    }
+
+    /**
+     Returns why the class is not a remote interface, or <code>null</code> if
+     it is one.
+     */
+    String problem() {
+        return problem;
+    }
+
+    /**
+     Returns the metadata of a public method of the interface, or
+     <code>null</code> if the method is not one of them or the class is not a
+     remote interface.
+     */
+    RemoteMethod method(Method method) {
+        return methods.get(method);
+    }
+
+    /** Method of a remote interface, with its signature as remote calls use it. */
+    static final class RemoteMethod {
+        private final Method method;
+        private final Class<?>[] parameterTypes;
+        private final Class<?> returnType;
+        private final Class<?>[] exceptionTypes;
+        private final boolean streamed;
+        private final int uploadParameter;
+        /** Number of <code>InputStream</code> parameters, of which a remote method has at most one. */
+        private final int streamParameters;
+
+        RemoteMethod(Method method) {
+            this.method = method;
+            parameterTypes = method.getParameterTypes();
+            returnType = method.getReturnType();
+            exceptionTypes = method.getExceptionTypes();
+            streamed = Cursor.isStreamed(returnType);
+
+            int stream = -1;
+            int streams = 0;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (parameterTypes[i] == InputStream.class) {
+                    stream = i;
+                    streams++;
+                }
+            }
+            uploadParameter = stream;
+            streamParameters = streams;
+        }
+
+        Method method() {
+            return method;
+        }
+
+        /** Returns the parameter types of the method. The array must not be modified. */
+        Class<?>[] parameterTypes() {
+            return parameterTypes;
+        }
+
+        Class<?> returnType() {
+            return returnType;
+        }
+
+        /** Returns <code>true</code> if the method declares exactly the given exception class. */
+        boolean declares(Class<?> exceptionType) {
+            for (Class<?> declared : exceptionTypes) {
+                if (declared == exceptionType) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Returns <code>true</code> if the result of the method is streamed in pages. */
+        boolean isStreamed() {
+            return streamed;
+        }
+
+        /**
+         Returns <code>true</code> if the method returns a remote interface,
+         whose results are exported and returned as stubs. The return type is
+         looked up when asked, since it may be the interface being registered.
+         */
+        boolean returnsRemote() {
+            return returnType != Void.TYPE && !streamed && isRemote(returnType);
+        }
+
+        /** Returns the index of the stream parameter of the method, or -1 if it has none. */
+        int uploadParameter() {
+            return uploadParameter;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package rmi;
+
+/**
+ Unchecked exception thrown by a <code>RemoteIterator</code> which cannot
+ fetch its next elements. The cause is the exception thrown by the iterator
+ of the server, or an <code>RMIException</code> if the page could not be
+ fetched.
+ */
+public class RemoteIterationException extends RuntimeException {
+    /**
+     Creates a <code>RemoteIterationException</code> with the given cause.
+     */
+    public RemoteIterationException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,44 @@
+package rmi;
+
+import java.util.Iterator;
+
+/**
+ Iterator over a result streamed from a remote method.
+
+ <p>
+ A remote method declared to return <code>Iterator</code>,
+ <code>RemoteIterator</code> or <code>Stream</code> does not send its result
+ in one piece. The skeleton keeps the iterator or stream returned by the
+ server, and sends its elements in pages, as the stub reads them: the first
+ page with the response to the call, and each further page on request of the
+ stub, which asks for the next page as soon as it receives one, so that the
+ next page is usually there when the current one has been read. Neither side
+ holds more than a couple of pages at a time, however long the result.
+
+ <p>
+ On the stub side, an <code>Iterator</code> result is a
+ <code>RemoteIterator</code>, and a <code>Stream</code> result is a
+ sequential stream over one, which is closed when the stream is closed.
+ Failures to fetch a page, and exceptions thrown by the iterator of the
+ server, are thrown by <code>hasNext</code> and <code>next</code> as a
+ <code>RemoteIterationException</code>.
+
+ <p>
+ The skeleton releases the iterator of the server, closing it if it is
+ <code>AutoCloseable</code> or a stream, once its last element has been sent,
+ when the remote iterator is closed, when the skeleton stops, or after five
+ minutes without a page being requested. Remote iterators that are not read
+ to the end should be closed. Remote iterators are not thread-safe.
+
+ @param <T> The type of the elements.
+ */
+public interface RemoteIterator<T> extends Iterator<T>, AutoCloseable {
+
+    /**
+     Releases the result on the skeleton side. The iterator then has no more
+     elements. Closing an iterator which is closed or exhausted has no
+     effect.
+     */
+    @Override
+    void close();
+}
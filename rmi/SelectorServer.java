@@ -0,0 +1,641 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Non-blocking transport of a skeleton.
+
+ <p>
+ The selector loop runs on the listening thread of the skeleton. It accepts
+ connections, reads the frames of incoming requests without blocking, and
+ hands each complete request to a worker. When the worker has produced the
+ response, the loop writes it back, again without blocking. A connection
+ therefore only occupies a thread while one of its calls is being served.
+
+ <p>
+ Ordinary calls on the same connection are served one at a time: the loop
+ stops reading from a connection while such a call is in progress, and resumes
+ once the response has been written. Multiplexed calls are handed to workers
+ as soon as they have been read, and the loop keeps reading further requests
+ from their connection; their responses are written in the order in which the
+ calls complete. Once <code>Skeleton.MAX_CONCURRENT_CALLS</code> calls of a
+ connection are in progress, the loop stops reading from it until one of them
+ completes. Operations on streamed results and arguments are served on
+ threads of their own rather than by workers, as on the blocking transport:
+ a chunk of a stream argument may wait for the call reading the stream, and
+ must not hold a worker that call may need. Connections are closed when the stub closes them, when they
+ have been idle for longer than the idle timeout of the skeleton, or after
+ their first request if keep-alive is disabled.
+
+ <p>
+ The body of a request is allocated as its bytes arrive, starting from a
+ small buffer which doubles as it fills, so that a connection whose request
+ is announced but slow to come holds no more memory than it has sent.
+ The bulk data following a request, as described in <code>Bulk</code>, is
+ read as it arrives into the values it makes up, and the request is handed
+ to a worker once its bulk data is complete. The bulk data of a response is
+ written after its frame: arrays and buffers by the same gathering write,
+ and files with <code>FileChannel.transferTo</code>, as far as the socket
+ accepts them each time.
+ Requests are served on the executor of the skeleton if it has one, and
+ otherwise on a pool of at most <code>MAX_WORKERS</code> threads, in which
+ further requests wait for a thread.
+
+ <p>
+ When the skeleton is stopped, the loop closes the listening socket and the
+ idle connections, then waits for the calls in progress to complete and for
+ their responses to be written before exiting.
+ */
+class SelectorServer implements Runnable {
+
+    /** Interval in milliseconds at which idle connections are looked for. */
+    private static final long SELECT_TIMEOUT = 1000;
+    /** Size in bytes of the buffer in which the reading of a request starts. */
+    private static final int INITIAL_BODY_SIZE = 8 * 1024;
+    /** Number of threads of the pool owned by the transport. */
+    static final int MAX_WORKERS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+    /** Time in milliseconds after which idle threads of the owned pool are terminated. */
+    private static final long WORKER_KEEP_ALIVE = 60 * 1000;
+
+    private final Skeleton<?> skeleton;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private Executor workers;
+    private ThreadPoolExecutor ownedPool;
+    /** Calls which have been served, waiting for the loop. */
+    private final Queue<Call> completed = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopSignal = false;
+    /** Set once the loop no longer serves new requests. */
+    private boolean closing = false;
+    private long lastExpiry;
+
+    /**
+     Creates the transport.
+
+     @param skeleton The skeleton whose requests are to be served.
+     @param serverChannel The bound listening channel.
+     @param workers The executor serving requests, or <code>null</code> for a
+     pool owned by the transport.
+     @throws IOException If the selector cannot be opened.
+     */
+    SelectorServer(Skeleton<?> skeleton, ServerSocketChannel serverChannel, Executor workers) throws IOException {
+        this.skeleton = skeleton;
+        this.serverChannel = serverChannel;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    /** Asks the loop to stop. The loop closes the listening socket itself. */
+    void stop() {
+        stopSignal = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Exception cause = null;
+        try {
+            if (workers == null) {
+                ownedPool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, WORKER_KEEP_ALIVE,
+                        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+                ownedPool.allowCoreThreadTimeOut(true);
+                workers = ownedPool;
+            }
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            lastExpiry = System.currentTimeMillis();
+
+            while (!stopSignal && cause == null) {
+                selector.select(SELECT_TIMEOUT);
+                writeCompleted();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        cause = accept();
+                        continue;
+                    }
+                    Peer peer = (Peer) key.attachment();
+                    if (key.isWritable()) {
+                        write(peer);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(peer);
+                    }
+                }
+
+                expireIdle();
+            }
+        } catch (IOException e) {
+            if (!stopSignal) {
+                cause = e;
+            }
+        } finally {
+            shutdown();
+        }
+
+        if (cause != null) {
+            skeleton.stopped(cause);
+        }
+    }
+
+    /**
+     Accepts all pending connections.
+
+     @return <code>null</code> normally, or the exception that is to stop the
+     skeleton.
+     */
+    private Exception accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                return skeleton.listen_error(e) ? null : e;
+            }
+            if (channel == null) {
+                return null;
+            }
+
+            Peer peer = new Peer(channel);
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+            } catch (IOException e) {
+                fail(peer, e);
+            }
+        }
+    }
+
+    /**
+     Reads as many requests as are available. Each complete request is handed
+     to a worker.
+     */
+    private void read(Peer peer) {
+        try {
+            while (!peer.paused && !peer.saturated) {
+                if (peer.bulk != null) {
+                    peer.lastActivity = System.currentTimeMillis();
+                    if (!peer.bulk.read(peer.channel)) {
+                        return;
+                    }
+                    byte[] request = peer.request;
+                    Bulk bulk = peer.bulk.bulk();
+                    peer.request = null;
+                    peer.bulk = null;
+                    if (!dispatch(peer, request, bulk)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (peer.body == null) {
+                    if (peer.channel.read(peer.header) < 0) {
+                        closed(peer);
+                        return;
+                    }
+                    if (peer.header.hasRemaining()) {
+                        return;
+                    }
+                    peer.lastActivity = System.currentTimeMillis();
+                    peer.header.flip();
+                    peer.frameSize = Frames.PREFIX_SIZE + Frames.checkLength(peer.header.getInt() & ~Frames.BULK);
+                    byte[] frame = new byte[Math.min(peer.frameSize, INITIAL_BODY_SIZE)];
+                    System.arraycopy(peer.header.array(), 0, frame, 0, Frames.PREFIX_SIZE);
+                    peer.body = ByteBuffer.wrap(frame);
+                    peer.body.position(Frames.PREFIX_SIZE);
+                    peer.header.clear();
+                }
+
+                if (!peer.body.hasRemaining()) {
+                    // The buffer is full, but the frame goes on.
+                    int size = (int) Math.min(peer.frameSize, 2L * peer.body.capacity());
+                    int position = peer.body.position();
+                    peer.body = ByteBuffer.wrap(Arrays.copyOf(peer.body.array(), size));
+                    peer.body.position(position);
+                }
+                if (peer.channel.read(peer.body) < 0) {
+                    closed(peer);
+                    return;
+                }
+                peer.lastActivity = System.currentTimeMillis();
+                if (peer.body.position() < peer.frameSize) {
+                    if (peer.body.hasRemaining()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                byte[] request = peer.body.array();
+                peer.body = null;
+                peer.classCache.received(request);
+                if (Frames.hasBulk(request)) {
+                    peer.request = request;
+                    peer.bulk = new Bulk.Reader();
+                    continue;
+                }
+                if (!dispatch(peer, request, new Bulk())) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            fail(peer, e);
+        }
+    }
+
+    /**
+     Hands a complete request to a worker. Reading from the connection is
+     paused until the response has been written, unless the call is
+     multiplexed.
+
+     @param bulk The bulk data received after the request, released once
+     the request has been served.
+     @return <code>false</code> if the connection has been closed.
+     */
+    private boolean dispatch(Peer peer, byte[] request, Bulk bulk) throws IOException {
+        peer.requests++;
+        peer.inFlight++;
+        int flags = Frames.flags(request);
+        if ((flags & Frames.MULTIPLEXED) == 0 || !skeleton.isKeepAlive()) {
+            peer.paused = true;
+            updateInterest(peer);
+        } else if (peer.inFlight >= Skeleton.MAX_CONCURRENT_CALLS) {
+            peer.saturated = true;
+            updateInterest(peer);
+        }
+
+        Call call = new Call(peer, request, bulk);
+        if ((flags & Frames.STREAM) != 0) {
+            skeleton.newThread(call).start();
+            return true;
+        }
+        try {
+            workers.execute(call);
+        } catch (RejectedExecutionException e) {
+            bulk.release();
+            skeleton.service_error(new RMIException("Request rejected by executor", e));
+            close(peer);
+            return false;
+        }
+        return true;
+    }
+
+    /** Queues the responses of the calls served since the last pass. */
+    private void writeCompleted() {
+        Call call;
+        while ((call = completed.poll()) != null) {
+            Peer peer = call.peer;
+            peer.inFlight--;
+            if (!peer.channel.isOpen()) {
+                call.responseBulk.release();
+                continue;
+            }
+            if (peer.saturated) {
+                peer.saturated = false;
+                updateInterest(peer);
+            }
+            if (call.failure != null) {
+                call.responseBulk.release();
+                fail(peer, call.failure);
+                continue;
+            }
+
+            try {
+                peer.classCache.sent(call.response);
+            } catch (IOException e) {
+                call.responseBulk.release();
+                fail(peer, e);
+                continue;
+            }
+            peer.output.addLast(ByteBuffer.wrap(call.response));
+            if (Frames.hasBulk(call.response)) {
+                call.responseBulk.queue(peer.output);
+            } else {
+                call.responseBulk.release();
+            }
+            write(peer);
+        }
+    }
+
+    /**
+     Writes as much of the pending responses as the socket accepts. Once an
+     ordinary call has been answered, reading from its connection resumes.
+     */
+    private void write(Peer peer) {
+        try {
+            while (!peer.output.isEmpty()) {
+                Object next = peer.output.peekFirst();
+                if (next instanceof Bulk) {
+                    // The bulk data of a response has been written.
+                    ((Bulk) next).release();
+                    peer.output.removeFirst();
+                } else if (next instanceof Bulk.Value) {
+                    Bulk.Value file = (Bulk.Value) next;
+                    while (!file.isSent()) {
+                        if (file.transferTo(peer.channel) == 0) {
+                            updateInterest(peer);
+                            return;
+                        }
+                    }
+                    peer.output.removeFirst();
+                } else if (!writeBuffers(peer)) {
+                    updateInterest(peer);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            fail(peer, e);
+            return;
+        }
+
+        peer.lastActivity = System.currentTimeMillis();
+        if (peer.inFlight > 0) {
+            updateInterest(peer);
+        } else if (closing || !skeleton.isKeepAlive()) {
+            close(peer);
+        } else {
+            peer.paused = false;
+            updateInterest(peer);
+        }
+    }
+
+    /**
+     Writes the buffers at the head of the pending output, frames and bulk
+     data of responses alike, in a single gathering write.
+
+     @return <code>false</code> if the socket did not accept all of them.
+     */
+    private boolean writeBuffers(Peer peer) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (Object element : peer.output) {
+            if (!(element instanceof ByteBuffer)) {
+                break;
+            }
+            buffers.add((ByteBuffer) element);
+        }
+        peer.channel.write(buffers.toArray(new ByteBuffer[0]));
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            peer.output.removeFirst();
+        }
+        return true;
+    }
+
+    /**
+     Sets the operations the loop waits for on a connection: reading unless
+     paused or saturated, and writing while responses are pending.
+     */
+    private void updateInterest(Peer peer) {
+        int ops = 0;
+        if (!peer.paused && !peer.saturated && !closing) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!peer.output.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        peer.key.interestOps(ops);
+    }
+
+    /**
+     Closes connections which have been idle for longer than the idle timeout
+     of the skeleton. The check runs at most once per select timeout.
+     */
+    private void expireIdle() {
+        long now = System.currentTimeMillis();
+        int idleTimeout = skeleton.getIdleTimeout();
+        if (idleTimeout == 0 || now - lastExpiry < SELECT_TIMEOUT) {
+            return;
+        }
+        lastExpiry = now;
+
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            Peer peer = (Peer) key.attachment();
+            if (peer != null && !peer.isBusy() && now - peer.lastActivity >= idleTimeout) {
+                if (peer.requests == 0 || peer.isReading()) {
+                    fail(peer, new SocketTimeoutException("No request received before the idle timeout"));
+                } else {
+                    close(peer);
+                }
+            }
+        }
+    }
+
+    /**
+     Handles the end of the stream of a connection. The stub closing the
+     connection between calls is normal, and the responses to calls still in
+     progress are dropped; closing it before its first request or in the
+     middle of a request is reported.
+     */
+    private void closed(Peer peer) {
+        if (peer.requests == 0 || peer.isReading()) {
+            fail(peer, new EOFException("Connection closed before a complete request was received"));
+        } else {
+            close(peer);
+        }
+    }
+
+    /** Reports an error on a connection, and closes the connection. */
+    private void fail(Peer peer, Throwable e) {
+        if (!closing) {
+            skeleton.service_error(new RMIException(e));
+        }
+        close(peer);
+    }
+
+    private void close(Peer peer) {
+        for (Object element : peer.output) {
+            if (element instanceof Bulk) {
+                ((Bulk) element).release();
+            }
+        }
+        peer.output.clear();
+        if (peer.bulk != null) {
+            peer.bulk.bulk().release();
+            peer.bulk = null;
+        }
+        if (peer.key != null) {
+            peer.key.cancel();
+        }
+        try {
+            // A stub which has just sent a request sees the end of the connection, rather than a reset.
+            peer.channel.shutdownOutput();
+        } catch (IOException e) {
+            // The connection is already closed, or failed.
+        }
+        try {
+            peer.channel.close();
+        } catch (IOException e) {
+            // The connection is already closed.
+        }
+    }
+
+    /**
+     Closes the listening socket and the idle connections, then lets the calls
+     in progress complete.
+     */
+    private void shutdown() {
+        closing = true;
+        try {
+            serverChannel.close();
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                Peer peer = (Peer) key.attachment();
+                if (peer == null) {
+                    continue;
+                }
+                if (peer.isBusy()) {
+                    updateInterest(peer);
+                } else {
+                    close(peer);
+                }
+            }
+
+            while (busy()) {
+                selector.select(SELECT_TIMEOUT);
+                writeCompleted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isWritable()) {
+                        write((Peer) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector failed: drop the remaining connections.
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to release.
+            }
+            if (ownedPool != null) {
+                ownedPool.shutdown();
+            }
+        }
+    }
+
+    /** Returns <code>true</code> if any open connection is busy. */
+    private boolean busy() {
+        for (SelectionKey key : selector.keys()) {
+            Peer peer = (Peer) key.attachment();
+            if (peer != null && key.isValid() && peer.isBusy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** State of a connection, accessed by the selector loop only. */
+    private static class Peer {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer header = ByteBuffer.allocate(Frames.PREFIX_SIZE);
+        /** The frame being read, which grows until it has its full size. */
+        private ByteBuffer body;
+        /** The size of the frame being read, length prefix included. */
+        private int frameSize;
+        /** The request whose bulk data is being read. */
+        private byte[] request;
+        /** Reads the bulk data of the request, or <code>null</code> if none is being read. */
+        private Bulk.Reader bulk;
+        private final ClassCache classCache = new ClassCache();
+        /**
+         Responses waiting to be written: the buffers holding their frames and
+         the bulk data of their arrays and buffers, the bulk values whose
+         files are to be transferred, and each bulk, to be released once
+         written.
+         */
+        private final Deque<Object> output = new ArrayDeque<>();
+        /** Set while reading is suspended for an ordinary call. */
+        private boolean paused = false;
+        /** Set while reading is suspended because too many multiplexed calls are in progress. */
+        private boolean saturated = false;
+        private int inFlight = 0;
+        private int requests = 0;
+        private long lastActivity = System.currentTimeMillis();
+
+        private Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Returns <code>true</code> if part of a request has been read. */
+        private boolean isReading() {
+            return body != null || header.position() > 0 || bulk != null;
+        }
+
+        /** Returns <code>true</code> if calls or responses are pending. */
+        private boolean isBusy() {
+            return inFlight > 0 || !output.isEmpty();
+        }
+    }
+
+    /**
+     A request handed to a worker, or to a thread of its own. The thread
+     fills in the response or the failure before passing the call back
+     through the completed queue.
+     */
+    private class Call implements Runnable {
+        private final Peer peer;
+        private byte[] request;
+        private Bulk bulk;
+        private byte[] response;
+        /** The bulk data of the response, released by the loop. */
+        private final Bulk responseBulk = new Bulk();
+        private Throwable failure;
+
+        private Call(Peer peer, byte[] request, Bulk bulk) {
+            this.peer = peer;
+            this.request = request;
+            this.bulk = bulk;
+        }
+
+        /** Serves the request, on a worker thread or a thread of its own. */
+        @Override
+        public void run() {
+            try {
+                response = skeleton.serve(request, bulk, responseBulk, peer.classCache,
+                        peer.channel.socket().getInetAddress());
+            } catch (Throwable t) {
+                // Errors too are reported, so that the call is accounted for
+                // and the connection closed.
+                failure = t;
+            } finally {
+                bulk.release();
+                request = null;
+                bulk = null;
+                completed.add(this);
+                selector.wakeup();
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package rmi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ Connection from a stub to a skeleton shared by concurrent calls.
+
+ <p>
+ Any number of threads may have calls in progress on a shared connection at
+ the same time. Each request is written as soon as it is made, without waiting
+ for the responses to earlier ones, and is given a call identifier, which the
+ skeleton echoes in the response. Responses are read by a daemon thread owned
+ by the connection, which hands each one to the call waiting for it.
+
+ <p>
+ The connection carries both multiplexed and pipelined calls. The skeleton
+ serves requests flagged as multiplexed concurrently, and their responses
+ arrive in whatever order the calls complete. Other requests are served in
+ order, one at a time, so that their responses arrive in the order in which
+ the requests were written.
+
+ <p>
+ Requests and responses may be followed by bulk data, as described in
+ <code>Bulk</code>. The bulk data of a request is written along with it,
+ and that of a response is read by the reading thread into the bulk given
+ by its call, before the call is handed its response.
+
+ <p>
+ If the connection fails, every call in progress fails with the same
+ exception, and the connection is closed. When the connection ends between
+ two responses, that exception is a <code>StaleConnectionException</code>,
+ since none of the calls in progress has received any of its response. A
+ call whose request cannot be written fails with one as well.
+ */
+class SharedConnection implements Runnable {
+
+    private final SocketChannel channel;
+    private final OutputStream out;
+    private final ChannelInput input;
+    private final DataInputStream in;
+    /** Calls waiting for their response, by call identifier. */
+    private final Map<Integer, CompletableFuture<byte[]>> pending = new HashMap<>();
+    /** The bulk data receiving the response of each call waiting, by call identifier. */
+    private final Map<Integer, Bulk> bulks = new HashMap<>();
+    private int nextCallId = 0;
+    private boolean reused = false;
+    private IOException failure;
+    private long lastUsed;
+    private final MethodTable.Agreed methodTables = new MethodTable.Agreed();
+    private final ClassCache classCache = new ClassCache();
+
+    /**
+     Opens a new connection to the skeleton at the given address, and starts
+     its reading thread.
+
+     @param address The address of the skeleton.
+     @throws IOException If the connection cannot be established.
+     */
+    SharedConnection(InetSocketAddress address) throws IOException {
+        channel = Connection.open(address);
+        try {
+            channel.socket().setTcpNoDelay(true);
+            out = new BufferedOutputStream(channel.socket().getOutputStream());
+            input = new ChannelInput(channel);
+            in = new DataInputStream(input);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+
+        Thread reader = new Thread(this, "rmi-shared-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     Performs a call.
+
+     @param request The payload of the request. Its call identifier is
+     overwritten.
+     @return The payload of the response.
+     @throws IOException If the connection fails before the response has been
+     received, or if the calling thread is interrupted.
+     */
+    byte[] call(byte[] request) throws IOException {
+        return call(request, null, null);
+    }
+
+    /**
+     Performs a call whose request and response may be followed by bulk
+     data.
+
+     @param request The payload of the request. Its call identifier is
+     overwritten.
+     @param bulk The bulk data of the request, or <code>null</code> if it has
+     none.
+     @param responseBulk Receives the bulk data of the response, or
+     <code>null</code> if it can have none.
+     @return The payload of the response.
+     @throws IOException If the connection fails before the response has been
+     received, or if the calling thread is interrupted.
+     */
+    byte[] call(byte[] request, Bulk bulk, Bulk responseBulk) throws IOException {
+        CompletableFuture<byte[]> response = submit(request, bulk, responseBulk);
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                pending.values().remove(response);
+                bulks.values().remove(responseBulk);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+    }
+
+    /**
+     Sends a request without waiting for its response.
+
+     @param request The payload of the request. Its call identifier is
+     overwritten.
+     @return A future completed with the payload of the response by the
+     reading thread of the connection, or completed exceptionally with an
+     <code>IOException</code> if the connection fails first: a
+     <code>StaleConnectionException</code> if the request could not be
+     written, or the connection ended before any of its response.
+     */
+    CompletableFuture<byte[]> submit(byte[] request) {
+        return submit(request, null, null);
+    }
+
+    /**
+     Sends a request which, like its response, may be followed by bulk data,
+     without waiting for its response. The bulk data of the request is
+     released once it has been written.
+
+     @param request The payload of the request. Its call identifier is
+     overwritten.
+     @param bulk The bulk data of the request, or <code>null</code> if it has
+     none.
+     @param responseBulk Receives the bulk data of the response before the
+     future is completed, or <code>null</code> if it can have none.
+     @return A future completed as by <code>submit(byte[])</code>.
+     */
+    CompletableFuture<byte[]> submit(byte[] request, Bulk bulk, Bulk responseBulk) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        int callId;
+        synchronized (this) {
+            if (failure != null) {
+                if (bulk != null) {
+                    bulk.release();
+                }
+                response.completeExceptionally(new StaleConnectionException("Connection failed", failure));
+                return response;
+            }
+            callId = nextCallId++;
+            pending.put(callId, response);
+            if (responseBulk != null) {
+                bulks.put(callId, responseBulk);
+            }
+        }
+
+        Frames.setCallId(request, callId);
+        try {
+            synchronized (out) {
+                Frames.write(out, request, bulk, channel);
+                classCache.sent(request);
+            }
+        } catch (IOException e) {
+            // The other calls in progress are left to the reading thread: it
+            // sees whether the connection ends before any of their responses.
+            synchronized (this) {
+                pending.remove(callId);
+                bulks.remove(callId);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            response.completeExceptionally(new StaleConnectionException("Request could not be written", e));
+        } finally {
+            if (bulk != null) {
+                bulk.release();
+            }
+        }
+        return response;
+    }
+
+    /** Reads responses and hands them to their calls, until the connection fails. */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                byte[] response = Frames.readResponse(in);
+                classCache.received(response);
+                int callId = Frames.callId(response);
+                CompletableFuture<byte[]> call;
+                Bulk bulk;
+                synchronized (this) {
+                    call = pending.remove(callId);
+                    bulk = bulks.remove(callId);
+                    reused = true;
+                    lastUsed = System.currentTimeMillis();
+                }
+                if (call == null) {
+                    throw new StreamCorruptedException("Response to unknown call " + callId);
+                }
+                if (Frames.hasBulk(response)) {
+                    try {
+                        if (bulk == null) {
+                            throw new StreamCorruptedException("Unexpected bulk data in response to call " + callId);
+                        }
+                        bulk.read(input);
+                    } catch (IOException e) {
+                        call.completeExceptionally(e);
+                        throw e;
+                    }
+                }
+                call.complete(response);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Fails every call in progress, and closes the connection. */
+    private void fail(IOException e) {
+        List<CompletableFuture<byte[]>> calls;
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+            calls = new ArrayList<>(pending.values());
+            pending.clear();
+            bulks.clear();
+        }
+        for (CompletableFuture<byte[]> call : calls) {
+            call.completeExceptionally(e);
+        }
+        close();
+    }
+
+    /** Returns the method tables agreed with the skeleton over this connection. */
+    MethodTable.Agreed getMethodTables() {
+        return methodTables;
+    }
+
+    /** Returns the class cache of the connection. */
+    ClassCache getClassCache() {
+        return classCache;
+    }
+
+    /** Returns <code>true</code> if the connection has carried a call before. */
+    synchronized boolean isReused() {
+        return reused;
+    }
+
+    /**
+     Returns <code>true</code> if the connection may carry further calls: it
+     has not failed, and it has not been left idle for longer than the given
+     time, zero meaning that it may be left idle indefinitely.
+     */
+    synchronized boolean isUsable(long idleTimeout) {
+        return failure == null && (idleTimeout == 0 || !pending.isEmpty()
+                || System.currentTimeMillis() - lastUsed < idleTimeout);
+    }
+
+    /**
+     Closes the connection if it has been left idle, rather than failed.
+
+     <p>
+     A connection which has failed is closed by its reading thread once the
+     connection ends. Closing it earlier would fail the calls still waiting
+     for their response as if their responses had been cut short, rather than
+     never started.
+     */
+    synchronized void retire() {
+        if (failure == null) {
+            close();
+        }
+    }
+
+    /** Closes the connection, ignoring any errors. */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with the connection either way.
+        }
+    }
+}
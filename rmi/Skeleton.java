@@ -1,17 +1,38 @@
 package rmi;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationTargetException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  RMI skeleton
@@ -30,21 +51,88 @@ import java.util.Set;
  <code>RMIException</code>, in addition to any other exceptions that the user
  desires.
 
+ <p>
+ When a method whose return type is a remote interface returns an object,
+ the skeleton exports the object and returns a stub for it in its place. The
+ object is served by the same skeleton, through the same listening endpoint,
+ under an object identifier of its own which the stub carries in its
+ requests. An object returned more than once keeps its identifier. Exported
+ objects are served until they are unexported with <code>unexport</code>, or
+ until the skeleton stops.
+
  <p>
  Exceptions may occur at the top level in the listening and service threads.
  The skeleton's response to these exceptions can be customized by deriving
  a class from <code>Skeleton</code> and overriding <code>listen_error</code>
  or <code>service_error</code>.
+
+ <p>
+ By default, connections are kept alive: a service thread serves any number of
+ sequential calls on its connection, until the stub closes it or until it has
+ been idle for longer than the idle timeout. Keep-alive can be disabled, in
+ which case every connection carries exactly one call. Calls made through a
+ multiplexed stub (see <code>Stub.multiplex</code>) are served concurrently
+ with the other calls of their connection, and their responses are sent as
+ soon as they are ready. Requests that a pipelined stub writes before the
+ responses to earlier ones have arrived are served in order, and each
+ response is sent as soon as it is ready.
+
+ <p>
+ Connections are served on a new thread each, unless an executor or a bounded
+ thread pool is configured with <code>setExecutor</code> or
+ <code>setThreadPool</code>. On Java 21 and later, the threads of the skeleton
+ can be made virtual threads with <code>setVirtualThreads</code>. Alternatively,
+ <code>setNonBlocking</code> selects a transport in which a selector loop
+ watches all connections and threads are only used while calls are served.
  */
 public class Skeleton<T> {
 
     /* Private member variables */
     private Class<T> interfaceClass;
     private T server;
+    private final ExportTable exports;
     private ServerSocket serverSocket;
     private InetSocketAddress address;
-    private ListeningThread listeningThread;
-    private final Set<ServiceThread> serviceThreads = new HashSet<>();
+    /** The address given to stubs for exported objects, set when the skeleton starts. */
+    private volatile InetSocketAddress stubAddress;
+    private Listener listener;
+    private SelectorServer selectorServer;
+    private Thread listeningThread;
+    private final Set<ServiceTask> serviceTasks = new HashSet<>();
+    /**
+     Guards the set of service tasks. Locks which threads serving calls may
+     wait for are <code>ReentrantLock</code>s rather than monitors, so that a
+     virtual thread waiting for one does not pin its carrier thread.
+     */
+    private final ReentrantLock serviceTasksLock = new ReentrantLock();
+    /** Signalled when a service task is removed. */
+    private final Condition serviceTaskRemoved = serviceTasksLock.newCondition();
+    private volatile boolean keepAlive = true;
+    private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile Executor executor;
+    private ThreadPoolExecutor ownedPool;
+    private volatile ThreadFactory threadFactory;
+    private volatile boolean nonBlocking = false;
+    private volatile Set<Integer> acceptedCodecs;
+    private volatile int compressionThreshold;
+    /** Streamed results whose pages are still to be sent, by identifier. */
+    private final Map<Long, Cursor> cursors = new ConcurrentHashMap<>();
+    /** Stream arguments being received, by identifier. */
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+    /** Source of the identifiers of cursors and uploads. */
+    private final SecureRandom ids = new SecureRandom();
+
+    /** Default time in milliseconds after which idle connections are closed. */
+    public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+    /** Time in milliseconds after which idle pool threads are terminated. */
+    private static final long POOL_KEEP_ALIVE = 60 * 1000;
+    /** Interval in milliseconds at which idle pooled connections check for waiting ones. */
+    private static final long IDLE_POLL_INTERVAL = 250;
+    /**
+     Largest number of multiplexed calls of one connection served at the same
+     time. Further requests are not read until one of the calls completes.
+     */
+    static final int MAX_CONCURRENT_CALLS = 64;
 
     /**
      Creates a <code>Skeleton</code> with no initial server address. The
@@ -71,6 +159,7 @@ public class Skeleton<T> {
         //Set the member variables to the parameters passed
         this.interfaceClass = interfaceClass;
         this.server = server;
+        exports = new ExportTable(interfaceClass, server);
     }
 
     /**
@@ -117,20 +206,17 @@ public class Skeleton<T> {
      <code>null</code> if the skeleton stopped normally.
      */
     protected void stopped(Throwable cause) {
-        while (!serviceThreads.isEmpty()) {
-            try {
-                Thread t;
-                synchronized (serviceThreads) {
-                    if (!serviceThreads.isEmpty()) {
-                        t = serviceThreads.iterator().next();
-                    } else {
-                        return;
-                    }
+        serviceTasksLock.lock();
+        try {
+            while (!serviceTasks.isEmpty()) {
+                try {
+                    serviceTaskRemoved.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
                 }
-                t.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
             }
+        } finally {
+            serviceTasksLock.unlock();
         }
     }
 
@@ -173,8 +259,10 @@ public class Skeleton<T> {
      <p>
      A thread is created to listen for connection requests, and the method
      returns immediately. Additional threads are created when connections are
-     accepted. The network address used for the server is determined by which
-     constructor was used to create the <code>Skeleton</code> object.
+     accepted, unless an executor has been set, in which case connections are
+     served by the executor. The network address used for the server is
+     determined by which constructor was used to create the
+     <code>Skeleton</code> object.
 
      @throws RMIException When the listening socket cannot be created or
      bound, when the listening thread cannot be created,
@@ -188,25 +276,64 @@ public class Skeleton<T> {
             throw new RMIException("Server already running");
         }
 
-        listeningThread = new ListeningThread();
         // Create Server socket if not present else use it
         try {
             if (address == null) {
                 String localIp = InetAddress.getLocalHost().getHostAddress();
                 // Get some free port and assign: moving with this
-                serverSocket = new ServerSocket(0);
+                serverSocket = openServerSocket(0);
                 address = new InetSocketAddress(localIp, serverSocket.getLocalPort());
 
             } else if (serverSocket == null || serverSocket.isClosed()) {
-                serverSocket = new ServerSocket(address.getPort());
+                serverSocket = openServerSocket(address.getPort());
+            }
+        } catch (IOException e) {
+            throw new RMIException("Unable to create listening socket", e);
+        }
+        try {
+            stubAddress = routable(address);
+        } catch (UnknownHostException e) {
+            throw new RMIException("Unable to find an address for the local host", e);
+        }
+
+        if (nonBlocking) {
+            listener = null;
+            try {
+                selectorServer = new SelectorServer(this, serverSocket.getChannel(), requestExecutor());
+            } catch (IOException e) {
+                try {
+                    serverSocket.close();
+                } catch (IOException closeException) {
+                    // The socket is unusable either way.
+                }
+                throw new RMIException("Unable to open selector", e);
             }
+            listeningThread = newThread(selectorServer);
+        } else {
+            selectorServer = null;
+            listener = new Listener();
+            listeningThread = newThread(listener);
+        }
 
-            // Starting listening thread
-            listeningThread.start();
+        // Starting listening thread
+        listeningThread.start();
+    }
 
+    /**
+     Opens the listening socket: the socket of a server channel, so that the
+     connections it accepts have socket channels, through which bulk data is
+     written and read directly. The blocking transport accepts connections
+     from the socket, and the non-blocking one from the channel.
+     */
+    private ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
         } catch (IOException e) {
-            e.printStackTrace();
+            channel.close();
+            throw e;
         }
+        return channel.socket();
     }
 
     /**
@@ -217,14 +344,24 @@ public class Skeleton<T> {
      may continue running until their invocations of the <code>service</code>
      method return. The server stops at some later time; the method
      <code>stopped</code> is called at that point. The server may then be
-     restarted.
+     restarted. The objects exported by the skeleton are unexported, and stubs
+     for them fail after a restart.
      */
     public synchronized void stop() {
         if (listeningThread != null && listeningThread.isAlive()) {
-            listeningThread.stopSignal = true;
             try {
-                serverSocket.close();
+                if (selectorServer != null) {
+                    // The selector loop closes the socket itself, and finishes
+                    // the calls in progress before exiting.
+                    selectorServer.stop();
+                } else {
+                    listener.stopSignal = true;
+                    serverSocket.close();
+                }
                 listeningThread.join();
+                closeConnections();
+                closeCursors();
+                exports.clear();
                 stopped(null);
             } catch (IOException | InterruptedException e) {
                 e.printStackTrace();
@@ -232,6 +369,36 @@ public class Skeleton<T> {
         }
     }
 
+    /**
+     Stops serving an object which the skeleton exported when a call returned
+     it. Stubs for the object fail with <code>RMIException</code> from then
+     on. If a call returns the object again, it is exported anew, under a new
+     identifier. The object the skeleton was created for cannot be
+     unexported.
+
+     @param object The object.
+     @return <code>true</code> if the object was exported by the skeleton.
+     */
+    public boolean unexport(Object object) {
+        return exports.unexport(object);
+    }
+
+    /**
+     Returns the address through which stubs sent to other hosts reach the
+     skeleton. A skeleton bound to the wildcard address, or given a hostname
+     which does not resolve, is reached through the address of the local
+     host, as when the skeleton chooses its own address.
+
+     @throws UnknownHostException If no address can be found for the local
+     host.
+     */
+    private static InetSocketAddress routable(InetSocketAddress address) throws UnknownHostException {
+        if (!address.isUnresolved() && !address.getAddress().isAnyLocalAddress()) {
+            return address;
+        }
+        return new InetSocketAddress(InetAddress.getLocalHost().getHostAddress(), address.getPort());
+    }
+
     public InetSocketAddress getAddress() {
         return address;
     }
@@ -240,40 +407,360 @@ public class Skeleton<T> {
         this.address = address;
     }
 
-    private void validateInputs(Class<T> interfaceClass, T server) {
-        //Checks for null and unsupported class
-        if (server == null) {
-            throw new NullPointerException("Server is null");
+    /**
+     Enables or disables keep-alive connections.
+
+     <p>
+     When keep-alive is enabled, which is the default, a connection is used
+     for any number of sequential calls. Otherwise, the connection is closed
+     after its first call. The setting applies to connections accepted after
+     the call.
+
+     <p>
+     Calls to methods taking an <code>InputStream</code> need their
+     connection to stay open for the chunks of the stream. With keep-alive
+     disabled they are refused: they fail in the stub with an
+     <code>RMIException</code>, without the server method being called.
+
+     @param keepAlive <code>true</code> to keep connections open between calls.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     Sets the time after which an idle connection is closed by the skeleton.
+
+     @param idleTimeout The timeout in milliseconds, or zero for no timeout.
+     @throws IllegalArgumentException If the timeout is negative.
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Idle timeout is negative");
         }
-        if (interfaceClass == null) {
-            throw new NullPointerException("Class is null");
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     Sets the executor on which connections are served.
+
+     <p>
+     Each accepted connection is submitted to the executor as a single task,
+     which serves the calls of that connection until it is closed. A bounded
+     executor therefore limits the number of connections served at the same
+     time; the idle timeout keeps idle connections from holding on to its
+     threads, and when the executor is a <code>ThreadPoolExecutor</code>, idle
+     connections are closed as soon as other connections are waiting in its
+     queue. If the executor rejects a connection, the connection is closed and
+     <code>service_error</code> is called.
+
+     <p>
+     The skeleton does not shut down executors given to this method. By
+     default, or when <code>executor</code> is <code>null</code>, a new thread
+     is created for every connection. The setting applies to connections
+     accepted after the call.
+
+     @param executor The executor, or <code>null</code> to create a thread per
+     connection.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        releaseOwnedPool();
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     Serves connections on a bounded thread pool owned by the skeleton.
+
+     <p>
+     The pool runs up to <code>maxSize</code> threads. Connections accepted
+     while all threads are busy wait in a queue holding up to
+     <code>queueCapacity</code> connections; once the queue is full, additional
+     threads are created up to the maximum, and further connections are handed
+     to <code>rejectionHandler</code>. The skeleton closes connections that the
+     handler discards or rejects with an exception. Pool threads that stay idle
+     for a minute, core threads included, are terminated, so a stopped skeleton
+     holds no threads.
+
+     @param coreSize Number of threads kept in the pool while there is work.
+     @param maxSize Maximum number of threads in the pool.
+     @param queueCapacity Maximum number of connections waiting for a thread,
+     or zero for none.
+     @param rejectionHandler Handler for connections which can be neither
+     queued nor served, for instance
+     <code>ThreadPoolExecutor.AbortPolicy</code> or
+     <code>ThreadPoolExecutor.CallerRunsPolicy</code>.
+     The latter serves the connection in the listening
+     thread, which stops accepting until it is done.
+     @throws IllegalArgumentException If the sizes are inconsistent.
+     @throws NullPointerException If <code>rejectionHandler</code> is
+     <code>null</code>.
+     */
+    public synchronized void setThreadPool(int coreSize, int maxSize, int queueCapacity,
+                                           final RejectedExecutionHandler rejectionHandler) {
+        if (rejectionHandler == null) {
+            throw new NullPointerException("Rejection handler is null");
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("Queue capacity is negative");
         }
 
-        if (!isRemoteInterface(interfaceClass)) {
-            throw new Error("Given class does not represent remote interface");
+        BlockingQueue<Runnable> queue;
+        if (queueCapacity == 0) {
+            queue = new SynchronousQueue<>();
+        } else {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
         }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(coreSize, maxSize, POOL_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                queue, new RejectionHandler(rejectionHandler));
+        pool.allowCoreThreadTimeOut(true);
+
+        setExecutor(pool);
+        ownedPool = pool;
+    }
+
+    /**
+     Selects the non-blocking transport.
+
+     <p>
+     With the default, blocking transport, every open connection is served by
+     a thread of its own, which is blocked reading the connection while the
+     stub is idle. The non-blocking transport instead runs a single selector
+     loop, on the listening thread, which accepts connections and reads
+     requests from all of them without blocking. Only complete requests are
+     handed to worker threads, so idle and slow connections cost no thread,
+     and the skeleton can hold many thousands of kept-alive connections.
+
+     <p>
+     Requests are served on the executor, if one is set, on a new virtual
+     thread each if virtual threads are enabled, and otherwise on a bounded
+     pool of threads owned by the skeleton, in which requests wait for a
+     thread once all are busy. Calls on the same connection are still served
+     one at a time, unless they are multiplexed. The setting applies the next
+     time the skeleton is started.
+
+     @param nonBlocking <code>true</code> for the non-blocking transport.
+     */
+    public synchronized void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
     }
 
-    private boolean isRemoteInterface(Class c) {
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
 
-        if (!c.isInterface()) {
-            return false;
+    /**
+     Restricts the codecs in which the skeleton accepts requests.
+
+     <p>
+     By default, the skeleton accepts requests encoded with any codec
+     registered in the process, and answers each request with its codec.
+     Requests encoded with any other codec are rejected without being served,
+     and the stub repeats them with Java serialization, which is always
+     accepted.
+
+     @param codecs The codecs accepted besides Java serialization, or
+     <code>null</code> to accept all registered codecs.
+     */
+    public void setCodecs(Codec... codecs) {
+        if (codecs == null) {
+            acceptedCodecs = null;
+            return;
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (Codec codec : codecs) {
+            ids.add(codec.getId());
         }
+        acceptedCodecs = ids;
+    }
 
-        for (Method method : c.getDeclaredMethods()) {
-            Class<?>[] exceptionTypes = method.getExceptionTypes();
+    /**
+     Sets the size above which responses are compressed.
 
-            if (!Arrays.asList(exceptionTypes).contains(RMIException.class)) {
-                return false;
+     <p>
+     Responses whose outcomes take more than <code>threshold</code> bytes
+     once serialized are compressed, if that makes them smaller, whether or
+     not the request was. Compressed requests are accepted whatever the
+     setting. By default, responses are not compressed.
+
+     @param threshold The size in bytes above which responses are compressed,
+     or zero for no compression.
+     @throws IllegalArgumentException If <code>threshold</code> is negative.
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Negative compression threshold");
+        }
+        compressionThreshold = threshold;
+    }
+
+    /**
+     Returns the codec of a request if the skeleton accepts it, and
+     <code>null</code> otherwise.
+     */
+    private Codec acceptedCodec(int id) {
+        Set<Integer> accepted = acceptedCodecs;
+        if (id != 0 && accepted != null && !accepted.contains(id)) {
+            return null;
+        }
+        return Codecs.get(id);
+    }
+
+    /**
+     Returns the executor on which the non-blocking transport serves
+     requests, or <code>null</code> if the transport is to use a pool of its
+     own.
+     */
+    private Executor requestExecutor() {
+        Executor executor = this.executor;
+        if (executor != null) {
+            return executor;
+        }
+        if (threadFactory != null) {
+            return new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    newThread(task).start();
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     Runs the listening thread and the per-connection threads on virtual
+     threads.
+
+     <p>
+     Virtual threads are cheap to create and do not hold on to a platform
+     thread while they block on network I/O, so in this mode the skeleton can
+     have a very large number of calls in progress, including calls whose
+     remote methods block for a long time. Connections are still served by
+     the executor instead, if one is set. The setting applies to threads
+     started after the call; a running skeleton keeps its listening thread
+     until it is restarted.
+
+     <p>
+     Virtual threads require Java 21 or later.
+
+     @param enabled <code>true</code> to use virtual threads,
+     <code>false</code> to return to platform threads.
+     @throws UnsupportedOperationException If <code>enabled</code> is
+     <code>true</code> and the runtime does not support virtual threads.
+     */
+    public synchronized void setVirtualThreads(boolean enabled) {
+        threadFactory = enabled ? VirtualThreads.factory("rmi-" + interfaceClass.getSimpleName() + "-") : null;
+    }
+
+    public boolean isVirtualThreads() {
+        return threadFactory != null;
+    }
+
+    /**
+     Creates a thread for the skeleton: a virtual thread if virtual threads
+     are enabled, and a platform thread otherwise.
+     */
+    Thread newThread(Runnable task) {
+        ThreadFactory factory = threadFactory;
+        return factory == null ? new Thread(task) : factory.newThread(task);
+    }
+
+    /**
+     Returns <code>true</code> if connections are waiting for a thread of the
+     executor.
+     */
+    private boolean saturated() {
+        Executor executor = this.executor;
+        return executor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) executor).getQueue().isEmpty();
+    }
+
+    /** Shuts down the pool created by <code>setThreadPool</code>, if any. */
+    private void releaseOwnedPool() {
+        if (ownedPool != null) {
+            ownedPool.shutdown();
+            ownedPool = null;
+        }
+    }
+
+    /**
+     Releases the streamed results whose pages are still to be sent, and the
+     stream arguments being received.
+     */
+    private void closeCursors() {
+        for (Cursor cursor : cursors.values()) {
+            cursors.remove(cursor.getId());
+            cursor.close();
+        }
+        for (Upload upload : uploads.values()) {
+            uploads.remove(upload.getId());
+            upload.close();
+        }
+    }
+
+    /**
+     Closes the connections of all service tasks. Idle connections are
+     closed immediately, and the others once their current call completes.
+     Requests received after this point are not served.
+     */
+    private void closeConnections() {
+        serviceTasksLock.lock();
+        try {
+            for (ServiceTask serviceTask : new ArrayList<>(serviceTasks)) {
+                serviceTask.shutdown();
             }
+        } finally {
+            serviceTasksLock.unlock();
         }
-        return true;
     }
 
-    //Definition of ListeningThread class
-    private class ListeningThread extends Thread {
+    /**
+     Hands an accepted connection to the executor, or to a new thread if there
+     is no executor.
+     */
+    private void dispatch(ServiceTask task) {
+        Executor executor = this.executor;
+        try {
+            if (executor == null) {
+                newThread(task).start();
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            task.shutdown();
+            service_error(new RMIException("Connection rejected by executor", e));
+        }
+    }
 
-        private boolean stopSignal = false;
+    private void validateInputs(Class<T> interfaceClass, T server) {
+        //Checks for null and unsupported class
+        if (server == null) {
+            throw new NullPointerException("Server is null");
+        }
+        if (interfaceClass == null) {
+            throw new NullPointerException("Class is null");
+        }
+
+        if (!RemoteInterface.isRemote(interfaceClass)) {
+            throw new Error("Given class does not represent remote interface");
+        }
+    }
+
+    //Definition of Listener class, run by the listening thread
+    private class Listener implements Runnable {
+
+        private volatile boolean stopSignal = false;
 
         @Override
         public void run() {
@@ -281,8 +768,7 @@ public class Skeleton<T> {
                 // Run Server
                 while (true) {
                     try {
-                        ServiceThread new_thread = new ServiceThread(serverSocket.accept());
-                        new_thread.start();
+                        dispatch(new ServiceTask(serverSocket.accept()));
                     } catch (IOException e) {
 
                         if (stopSignal) {
@@ -296,6 +782,7 @@ public class Skeleton<T> {
                                 continue;
                             } else {
                                 // else server needs to stop
+                                closeConnections();
                                 stopped(e);
                                 break;
                             }
@@ -312,70 +799,876 @@ public class Skeleton<T> {
         }
     }
 
-    //Definition of ServiceThread class
-    private class ServiceThread extends Thread {
+    /**
+     Rejection handler for pools created by <code>setThreadPool</code>. Calls
+     the user's handler, and closes the connection if the handler discarded it
+     without running or queueing it.
+     */
+    private static class RejectionHandler implements RejectedExecutionHandler {
+        private final RejectedExecutionHandler handler;
+
+        private RejectionHandler(RejectedExecutionHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+            handler.rejectedExecution(r, pool);
+            if (r instanceof Skeleton.ServiceTask && !pool.getQueue().contains(r)) {
+                ((Skeleton<?>.ServiceTask) r).discarded();
+            }
+        }
+    }
+
+    //Definition of ServiceTask class
+    private class ServiceTask implements Runnable {
         private Socket socket;
+        private OutputStream out;
+        private ChannelInput input;
+        private final ClassCache classCache = new ClassCache();
+        private final ReentrantLock stateLock = new ReentrantLock();
+        /** Signalled when a call ends, guarded by the state lock. */
+        private final Condition callEnded = stateLock.newCondition();
+        /** Held while a response is written, so that responses to concurrent calls do not interleave. */
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile boolean closing = false;
+        private boolean started = false;
+        /** Number of calls being served, guarded by the state lock. */
+        private int inFlight = 0;
 
-        public ServiceThread(Socket socket) {
+        public ServiceTask(Socket socket) {
             this.socket = socket;
-            serviceThreads.add(this);
+            serviceTasksLock.lock();
+            try {
+                serviceTasks.add(this);
+            } finally {
+                serviceTasksLock.unlock();
+            }
+        }
+
+        /** Removes the task from the set of service tasks. */
+        private void remove() {
+            serviceTasksLock.lock();
+            try {
+                serviceTasks.remove(this);
+                serviceTaskRemoved.signalAll();
+            } finally {
+                serviceTasksLock.unlock();
+            }
+        }
+
+        /**
+         Closes the connection of a task that its executor dropped without
+         running it.
+         */
+        private void discarded() {
+            stateLock.lock();
+            try {
+                if (started) {
+                    return;
+                }
+            } finally {
+                stateLock.unlock();
+            }
+            shutdown();
+        }
+
+        /**
+         Asks the thread to finish. An idle connection is closed right away; a
+         call that is in progress completes and its response is sent before the
+         connection is closed.
+         */
+        private void shutdown() {
+            boolean waiting;
+            stateLock.lock();
+            try {
+                closing = true;
+                waiting = !started;
+                if (inFlight == 0) {
+                    closeSocket();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+
+            // A task still waiting for a thread will return as soon as it
+            // runs, so there is no need to wait for it.
+            if (waiting) {
+                remove();
+            }
+        }
+
+        /**
+         Marks the beginning of a call. A request that arrives after
+         <code>shutdown</code> is dropped without being served; the stub then
+         sees the connection closed before any response, as it would after an
+         idle timeout.
+
+         @return <code>false</code> if the request must be dropped.
+         */
+        private boolean beginCall() {
+            stateLock.lock();
+            try {
+                if (closing) {
+                    return false;
+                }
+                inFlight++;
+                return true;
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        /**
+         Marks the end of a call. Once the last call in progress after
+         <code>shutdown</code> has been answered, the connection is closed.
+         */
+        private void endCall() {
+            stateLock.lock();
+            try {
+                inFlight--;
+                if (inFlight == 0 || inFlight == MAX_CONCURRENT_CALLS - 1) {
+                    callEnded.signalAll();
+                }
+                if (inFlight == 0 && closing) {
+                    closeSocket();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        /** Returns <code>true</code> if calls are being served. */
+        private boolean isBusy() {
+            stateLock.lock();
+            try {
+                return inFlight > 0;
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        /**
+         Reports a failure in a multiplexed call and closes the connection,
+         which ends the other calls of the connection too. Only the first
+         failure is reported.
+         */
+        private void abort(Exception e) {
+            stateLock.lock();
+            try {
+                if (closing) {
+                    return;
+                }
+                closing = true;
+            } finally {
+                stateLock.unlock();
+            }
+            service_error(new RMIException(e));
+            closeSocket();
+        }
+
+        /**
+         Closes the connection. The output is shut down first, so that a
+         stub which has just sent a request sees the end of the connection
+         rather than a reset, and can repeat the call as described in
+         <code>StaleConnectionException</code>.
+         */
+        private void closeSocket() {
+            try {
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                // The connection is already closed, or failed.
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The connection is already closed.
+            }
+        }
+
+        /**
+         Serves a request, and writes its response. The bulk data of the
+         request is released once the request has been served, and that of
+         the response once it has been written.
+
+         @param request The payload of the request.
+         @param bulk The bulk data received after the request.
+         */
+        private void serveRequest(byte[] request, Bulk bulk) throws Exception {
+            Bulk responseBulk = new Bulk();
+            try {
+                byte[] response;
+                try {
+                    response = serve(request, bulk, responseBulk, classCache, socket.getInetAddress());
+                } finally {
+                    bulk.release();
+                }
+                respond(response, responseBulk);
+            } finally {
+                responseBulk.release();
+            }
+        }
+
+        /**
+         Writes and flushes a response, followed by its bulk data. Responses
+         to concurrent calls are written one at a time.
+         */
+        private void respond(byte[] response, Bulk bulk) throws IOException {
+            writeLock.lock();
+            try {
+                Frames.write(out, response, bulk, socket.getChannel());
+                classCache.sent(response);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         Waits until fewer than <code>MAX_CONCURRENT_CALLS</code> calls of the
+         connection are in progress. The connection is not read meanwhile, so
+         that a stub sending more concurrent calls is held back by the
+         connection itself.
+
+         @return <code>false</code> if the connection is closing, or the
+         thread was interrupted.
+         */
+        private boolean awaitCallSlot() {
+            stateLock.lock();
+            try {
+                while (inFlight >= MAX_CONCURRENT_CALLS && !closing) {
+                    try {
+                        callEnded.await();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                return !closing;
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        /**
+         Serves a multiplexed call on a thread of its own, so that the
+         connection can go on receiving requests while the call is in
+         progress. These threads are not taken from the executor: a call may
+         wait for a later call of the same connection, which a bounded
+         executor might never run. Their number is bounded instead by
+         <code>MAX_CONCURRENT_CALLS</code> per connection, and the number of
+         connections by the executor.
+         */
+        private void serveConcurrently(final byte[] request, final Bulk bulk) {
+            newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveRequest(request, bulk);
+                    } catch (Exception e) {
+                        abort(e);
+                    } finally {
+                        endCall();
+                    }
+                }
+            }).start();
         }
 
         @Override
         public void run() {
-            ObjectInputStream in = null;
-            ObjectOutputStream out = null;
+            stateLock.lock();
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                in = new ObjectInputStream(socket.getInputStream());
+                started = true;
+                if (closing) {
+                    return;
+                }
+            } finally {
+                stateLock.unlock();
+            }
 
-                String methodName = (String) in.readObject();
-                Class[] parameterTypes = (Class[]) in.readObject();
-                Object[] args = (Object[]) in.readObject();
+            int requests = 0;
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(idleTimeout);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                input = new ChannelInput(socket.getChannel());
+                DataInputStream in = new DataInputStream(input);
+
+                do {
+                    // After the first request, the peer closing the connection
+                    // or leaving it idle is a normal end.
+                    if (requests > 0 && !awaitRequest(input)) {
+                        break;
+                    }
+                    byte[] request = Frames.read(in);
+                    classCache.received(request);
+                    Bulk bulk = new Bulk();
+                    if (Frames.hasBulk(request)) {
+                        bulk.read(input);
+                    }
+                    requests++;
 
-                Method method;
-                method = interfaceClass.getMethod(methodName, parameterTypes);
-                Object result = null;
+                    boolean multiplexed = keepAlive && (Frames.flags(request) & Frames.MULTIPLEXED) != 0;
+                    if (multiplexed && !awaitCallSlot()) {
+                        bulk.release();
+                        break;
+                    }
+                    if (!beginCall()) {
+                        bulk.release();
+                        break;
+                    }
+                    if (multiplexed) {
+                        serveConcurrently(request, bulk);
+                        continue;
+                    }
+                    try {
+                        // The response is flushed before any request the stub
+                        // pipelined behind this one is served, so that it is
+                        // not delayed by a call it does not depend on.
+                        serveRequest(request, bulk);
+                    } finally {
+                        endCall();
+                    }
+                } while (keepAlive && !closing);
+            } catch (Exception e) {
+                if (!closing) {
+                    service_error(new RMIException(e));
+                }
+            } finally {
+                // Let multiplexed calls still in progress send their responses.
+                stateLock.lock();
                 try {
-                    result = method.invoke(server, args);
-                    out.writeObject("PASSED");
-
-                    Class returnType = method.getReturnType();
-                    if (!returnType.equals(Void.TYPE)) {
-                        // if result type is void, do nothing.
-                        if (!isRemoteInterface(returnType)) {
-                            // if result type is not void, and not remote interface, serialize the return object
-                            out.writeObject(result);
-                        } else {
-                            // Object is ROR
-                            // create and start skeleton and return stub of this skeleton
-                            Skeleton rorSkeleton = new Skeleton(returnType, result);
-                            rorSkeleton.start();
-                            out.writeObject(Stub.create(returnType, rorSkeleton.getAddress()));
+                    while (inFlight > 0) {
+                        try {
+                            callEnded.await();
+                        } catch (InterruptedException e) {
+                            break;
                         }
                     }
-                } catch (InvocationTargetException e) {
-                    out.writeObject("FAILED");
-                    out.writeObject(e.getTargetException());
+                } finally {
+                    stateLock.unlock();
                 }
-            } catch (Exception e) {
-                service_error(new RMIException(e));
-            } finally {
-                serviceThreads.remove(this);
+                remove();
+                // Every response has already been flushed.
+                closeSocket();
+            }
+        }
+
+        /**
+         Waits for the next request on a kept-alive connection.
+
+         <p>
+         When connections are served on a thread pool, the wait is split into
+         short intervals. If other connections are waiting for a pool thread at
+         the end of an interval, the idle connection is given up so that its
+         thread can serve them. The stub reconnects on its next call. Neither
+         this nor the idle timeout applies while multiplexed calls of the
+         connection are in progress.
+
+         @param input The buffered stream from which frames are read.
+         @return <code>true</code> if a request is available, and
+         <code>false</code> if the connection should be closed.
+         @throws IOException If the connection fails.
+         */
+        private boolean awaitRequest(ChannelInput input) throws IOException {
+            if (saturated() && !isBusy()) {
+                return false;
+            }
+
+            boolean pooled = executor instanceof ThreadPoolExecutor;
+            long deadline = idleTimeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + idleTimeout;
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (!isBusy()) {
+                        return false;
+                    }
+                    deadline = System.currentTimeMillis() + idleTimeout;
+                    continue;
+                }
+                int timeout = remaining > Integer.MAX_VALUE ? 0 : (int) remaining;
+                if (pooled) {
+                    timeout = (int) Math.min(remaining, IDLE_POLL_INTERVAL);
+                }
+
+                socket.setSoTimeout(timeout);
                 try {
-                    if (out != null) {
-                        out.flush();
-                        out.close();
+                    input.mark(1);
+                    if (input.read() < 0) {
+                        return false;
                     }
-                    if (in != null) {
-                        in.close();
+                    input.reset();
+                    socket.setSoTimeout(idleTimeout);
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    if (saturated() && !isBusy()) {
+                        return false;
                     }
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
             }
         }
     }
+
+    /**
+     Serves one request, as received by either transport.
+
+     <p>
+     A request carries a single call, or a batch of calls, which are served in
+     order. Once the request has been decoded, any failure to carry out a call
+     is reported both to <code>service_error</code> and to the stub, as an
+     <code>RMIException</code> in the response, and does not prevent the
+     following calls of a batch from being served. A request whose codec the
+     skeleton does not accept is not decoded; the response tells the stub to
+     fall back to Java serialization.
+
+     @param request The payload of the request.
+     @param bulk The bulk data received after the request. It is not
+     released.
+     @param responseBulk Receives the bulk data of the response, which is to
+     be written after it.
+     @param cache The class cache of the connection, which has taken in the
+     prelude of the request. The response shares class descriptors with the
+     earlier responses of the connection if the request did.
+     @param client The address of the client which sent the request. The
+     streamed results and stream arguments of its calls belong to it.
+     @return The payload of the response, carrying the call identifier of the
+     request.
+     @throws Exception If the request cannot be decoded. The connection should
+     then be closed.
+     */
+    byte[] serve(byte[] request, Bulk bulk, Bulk responseBulk, ClassCache cache, InetAddress client)
+            throws Exception {
+        int callId = Frames.callId(request);
+        int codecId = Frames.codec(request);
+        Codec codec = acceptedCodec(codecId);
+        if (codec == null) {
+            Outcome rejected = Outcome.failed(new RMIException("Codec " + codecId + " not accepted"));
+            return Frames.encode(callId, Frames.CODEC_REJECTED, Codecs.JAVA,
+                    new Outcomes(new Method[1], new Outcome[]{rejected}, 0, 1));
+        }
+
+        int flags = Frames.flags(request);
+        ObjectInput in = Frames.decode(request, cache);
+        ClassCache responseCache = (flags & Frames.CLASS_CACHE) != 0 ? cache : null;
+        if ((flags & Frames.STREAM) != 0) {
+            return serveStream(callId, codec, in, responseCache, client);
+        }
+
+        int objectId = Frames.objectId(request);
+        Dispatcher dispatcher = exports.get(objectId);
+        if (dispatcher == null) {
+            return serveUnknown(request, callId, flags, codec, in, responseCache, objectId);
+        }
+
+        boolean agreed = (flags & Frames.METHOD_TABLE) != 0 && in.readLong() == dispatcher.fingerprint();
+        int count = readCount(request, flags, in);
+
+        // All calls are decoded before any is served, so that a batch which
+        // cannot be decoded is not partly carried out.
+        String[] methodNames = new String[count];
+        Dispatcher.Entry[] entries = new Dispatcher.Entry[count];
+        Method[] methods = new Method[count];
+        Object[][] args = new Object[count][];
+        // The arguments of methods whose values are all primitive are kept
+        // as raw bits, and those methods are called without boxing.
+        long[][] primitives = new long[count][];
+
+        // Temporary files received as arguments are deleted once the response
+        // has been encoded, since a method may return the content it received:
+        // encoding opens the files of the response, which are sent from the
+        // open file even once deleted.
+        try {
+            for (int call = 0; call < count; call++) {
+                Class[] parameterTypes;
+                if ((flags & Frames.METHOD_IDS) != 0) {
+                    entries[call] = dispatcher.entry(in.readInt());
+                    methodNames[call] = entries[call].method().getName();
+                    parameterTypes = entries[call].parameterTypes();
+                } else {
+                    methodNames[call] = (String) in.readObject();
+                    parameterTypes = (Class[]) in.readObject();
+                    entries[call] = dispatcher.entry(methodNames[call], parameterTypes);
+                }
+                if (entries[call] != null && entries[call].isPrimitive()) {
+                    primitives[call] = Marshal.readPrimitives(in, parameterTypes);
+                } else {
+                    args[call] = Marshal.readArguments(in, parameterTypes, bulk);
+                }
+                if (entries[call] == null) {
+                    methodNames[call] += Arrays.toString(parameterTypes);
+                } else {
+                    methods[call] = entries[call].method();
+                }
+            }
+
+            Outcome[] outcomes = new Outcome[count];
+            for (int call = 0; call < count; call++) {
+                if (entries[call] == null) {
+                    outcomes[call] = failure(methodNames[call], new NoSuchMethodException(methodNames[call]));
+                    continue;
+                }
+                if (primitives[call] != null) {
+                    outcomes[call] = invokePrimitive(entries[call], primitives[call]);
+                    continue;
+                }
+                Upload upload;
+                try {
+                    upload = attachUpload(entries[call], args[call], client);
+                } catch (RMIException e) {
+                    outcomes[call] = failure(methodNames[call], e);
+                    continue;
+                }
+                try {
+                    outcomes[call] = invoke(entries[call], args[call], client);
+                } finally {
+                    if (upload != null) {
+                        uploads.remove(upload.getId());
+                        upload.close();
+                    }
+                }
+            }
+
+            int responseFlags = agreed ? Frames.METHOD_TABLE : 0;
+            try {
+                return Frames.encode(callId, responseFlags, codec,
+                        new Outcomes(methods, outcomes, 0, count, responseBulk), responseCache, compressionThreshold,
+                        responseBulk);
+            } catch (IOException e) {
+                // Only the calls whose results cannot be serialized, or whose
+                // files cannot be opened, fail.
+                for (int call = 0; call < count; call++) {
+                    Bulk probe = new Bulk();
+                    try {
+                        Frames.encode(callId, 0, codec, new Outcomes(methods, outcomes, call, call + 1, probe), null,
+                                0, probe);
+                    } catch (IOException callException) {
+                        outcomes[call] = failure(methodNames[call], callException);
+                    } finally {
+                        probe.release();
+                    }
+                }
+                return Frames.encode(callId, responseFlags, codec,
+                        new Outcomes(methods, outcomes, 0, count, responseBulk), responseCache, compressionThreshold,
+                        responseBulk);
+            }
+        } finally {
+            for (Object[] callArgs : args) {
+                Marshal.discard(callArgs);
+            }
+        }
+    }
+
+    /**
+     Answers a request addressed to an object which the skeleton does not
+     export. Its calls cannot be decoded without the method table of their
+     object, so each of them fails without being read. They are made through
+     stubs for objects which have been unexported, so they are not reported
+     to <code>service_error</code>.
+
+     @return The payload of the response.
+     @throws Exception If the request cannot be decoded.
+     */
+    private byte[] serveUnknown(byte[] request, int callId, int flags, Codec codec, ObjectInput in,
+            ClassCache responseCache, int objectId) throws Exception {
+        if ((flags & Frames.METHOD_TABLE) != 0) {
+            in.readLong();
+        }
+        int count = readCount(request, flags, in);
+        Outcome[] outcomes = new Outcome[count];
+        for (int call = 0; call < count; call++) {
+            outcomes[call] = Outcome.failed(new RMIException("No object exported under identifier " + objectId));
+        }
+        return Frames.encode(callId, 0, codec, new Outcomes(new Method[count], outcomes, 0, count), responseCache);
+    }
+
+    /**
+     Reads the number of calls of a request. Every call takes up at least
+     one byte of the message, so a count larger than its objects could hold
+     is refused before any array is sized by it.
+
+     @throws StreamCorruptedException If the count is negative, or larger
+     than the objects of the request.
+     */
+    private static int readCount(byte[] request, int flags, ObjectInput in) throws IOException {
+        if ((flags & Frames.BATCH) == 0) {
+            return 1;
+        }
+        int count = in.readInt();
+        if (count < 0 || count > Frames.objectsLength(request)) {
+            throw new StreamCorruptedException("Invalid call count " + count);
+        }
+        return count;
+    }
+
+    /**
+     Serves a request carrying an operation on a streamed result or argument.
+
+     @return The payload of the response.
+     @throws Exception If the request cannot be decoded.
+     */
+    private byte[] serveStream(int callId, Codec codec, ObjectInput in, ClassCache responseCache,
+            InetAddress client) throws Exception {
+        int operation = in.readUnsignedByte();
+        if (operation == Frames.STREAM_OPEN) {
+            // Without keep-alive the connection closes after this response,
+            // before the call and its chunks could follow.
+            final Upload upload = keepAlive ? openUpload(client) : null;
+            return Frames.encode(callId, 0, codec, new Frames.Body() {
+                @Override
+                public void write(ObjectOutput out) throws IOException {
+                    out.writeLong(upload == null ? Upload.REFUSED : upload.getId());
+                }
+            }, responseCache);
+        }
+
+        if (operation == Frames.STREAM_CHUNK) {
+            long uploadId = in.readLong();
+            int sequence = in.readInt();
+            int length = in.readInt();
+            if (length < Upload.ABORTED || length > Upload.CHUNK_SIZE) {
+                throw new StreamCorruptedException("Invalid chunk length " + length);
+            }
+            byte[] data = null;
+            if (length >= 0) {
+                data = new byte[length];
+                in.readFully(data);
+            }
+            Upload upload = uploads.get(uploadId);
+            final boolean accepted = upload != null && upload.isOwnedBy(client)
+                    && upload.offer(sequence, data, length);
+            return Frames.encode(callId, 0, codec, new Frames.Body() {
+                @Override
+                public void write(ObjectOutput out) throws IOException {
+                    out.writeBoolean(accepted);
+                }
+            }, responseCache);
+        }
+
+        if (operation != Frames.STREAM_PAGE) {
+            throw new StreamCorruptedException("Unknown stream operation " + operation);
+        }
+        long cursorId = in.readLong();
+        Outcome outcome = page(cursorId, in.readInt(), client);
+        try {
+            return Frames.encode(callId, 0, codec, new Outcomes(new Method[1], new Outcome[]{outcome}, 0, 1),
+                    responseCache, compressionThreshold);
+        } catch (IOException e) {
+            Cursor cursor = cursors.remove(cursorId);
+            if (cursor != null) {
+                cursor.close();
+            }
+            outcome = failure("next page", e);
+            return Frames.encode(callId, 0, codec, new Outcomes(new Method[1], new Outcome[]{outcome}, 0, 1),
+                    responseCache);
+        }
+    }
+
+    /**
+     Opens an upload for the stream argument of a coming call. Uploads opened
+     for longer than the timeout without being used by a call, or receiving
+     chunks, are released at this point.
+     */
+    private Upload openUpload(InetAddress client) {
+        long now = System.currentTimeMillis();
+        for (Upload upload : uploads.values()) {
+            if (upload.isExpired(now)) {
+                uploads.remove(upload.getId());
+                upload.close();
+            }
+        }
+        Upload upload = new Upload(newId(uploads), client);
+        uploads.put(upload.getId(), upload);
+        return upload;
+    }
+
+    /**
+     Replaces the identifier of the upload among the arguments of a call, if
+     the method takes a stream, by the upload.
+
+     @return The upload, or <code>null</code> if the call has none.
+     @throws RMIException If the upload is not open, or is already the
+     argument of another call.
+     */
+    private Upload attachUpload(Dispatcher.Entry entry, Object[] args, InetAddress client) throws RMIException {
+        int index = entry.uploadParameter();
+        if (index < 0 || args[index] == null) {
+            return null;
+        }
+        long uploadId = (Long) args[index];
+        Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.isOwnedBy(client) || !upload.attach()) {
+            throw new RMIException("Upload " + uploadId + " is not open");
+        }
+        args[index] = upload;
+        return upload;
+    }
+
+    /**
+     Carries out a call on the server object, through its entry in the
+     dispatch table.
+
+     @return The outcome of the call.
+     */
+    private Outcome invoke(Dispatcher.Entry entry, Object[] args, InetAddress client) {
+        Method method = entry.method();
+        try {
+            entry.check(args);
+            Object result;
+            try {
+                result = entry.invoke(args);
+            } catch (Throwable t) {
+                return Outcome.failed(t);
+            }
+
+            if (result != null && entry.isStreamed()) {
+                return stream(result, client);
+            } else if (!entry.isRemote() || result == null) {
+                return Outcome.returned(method, result);
+            } else {
+                // The result is exported through this skeleton, and returned
+                // as a stub addressed to it.
+                Class returnType = method.getReturnType();
+                int objectId = exports.export(returnType, result);
+                return Outcome.remote(Stub.create(returnType, stubAddress, objectId));
+            }
+        } catch (Exception e) {
+            return failure(method.getName(), e);
+        }
+    }
+
+    /**
+     Carries out a call to a method whose values are all primitive, with its
+     arguments and result held as raw bits.
+
+     @return The outcome of the call.
+     */
+    private Outcome invokePrimitive(Dispatcher.Entry entry, long[] args) {
+        Method method = entry.method();
+        try {
+            entry.check(args);
+            long result;
+            try {
+                result = entry.invokePrimitive(args);
+            } catch (Throwable t) {
+                return Outcome.failed(t);
+            }
+            return Outcome.returnedPrimitive(method, result);
+        } catch (Exception e) {
+            return failure(method.getName(), e);
+        }
+    }
+
+    /**
+     Opens a cursor over the result of a call, and returns the outcome
+     carrying its first page. The cursor is kept only if more pages follow.
+     Cursors whose pages have not been requested for longer than the timeout
+     are released at this point.
+     */
+    private Outcome stream(Object result, InetAddress client) {
+        long now = System.currentTimeMillis();
+        for (Cursor cursor : cursors.values()) {
+            if (cursor.isExpired(now)) {
+                cursors.remove(cursor.getId());
+                cursor.close();
+            }
+        }
+
+        Cursor cursor = new Cursor(newId(cursors), result, client);
+        Cursor.Page page;
+        try {
+            page = cursor.next(Cursor.PAGE_SIZE);
+        } catch (RuntimeException | Error e) {
+            return Outcome.failed(e);
+        }
+        if (page.hasMore()) {
+            cursors.put(cursor.getId(), cursor);
+        }
+        return Outcome.streamed(page);
+    }
+
+    /**
+     Serves a request for the next page of a streamed result.
+
+     @param cursorId The identifier of the cursor.
+     @param max The number of elements requested, or zero to release the
+     cursor.
+     @param client The address of the client requesting the page.
+     @return The outcome carrying the page.
+     */
+    private Outcome page(long cursorId, int max, InetAddress client) {
+        Cursor cursor = cursors.get(cursorId);
+        if (cursor == null || !cursor.isOwnedBy(client)) {
+            return Outcome.failed(new RMIException("Streamed result " + cursorId + " has been released"));
+        }
+        if (max <= 0) {
+            cursors.remove(cursorId);
+            cursor.close();
+            return Outcome.streamed(new Cursor.Page(cursorId, new ArrayList<>(), false));
+        }
+        try {
+            Cursor.Page page = cursor.next(max);
+            if (!page.hasMore()) {
+                cursors.remove(cursorId);
+            }
+            return Outcome.streamed(page);
+        } catch (RuntimeException | Error e) {
+            cursors.remove(cursorId);
+            return Outcome.failed(e);
+        }
+    }
+
+    /**
+     Returns a new identifier for a cursor or an upload. Identifiers are
+     random, so that a client cannot find those of other clients by counting.
+     They are never negative, which marks a <code>null</code> stream
+     argument, nor <code>Upload.REFUSED</code>.
+
+     @param taken The cursors or uploads, by identifier.
+     */
+    private long newId(Map<Long, ?> taken) {
+        long id;
+        do {
+            id = ids.nextLong() >>> 1;
+        } while (id == Upload.REFUSED || taken.containsKey(id));
+        return id;
+    }
+
+    /** Reports a call which could not be served, and returns its outcome. */
+    private Outcome failure(String methodName, Exception e) {
+        RMIException error = new RMIException("Call to " + methodName + " could not be served", e);
+        service_error(error);
+        return Outcome.failed(error);
+    }
+
+    /**
+     Writes the outcomes of a range of calls, each encoded according to the
+     return type of its method.
+     */
+    private static class Outcomes implements Frames.Body {
+        private final Method[] methods;
+        private final Outcome[] outcomes;
+        private final int from;
+        private final int to;
+        /** The bulk data of the response, or <code>null</code> if it cannot have any. */
+        private final Bulk bulk;
+
+        Outcomes(Method[] methods, Outcome[] outcomes, int from, int to) {
+            this(methods, outcomes, from, to, null);
+        }
+
+        Outcomes(Method[] methods, Outcome[] outcomes, int from, int to, Bulk bulk) {
+            this.methods = methods;
+            this.outcomes = outcomes;
+            this.from = from;
+            this.to = to;
+            this.bulk = bulk;
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+            for (int call = from; call < to; call++) {
+                Method method = methods[call];
+                outcomes[call].write(out, outcomes[call].isFailed() || method == null ? null : method.getReturnType(),
+                        bulk);
+            }
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package rmi;
+
+import java.io.IOException;
+
+/**
+ Failure of a call which shows that its connection was closed before the call
+ could start: writing the request failed, or the connection ended before the
+ first byte of the response.
+
+ <p>
+ This is how a reused connection fails when the skeleton closed it while it
+ was idle. The stub then repeats the call once over a new connection. A
+ request which failed to be written cannot have been served, since the
+ skeleton only serves complete frames, together with their bulk data. A
+ request followed by the end of the connection may have been served, if the
+ skeleton failed after serving it but before writing any of the response; the
+ call is repeated in that case too.
+ Any other failure, including one in the middle of the response, fails the
+ call without repeating it.
+ */
+class StaleConnectionException extends IOException {
+
+    StaleConnectionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
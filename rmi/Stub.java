@@ -1,15 +1,25 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
+import java.lang.ref.Cleaner;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 /**
  RMI stub factory.
@@ -24,8 +34,44 @@ import java.util.Arrays;
  may not be modified afterwards. Two stubs are equal if they implement the
  same interface and carry the same remote server address - and would
  therefore connect to the same skeleton. Stubs are serializable.
+
+ <p>
+ Stubs do not connect anew for every call. Connections are kept in a pool
+ shared by all stubs in the process, keyed by skeleton address, so that equal
+ stubs - however they were obtained - reuse the same connections. The limits
+ of the pool are set with <code>setConnectionPool</code>. Connections that
+ turn out to have been closed by the skeleton are replaced transparently.
+ Alternatively, multiplexed and pipelined stubs, obtained with
+ <code>multiplex</code> and <code>pipeline</code>, share a single connection of
+ their own between all threads calling them.
+
+ <p>
+ A call is repeated, once, over a new connection only if the connection it
+ was made over had carried calls before, and either writing its request
+ failed or the connection ended before the first byte of its response. A
+ request which could not be written was not served. A connection which ends
+ before answering was normally closed by the skeleton while idle, before the
+ request arrived, but a skeleton which fails after serving a call and before
+ answering it also ends the connection, so that a method may then run twice.
+ Calls which fail in any other way are not repeated, and fail with an
+ <code>RMIException</code> even though the server may have run them.
+
+ <p>
+ Besides ordinary stubs, this class creates asynchronous stubs, whose calls
+ return futures, and batches, which send many calls in a single round trip.
+
+ <p>
+ Stubs of interfaces marked with <code>Remote</code> are instances of the stub
+ classes generated for them at build time. Other stubs are proxies, unless
+ <code>setGeneratedStubs</code> selects stubs of classes generated for their
+ interface at runtime.
  */
 public abstract class Stub implements Serializable {
+
+    private static volatile boolean generatedStubs = false;
+    /** Releases the shared connections of stubs which are no longer reachable. */
+    private static final Cleaner cleaner = Cleaner.create();
+
     /**
      Creates a stub, given a skeleton with an assigned adress.
 
@@ -68,8 +114,7 @@ public abstract class Stub implements Serializable {
         }
 
         try {
-            InvocationHandler handler = new StubInvocationHandler(skeleton.getAddress(), c);
-            return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handler);
+            return (T) newStub(new StubInvocationHandler<>(skeleton.getAddress(), c));
         } catch (Exception e) {
             throw new Error("Stub for remote interface " + c.getCanonicalName() + " could not be created: " + e);
         }
@@ -120,8 +165,7 @@ public abstract class Stub implements Serializable {
 
         try {
             InetSocketAddress address = new InetSocketAddress(hostname, skeleton.getAddress().getPort());
-            InvocationHandler handler = new StubInvocationHandler(address, c);
-            return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handler);
+            return (T) newStub(new StubInvocationHandler<>(address, c));
         } catch (Exception e) {
             throw new Error("Stub for remote interface " + c.getCanonicalName() + " could not be created: " + e);
         }
@@ -153,21 +197,433 @@ public abstract class Stub implements Serializable {
         validateClass(c);
 
         try {
-            InvocationHandler handler = new StubInvocationHandler(address, c);
-            return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handler);
+            return (T) newStub(new StubInvocationHandler<>(address, c));
         } catch (Exception e) {
             throw new Error("Stub for remote interface " + c.getCanonicalName() + " could not be created: " + e);
         }
     }
 
-    private static class StubInvocationHandler<T> implements InvocationHandler, Serializable {
+    /**
+     Creates a stub for an object exported by a skeleton under the given
+     object identifier.
+
+     @param c The remote interface through which the object is exported.
+     @param address The address of the skeleton.
+     @param objectId The identifier of the object.
+     @return The stub created.
+     @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    static <T> T create(Class<T> c, InetSocketAddress address, int objectId) {
+        validateClass(c);
+        return (T) newStub(new StubInvocationHandler<>(address, c, objectId, StubInvocationHandler.POOLED, 0, 0));
+    }
+
+    /**
+     Creates an asynchronous stub, given the address of a remote server.
+
+     <p>
+     Calls made through the asynchronous stub return immediately, with a
+     future of their result: a remote method <code>R m(args)</code> is called
+     as <code>async.call(s -&gt; s.m(args))</code>, which returns a
+     <code>CompletableFuture&lt;R&gt;</code>. The calls are multiplexed over a
+     single connection, so no thread is blocked while calls are outstanding,
+     and calls to several remote objects can be made in parallel from one
+     thread. Exceptions thrown by the remote method, or raised while making the
+     call, complete the future exceptionally, and are wrapped in
+     <code>RMIException</code> under the same rules as for ordinary stubs.
+
+     @param c A <code>Class</code> object representing the interface
+     implemented by the remote object.
+     @param address The network address of the remote skeleton.
+     @return The asynchronous stub created.
+     @throws NullPointerException If any argument is <code>null</code>.
+     @throws Error If <code>c</code> does not represent a remote interface
+     - an interface in which each method is marked as throwing
+     <code>RMIException</code>, or if an object implementing
+     this interface cannot be dynamically created.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c, InetSocketAddress address) {
+        return new AsyncStub<>(c, multiplex(create(c, address)));
+    }
+
+    /**
+     Starts a call through a stub without waiting for its response.
+
+     @param stub A multiplexed stub.
+     @param method The remote method.
+     @param args The arguments of the call.
+     @return The future of the result, boxed if the method returns a primitive
+     value, or <code>null</code> for a void method.
+     */
+    static CompletableFuture<Object> invokeAsync(Object stub, Method method, Object[] args) {
+        return handler(stub).callAsync(method, args);
+    }
+
+    /**
+     Creates a batch of calls to the remote object of the given stub.
+
+     <p>
+     Calls added to the batch are recorded rather than performed. When the
+     batch is executed, they are sent to the skeleton as a single request, and
+     their results come back in a single response, so that the whole batch
+     costs one round trip.
+
+     @param stub The stub through which the batch is to be sent.
+     @return The empty batch.
+     @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static <T> Batch<T> batch(T stub) {
+        return new Batch<>((Class<T>) handler(stub).getInterfaceClass(), stub);
+    }
+
+    /**
+     Performs a batch of calls through a stub.
+
+     @param stub The stub.
+     @param recorder The recorded calls.
+     @param results The futures of the calls, which are completed once the
+     response has been received: with the result of each call, or
+     exceptionally, under the same rules as <code>invoke</code>.
+     @throws RMIException If the batch cannot be sent, or its response cannot
+     be received. The futures are then left as they are.
+     */
+    static void invokeBatch(Object stub, Recorder recorder, List<CompletableFuture<Object>> results)
+            throws RMIException {
+        handler(stub).callBatch(recorder, results);
+    }
+
+    /**
+     Returns the invocation handler of a stub.
+
+     @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    private static StubInvocationHandler<?> handler(Object stub) {
+        if (stub == null) {
+            throw new NullPointerException("Stub is null");
+        }
+        StubInvocationHandler<?> handler = handlerOf(stub);
+        if (handler == null) {
+            throw new IllegalArgumentException("Object is not a stub");
+        }
+        return handler;
+    }
+
+    /** Returns the invocation handler of an object, or <code>null</code> if it is not a stub. */
+    private static StubInvocationHandler<?> handlerOf(Object object) {
+        if (object instanceof GeneratedStub) {
+            return ((GeneratedStub) object).handler();
+        }
+        if (object == null || !Proxy.isProxyClass(object.getClass())
+                || !(Proxy.getInvocationHandler(object) instanceof StubInvocationHandler)) {
+            return null;
+        }
+        return (StubInvocationHandler<?>) Proxy.getInvocationHandler(object);
+    }
+
+    /**
+     Creates a stub with the given handler: an instance of the stub class
+     generated at build time for the interface if there is one, or else of a
+     class generated at runtime if generated stubs are enabled and the
+     interface allows it, and otherwise a proxy.
+     */
+    static Object newStub(StubInvocationHandler<?> handler) {
+        Class<?> c = handler.getInterfaceClass();
+        Object stub = StubGenerator.create(c, handler, generatedStubs);
+        if (stub == null) {
+            stub = Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handler);
+        }
+        return stub;
+    }
+
+    /**
+     Returns a multiplexed stub for the same remote object as the given stub.
+
+     <p>
+     A multiplexed stub carries all of its calls over a single connection,
+     whichever thread makes them. Calls made concurrently do not wait for one
+     another: the skeleton serves them concurrently, and each response is
+     delivered to its call as soon as it arrives, even if calls made later
+     complete first. Multiplexed stubs are equal to ordinary stubs for the same
+     interface and address.
+
+     <p>
+     With the blocking transport of the skeleton, multiplexed calls are served
+     on threads of their own rather than on the executor, so that a call
+     blocked in the server does not hold up the other calls of its connection.
+     At most <code>Skeleton.MAX_CONCURRENT_CALLS</code> calls of a connection
+     are served at the same time; further calls wait until one completes.
+
+     <p>
+     The connection of a multiplexed stub is released by <code>close</code>,
+     or once the stub is no longer reachable.
+
+     @param stub The stub, as returned by one of the <code>create</code>
+     methods.
+     @return The multiplexed stub.
+     @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static <T> T multiplex(T stub) {
+        StubInvocationHandler<?> handler = handler(stub);
+        return derive(stub, StubInvocationHandler.MULTIPLEXED, handler.codecId, handler.compressionThreshold);
+    }
+
+    /**
+     Returns a pipelined stub for the same remote object as the given stub.
+
+     <p>
+     A pipelined stub carries all of its calls over a single connection,
+     whichever thread makes them. Each request is written as soon as the call
+     is made, without waiting for the responses to earlier calls, so calls made
+     concurrently cost a single round trip between them rather than one each.
+     Unlike multiplexed calls, pipelined calls are served by the skeleton in the
+     order in which they were made, one at a time, and their responses arrive
+     in that order. Pipelined stubs are equal to ordinary stubs for the same
+     interface and address. Their connection is released as for multiplexed
+     stubs.
+
+     @param stub The stub, as returned by one of the <code>create</code>
+     methods.
+     @return The pipelined stub.
+     @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static <T> T pipeline(T stub) {
+        StubInvocationHandler<?> handler = handler(stub);
+        return derive(stub, StubInvocationHandler.PIPELINED, handler.codecId, handler.compressionThreshold);
+    }
+
+    /**
+     Releases the connection of a stub.
+
+     <p>
+     Multiplexed and pipelined stubs carry all their calls over a connection
+     of their own. Ordinary stubs open one too, the first time they fetch the
+     further pages of a streamed result or send a stream argument, and keep it
+     for later ones; their other calls use pooled connections, which are left
+     as they are.
+
+     <p>
+     Calls in progress over the connection fail, as do page requests of
+     streamed results. The stub may still be used: its next call that needs
+     the connection opens a new one. The connection of a stub which is no
+     longer reachable is released without this method being called, but only
+     once the stub has been garbage collected.
+
+     @param stub The stub.
+     @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static void close(Object stub) {
+        handler(stub).closeSharedConnection();
+    }
+
+    /**
+     Returns a stub for the same remote object as the given stub, encoding its
+     calls with the given codec.
+
+     <p>
+     The codec is registered with <code>Codecs.register</code> if it is not
+     already. The stub keeps the mode of the given stub - ordinary,
+     multiplexed or pipelined - and carries the identifier of the codec when
+     it is serialized. Where the codec is not registered, the stub uses Java
+     serialization. The skeleton answers with the codec of each request; if it
+     does not accept the codec, the stub repeats the call with Java
+     serialization, and keeps using it for its later calls. Stubs with
+     different codecs are equal if they are otherwise equal.
+
+     @param stub The stub.
+     @param codec The codec.
+     @return The stub using the codec.
+     @throws NullPointerException If either argument is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub, or
+     if the identifier of the codec is invalid or used by another codec.
+     */
+    public static <T> T withCodec(T stub, Codec codec) {
+        StubInvocationHandler<?> handler = handler(stub);
+        if (codec != Codecs.JAVA) {
+            Codecs.register(codec);
+        }
+        return derive(stub, handler.mode, codec.getId(), handler.compressionThreshold);
+    }
+
+    /**
+     Returns a stub for the same remote object as the given stub, compressing
+     large requests.
+
+     <p>
+     Requests whose arguments take more than <code>threshold</code> bytes
+     once serialized are compressed, if that makes them smaller. Compression
+     costs processor time on both sides, and pays off for large, redundant
+     arguments, such as text or collections of similar objects, sent over
+     links slower than the compression itself. Responses are compressed
+     according to the setting of the skeleton, and are inflated whatever the
+     setting of the stub. The stub keeps the mode and codec of the given stub,
+     and carries the threshold when it is serialized. Stubs with different
+     thresholds are equal if they are otherwise equal.
+
+     @param stub The stub.
+     @param threshold The size in bytes above which requests are compressed,
+     or zero for no compression.
+     @return The stub compressing its requests.
+     @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     @throws IllegalArgumentException If <code>stub</code> is not a stub, or
+     if <code>threshold</code> is negative.
+     */
+    public static <T> T withCompression(T stub, int threshold) {
+        StubInvocationHandler<?> handler = handler(stub);
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Negative compression threshold");
+        }
+        return derive(stub, handler.mode, handler.codecId, threshold);
+    }
+
+    /**
+     Creates a stub for the same remote object as a stub, with the given mode,
+     codec and compression threshold.
+     */
+    private static <T> T derive(T stub, int mode, int codecId, int compressionThreshold) {
+        StubInvocationHandler<?> handler = handler(stub);
+        Class<?> c = handler.getInterfaceClass();
+        return (T) newStub(new StubInvocationHandler<>(handler.getAddress(), c, handler.objectId, mode,
+                codecId, compressionThreshold));
+    }
+
+    /**
+     Sets the limits of the connection pool shared by all stubs.
+
+     <p>
+     The pool keeps up to <code>maxConnections</code> connections open to each
+     skeleton address, whether idle or carrying a call. A call that finds them
+     all in use waits until one of them is released. Idle connections are
+     closed after <code>idleTimeout</code> milliseconds, except that the
+     <code>minIdle</code> most recently used ones are kept open for each
+     address; as the skeleton also closes idle connections, a minimum is only
+     useful with a skeleton idle timeout longer than the one given here.
+     Connections older than <code>maxLifetime</code> milliseconds are closed
+     rather than reused, which spreads load over skeletons that are replaced
+     or rebalanced behind the same address.
+
+     <p>
+     By default, there is no minimum and no maximum, the idle timeout is
+     thirty seconds, and connections are never retired. The limits apply to
+     every address, including connections already open.
+
+     @param minIdle Number of idle connections kept open per address
+     regardless of the idle timeout.
+     @param maxConnections Maximum number of connections open to each address.
+     @param idleTimeout Time in milliseconds after which an idle connection is
+     closed, or zero for no timeout.
+     @param maxLifetime Time in milliseconds after which a connection is
+     retired, or zero for no limit.
+     @throws IllegalArgumentException If a limit is negative, or if
+     <code>maxConnections</code> is less than one.
+     */
+    public static void setConnectionPool(int minIdle, int maxConnections, long idleTimeout, long maxLifetime) {
+        ConnectionPool.shared().configure(minIdle, maxConnections, idleTimeout, maxLifetime);
+    }
+
+    /**
+     Selects whether stubs created from now on are instances of classes
+     generated at runtime for their interface, rather than proxies.
+
+     <p>
+     A generated class implements each remote method directly, so that a call
+     goes straight to the handler of the stub without the reflective dispatch
+     of a proxy. Classes are generated once per interface. An interface which
+     is not public, or whose methods use types which are not public, is still
+     given proxies. Both kinds of stubs behave alike: they are equal when they
+     share interface and address, and they are serialized in the same way.
+     Generated stubs are disabled by default. Stubs of interfaces whose stub
+     class was generated at build time use that class either way.
+
+     @param enabled <code>true</code> to generate stub classes.
+     */
+    public static void setGeneratedStubs(boolean enabled) {
+        generatedStubs = enabled;
+    }
+
+    /**
+     The shared connection of a stub. It is held apart from the handler of the
+     stub, so that the cleaner can close it once the handler is no longer
+     reachable.
+     */
+    private static final class SharedConnectionHolder implements Runnable {
+        private SharedConnection connection;
+
+        /**
+         Returns the connection, replacing it if it has failed or has been
+         idle for too long.
+         */
+        synchronized SharedConnection get(InetSocketAddress address) throws IOException {
+            if (connection == null || !connection.isUsable(ConnectionPool.shared().getIdleTimeout())) {
+                if (connection != null) {
+                    connection.retire();
+                }
+                connection = new SharedConnection(address);
+            }
+            return connection;
+        }
+
+        /** Closes the connection, if there is one. */
+        @Override
+        public synchronized void run() {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    static class StubInvocationHandler<T> implements InvocationHandler, Serializable {
+
+        /** Calls are made over pooled connections. */
+        private static final int POOLED = 0;
+        /** Calls share one connection, and are served concurrently. */
+        private static final int MULTIPLEXED = 1;
+        /** Calls share one connection, and are served in order. */
+        private static final int PIPELINED = 2;
+
+        private static final Method EQUALS;
+        private static final Method HASH_CODE;
+        private static final Method TO_STRING;
+
+        static {
+            try {
+                EQUALS = Object.class.getMethod("equals", Object.class);
+                HASH_CODE = Object.class.getMethod("hashCode");
+                TO_STRING = Object.class.getMethod("toString");
+            } catch (NoSuchMethodException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
 
         private Class<T> interfaceClass;
         private InetSocketAddress address;
+        /** The identifier of the remote object among those exported by the skeleton. */
+        private int objectId;
+        private int mode;
+        private int codecId;
+        /** Size above which requests are compressed, or zero. */
+        private int compressionThreshold;
+        private transient SharedConnectionHolder sharedConnection;
+        /** Set once the skeleton has rejected the codec of the stub. */
+        private transient volatile boolean codecRejected;
 
         private StubInvocationHandler(InetSocketAddress address, Class interfaceClass) {
+            this(address, interfaceClass, ExportTable.PRIMARY, POOLED, 0, 0);
+        }
+
+        private StubInvocationHandler(InetSocketAddress address, Class interfaceClass, int objectId, int mode,
+                int codecId, int compressionThreshold) {
             this.address = address;
             this.interfaceClass = interfaceClass;
+            this.objectId = objectId;
+            this.mode = mode;
+            this.codecId = codecId;
+            this.compressionThreshold = compressionThreshold;
         }
 
         public Class getInterfaceClass() {
@@ -181,69 +637,667 @@ public abstract class Stub implements Serializable {
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 
-            if (method.equals(Object.class.getMethod("equals", Object.class))) {
-                if (args[0] instanceof Proxy) {
-                    StubInvocationHandler handler = (StubInvocationHandler) Proxy.getInvocationHandler((Proxy) args[0]);
-                    return interfaceClass.equals(handler.getInterfaceClass()) && address.equals(handler.getAddress());
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.equals(EQUALS)) {
+                    return stubEquals(args[0]);
                 }
-                return false;
-                // alternately can match tostrings of both
+                if (method.equals(HASH_CODE)) {
+                    return stubHashCode();
+                }
+                if (method.equals(TO_STRING)) {
+                    return stubToString();
+                }
+            }
+
+            return invokeRemote(method, args);
+        }
+
+        /** Performs a remote call, and throws the exception it fails with, if any. */
+        Object invokeRemote(Method method, Object[] args) throws Exception {
+            try {
+                return call(method, args);
+            } catch (Exception e) {
+                throw wrap(method, e);
+            }
+        }
+
+        /**
+         Performs a remote call to a method marshalled as raw bits, as
+         described in <code>Marshal</code>, and throws the exception it fails
+         with, if any.
+
+         @param args The arguments, as raw bits.
+         @return The result as raw bits, or zero for a void method.
+         */
+        long invokePrimitive(Method method, long[] args) throws Exception {
+            try {
+                Request request = new Request(method, args);
+                byte[] response = transmit(request);
+                Outcome outcome = Outcome.readPrimitive(Frames.decode(response, request.cache),
+                        method.getReturnType());
+                if (outcome.isFailed()) {
+                    throw exception(outcome);
+                }
+                return outcome.getBits();
+            } catch (Exception e) {
+                throw wrap(method, e);
             }
+        }
+
+        /** Returns <code>true</code> if an object is a stub for the same interface and address. */
+        boolean stubEquals(Object other) {
+            StubInvocationHandler<?> handler = handlerOf(other);
+            return handler != null && interfaceClass.equals(handler.getInterfaceClass())
+                    && address.equals(handler.getAddress()) && objectId == handler.objectId;
+        }
+
+        int stubHashCode() {
+            return interfaceClass.hashCode() * address.hashCode() + objectId;
+        }
 
-            if (method.equals(Object.class.getMethod("hashCode"))) {
-                return interfaceClass.hashCode() * address.hashCode();
+        String stubToString() {
+            String object = objectId == ExportTable.PRIMARY ? "" : " #" + objectId;
+            return interfaceClass.getCanonicalName() + " " + address.toString() + object;
+        }
+
+        /**
+         Returns the exception with which a failed call completes: the
+         exception itself if the method declares it, and otherwise an
+         <code>RMIException</code> wrapping it.
+         */
+        private Exception wrap(Method method, Exception e) {
+            RemoteInterface.RemoteMethod metadata = RemoteInterface.of(interfaceClass).method(method);
+            if (metadata != null && metadata.declares(e.getClass())) {
+                return e;
             }
+            return new RMIException(e);
+        }
 
-            if (method.equals(Object.class.getMethod("toString"))) {
-                return interfaceClass.getCanonicalName() + " " + address.toString();
+        /**
+         Performs a remote call, over a pooled connection or, for a multiplexed
+         or pipelined stub, over the shared connection.
+         */
+        private Object call(Method method, Object[] args) throws Exception {
+            int stream = RemoteInterface.of(interfaceClass).method(method).uploadParameter();
+            if (stream >= 0 && args[stream] != null) {
+                return callWithUpload(method, args, stream);
             }
+            Request request = new Request(0, new Method[]{method}, new Object[][]{args});
+            return decodeResponse(method, transmit(request), request);
+        }
+
+        /**
+         Performs a remote call taking a stream argument. The call is sent as
+         a multiplexed call over the shared connection, so that the chunks of
+         the stream can be served while it is in progress, and the chunks are
+         sent until the stream ends, the skeleton wants no more of them, or
+         the call returns. The stream is not closed.
 
+         @param stream The index of the stream parameter.
+         */
+        private Object callWithUpload(Method method, Object[] args, int stream) throws Exception {
+            SharedConnection connection = sharedConnection();
+            long uploadId;
             try {
-                Socket socket = new Socket(address.getHostName(), address.getPort());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                out.writeObject(method.getName());
-                out.writeObject(method.getParameterTypes());
-                out.writeObject(args);
-                out.flush();
+                uploadId = openUpload(connection);
+            } catch (StaleConnectionException e) {
+                if (!connection.isReused()) {
+                    throw e;
+                }
+                connection = sharedConnection();
+                uploadId = openUpload(connection);
+            }
 
-                // Read result pass or fail
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                Object success = in.readObject();
+            Object[] sent = args.clone();
+            sent[stream] = uploadId;
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            submit(method, new Request(Frames.MULTIPLEXED, new Method[]{method}, new Object[][]{sent}), true, result);
+            upload(connection, uploadId, (InputStream) args[stream], result);
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RMIException("Interrupted while waiting for the response", e);
+            }
+        }
+
+        /**
+         Opens an upload with the skeleton, and returns its identifier.
 
-                if (success.equals("FAILED")) {
-                    Object error = in.readObject();
-                    in.close();
-                    out.close();
-                    socket.close();
-                    throw (Exception) error;
+         @throws RMIException If the skeleton refuses to open the upload.
+         */
+        private static long openUpload(SharedConnection connection) throws IOException, RMIException {
+            byte[] response = connection.call(Frames.encode(0, Frames.STREAM | Frames.MULTIPLEXED, Codecs.JAVA,
+                    new Frames.Body() {
+                @Override
+                public void write(ObjectOutput out) throws IOException {
+                    out.writeByte(Frames.STREAM_OPEN);
+                }
+            }, connection.getClassCache()));
+            long uploadId = Frames.decode(response, connection.getClassCache()).readLong();
+            if (uploadId == Upload.REFUSED) {
+                throw new RMIException("Skeleton refuses stream arguments: its keep-alive connections are disabled");
+            }
+            return uploadId;
+        }
+
+        /**
+         Sends the chunks of a stream argument, keeping at most
+         <code>Upload.WINDOW</code> of them unacknowledged.
+         */
+        private static void upload(SharedConnection connection, long uploadId, InputStream stream,
+                CompletableFuture<Object> result) throws IOException {
+            Deque<CompletableFuture<byte[]>> acknowledgements = new ArrayDeque<>();
+            byte[] chunk = new byte[Upload.CHUNK_SIZE];
+            int sequence = 0;
+            while (!result.isDone()) {
+                int length;
+                try {
+                    length = stream.readNBytes(chunk, 0, chunk.length);
+                } catch (IOException e) {
+                    sendChunk(connection, acknowledgements, uploadId, sequence, chunk, Upload.ABORTED);
+                    return;
+                }
+                if (length > 0 && !sendChunk(connection, acknowledgements, uploadId, sequence++, chunk, length)) {
+                    return;
+                }
+                if (length < chunk.length) {
+                    sendChunk(connection, acknowledgements, uploadId, sequence, chunk, Upload.END);
+                    return;
                 }
+            }
+        }
 
-                Object result = null;
+        /**
+         Sends a chunk of a stream argument, once fewer than
+         <code>Upload.WINDOW</code> chunks are unacknowledged.
 
-                if (!method.getReturnType().equals(Void.TYPE)) {
-                    result = in.readObject();
+         @param length The number of bytes of the chunk, or
+         <code>Upload.END</code> or <code>Upload.ABORTED</code>.
+         @return <code>false</code> if the skeleton wants no more chunks, in
+         which case the chunk is not sent.
+         */
+        private static boolean sendChunk(SharedConnection connection,
+                Deque<CompletableFuture<byte[]>> acknowledgements, final long uploadId, final int sequence,
+                final byte[] chunk, final int length) throws IOException {
+            if (acknowledgements.size() == Upload.WINDOW && !isAccepted(connection, acknowledgements.removeFirst())) {
+                return false;
+            }
+            acknowledgements.addLast(connection.submit(Frames.encode(0, Frames.STREAM | Frames.MULTIPLEXED,
+                    Codecs.JAVA, new Frames.Body() {
+                @Override
+                public void write(ObjectOutput out) throws IOException {
+                    out.writeByte(Frames.STREAM_CHUNK);
+                    out.writeLong(uploadId);
+                    out.writeInt(sequence);
+                    out.writeInt(length);
+                    if (length > 0) {
+                        out.write(chunk, 0, length);
+                    }
                 }
+            }, connection.getClassCache())));
+            return true;
+        }
 
-                in.close();
-                out.close();
-                socket.close();
-                return result;
+        /** Waits for the acknowledgement of a chunk, and returns whether the skeleton took it in. */
+        private static boolean isAccepted(SharedConnection connection, CompletableFuture<byte[]> acknowledgement)
+                throws IOException {
+            try {
+                return Frames.decode(acknowledgement.get(), connection.getClassCache()).readBoolean();
+            } catch (ExecutionException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending a stream argument");
+            }
+        }
+
+        /**
+         Sends a request, over a pooled connection or the shared connection,
+         and receives its response. A request whose codec is rejected by the
+         skeleton is sent again with Java serialization.
+         */
+        private byte[] transmit(Request request) throws IOException {
+            byte[] response = mode == POOLED ? exchange(request) : exchangeShared(request);
+            if (isRejected(response, request)) {
+                response = mode == POOLED ? exchange(request) : exchangeShared(request);
+            }
+            return response;
+        }
+
+        /**
+         Returns the codec for the next request: the codec of the stub, unless
+         it is not registered in this process or has been rejected by the
+         skeleton.
+         */
+        private Codec codec() {
+            Codec codec = codecRejected ? null : Codecs.get(codecId);
+            return codec == null ? Codecs.JAVA : codec;
+        }
+
+        /**
+         Checks whether a response reports that the skeleton rejected the codec
+         of the request. The stub then stops using the codec, and the request
+         is to be sent again with Java serialization.
+         */
+        private boolean isRejected(byte[] response, Request request) throws IOException {
+            if (request.codec == Codecs.JAVA || (Frames.flags(response) & Frames.CODEC_REJECTED) == 0) {
+                return false;
+            }
+            codecRejected = true;
+            request.codec = Codecs.JAVA;
+            return true;
+        }
+
+        /** Returns <code>true</code> if a response reports that the skeleton has the method table of the stub. */
+        private static boolean isAgreed(byte[] response) throws IOException {
+            return (Frames.flags(response) & Frames.METHOD_TABLE) != 0;
+        }
+
+        /**
+         Starts a remote call over the shared connection, without waiting for
+         its response.
+
+         <p>
+         The future is completed on the reading thread of the connection, and
+         exceptionally with the same exceptions as <code>invoke</code> would
+         throw. A call that fails because a reused connection turns out to have
+         been closed by the skeleton is repeated once over a new connection, as
+         for synchronous calls.
+         */
+        private CompletableFuture<Object> callAsync(Method method, Object[] args) {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            try {
+                submit(method, new Request(0, new Method[]{method}, new Object[][]{args}), true, result);
             } catch (Exception e) {
-                if (Arrays.asList(method.getExceptionTypes()).contains(e.getClass())){
+                result.completeExceptionally(wrap(method, e));
+            }
+            return result;
+        }
+
+        /**
+         Sends the request of an asynchronous call, and completes its future
+         with the response. The request is sent again, once, if it fails with a
+         <code>StaleConnectionException</code> over a reused connection, or if
+         the skeleton rejects its codec.
+
+         @param retry <code>false</code> if the request has been sent before.
+         */
+        private void submit(final Method method, final Request request, final boolean retry,
+                final CompletableFuture<Object> result) throws IOException {
+            final SharedConnection connection = sharedConnection();
+            final boolean reused = connection.isReused();
+            byte[] frame = request.encode(connection.getMethodTables(), connection.getClassCache());
+            connection.submit(frame, request.sent, request.received).whenComplete(
+                    new BiConsumer<byte[], Throwable>() {
+                @Override
+                public void accept(byte[] response, Throwable failure) {
+                    try {
+                        if (failure == null && isAgreed(response)) {
+                            connection.getMethodTables().add(request.table.fingerprint());
+                        }
+                        if (failure == null && isRejected(response, request)) {
+                            submit(method, request, false, result);
+                        } else if (failure == null) {
+                            result.complete(decodeResponse(method, response, request));
+                        } else if (retry && reused && failure instanceof StaleConnectionException) {
+                            submit(method, request, false, result);
+                        } else {
+                            result.completeExceptionally(wrap(method, (Exception) failure));
+                        }
+                    } catch (Exception e) {
+                        result.completeExceptionally(wrap(method, e));
+                    }
+                }
+            });
+        }
+
+        /**
+         Performs a batch of calls in a single exchange with the skeleton.
+
+         @see Stub#invokeBatch
+         */
+        private void callBatch(Recorder recorder, List<CompletableFuture<Object>> results) throws RMIException {
+            int count = recorder.size();
+            Method[] methods = new Method[count];
+            Object[][] args = new Object[count][];
+            for (int call = 0; call < count; call++) {
+                methods[call] = recorder.method(call);
+                args[call] = recorder.arguments(call);
+            }
+
+            Request request = new Request(Frames.BATCH, methods, args);
+            ObjectInput in;
+            try {
+                in = Frames.decode(transmit(request), request.cache);
+            } catch (IOException e) {
+                if (request.received != null) {
+                    request.received.release();
+                }
+                throw new RMIException("Batch could not be sent", e);
+            }
+
+            try {
+                for (int call = 0; call < count; call++) {
+                    Method method = recorder.method(call);
+                    try {
+                        Outcome outcome = Outcome.read(in, method.getReturnType(), request.received);
+                        if (outcome.isFailed()) {
+                            results.get(call).completeExceptionally(wrap(method, exception(outcome)));
+                        } else {
+                            results.get(call).complete(result(method, outcome));
+                        }
+                    } catch (IOException | ClassNotFoundException e) {
+                        // The rest of the response cannot be read either.
+                        for (int failed = call; failed < count; failed++) {
+                            results.get(failed).completeExceptionally(new RMIException(e));
+                        }
+                        return;
+                    }
+                }
+            } finally {
+                request.received.release();
+            }
+        }
+
+        /**
+         Decodes the response to a call, and releases the bulk data received
+         with it.
+
+         @param request The request of the call, as last encoded.
+         @return The result of the call, or <code>null</code> for a void method.
+         @throws Exception The exception thrown by the remote method, or raised
+         while serving the call.
+         */
+        private Object decodeResponse(Method method, byte[] response, Request request) throws Exception {
+            Outcome outcome;
+            try {
+                outcome = Outcome.read(Frames.decode(response, request.cache), method.getReturnType(),
+                        request.received);
+            } finally {
+                request.received.release();
+            }
+            if (outcome.isFailed()) {
+                throw exception(outcome);
+            }
+            return result(method, outcome);
+        }
+
+        /**
+         Returns the result of a successful call: the value it carries, or a
+         remote iterator or stream over a streamed result.
+         */
+        private Object result(Method method, Outcome outcome) {
+            if (!outcome.isStreamed()) {
+                return outcome.getValue();
+            }
+            RemoteCursor<Object> cursor = new RemoteCursor<>(new RemoteCursor.Pages() {
+                @Override
+                public CompletableFuture<Cursor.Page> fetch(long cursorId, int max) {
+                    CompletableFuture<Cursor.Page> page = new CompletableFuture<>();
+                    try {
+                        fetchPage(cursorId, max, true, page);
+                    } catch (IOException e) {
+                        page.completeExceptionally(new RMIException("Page could not be requested", e));
+                    }
+                    return page;
+                }
+            }, (Cursor.Page) outcome.getValue());
+            return method.getReturnType() == Stream.class ? cursor.stream() : cursor;
+        }
+
+        /**
+         Requests a page of a streamed result over the shared connection, as a
+         multiplexed call, whatever the mode of the stub. The request is sent
+         again, once, if it fails with a <code>StaleConnectionException</code>
+         over a reused connection.
+
+         @param retry <code>false</code> if the request has been sent before.
+         */
+        private void fetchPage(final long cursorId, final int max, final boolean retry,
+                final CompletableFuture<Cursor.Page> page) throws IOException {
+            final SharedConnection connection = sharedConnection();
+            final boolean reused = connection.isReused();
+            byte[] request = Frames.encode(0, Frames.STREAM | Frames.MULTIPLEXED, Codecs.JAVA, new Frames.Body() {
+                @Override
+                public void write(ObjectOutput out) throws IOException {
+                    out.writeByte(Frames.STREAM_PAGE);
+                    out.writeLong(cursorId);
+                    out.writeInt(max);
+                }
+            }, connection.getClassCache());
+            connection.submit(request).whenComplete(new BiConsumer<byte[], Throwable>() {
+                @Override
+                public void accept(byte[] response, Throwable failure) {
+                    try {
+                        if (failure == null) {
+                            Outcome outcome = Outcome.read(Frames.decode(response, connection.getClassCache()),
+                                    Iterator.class);
+                            if (outcome.isFailed()) {
+                                page.completeExceptionally((Throwable) outcome.getValue());
+                            } else {
+                                page.complete((Cursor.Page) outcome.getValue());
+                            }
+                        } else if (retry && reused && failure instanceof StaleConnectionException) {
+                            fetchPage(cursorId, max, false, page);
+                        } else {
+                            page.completeExceptionally(new RMIException("Page could not be fetched", failure));
+                        }
+                    } catch (Exception e) {
+                        page.completeExceptionally(new RMIException("Page could not be fetched", e));
+                    }
+                }
+            });
+        }
+
+        /**
+         Returns the exception of a failed call. Errors thrown by the remote
+         method are wrapped, as they cannot be thrown as declared exceptions.
+         */
+        private static Exception exception(Outcome outcome) {
+            Throwable thrown = (Throwable) outcome.getValue();
+            return thrown instanceof Exception ? (Exception) thrown : new RMIException(thrown);
+        }
+
+        /**
+         Sends a request over a pooled connection and receives its response.
+
+         <p>
+         An idle connection is taken from the pool if one is available. A
+         reused connection may have been closed by the skeleton in the
+         meantime, for instance when its idle timeout expired. If writing the
+         request to such a connection fails, or the connection ends before the
+         first byte of the response, the call is transparently repeated once
+         over a new connection. Other failures are not repeated, since the
+         skeleton may have served the request.
+         */
+        private byte[] exchange(Request request) throws IOException {
+            ConnectionPool pool = ConnectionPool.shared();
+            Connection connection = pool.acquire(address);
+
+            byte[] response;
+            try {
+                connection.send(request.encode(connection.getMethodTables(), connection.getClassCache()), request.sent);
+                response = connection.receive(request.received);
+            } catch (StaleConnectionException e) {
+                pool.discard(address, connection);
+                if (!connection.isReused()) {
+                    throw e;
+                }
+                connection = pool.connect(address);
+                try {
+                    connection.send(request.encode(connection.getMethodTables(), connection.getClassCache()),
+                            request.sent);
+                    response = connection.receive(request.received);
+                } catch (IOException retryException) {
+                    pool.discard(address, connection);
+                    throw retryException;
+                }
+            } catch (IOException e) {
+                pool.discard(address, connection);
+                throw e;
+            }
+
+            if (isAgreed(response)) {
+                connection.getMethodTables().add(request.table.fingerprint());
+            }
+            // The whole response has been read, so the connection can carry
+            // the next call while this one is being decoded.
+            pool.release(address, connection);
+            return response;
+        }
+
+        /**
+         Performs a call over the shared connection of the stub. As
+         with pooled connections, a call is repeated once over a new connection
+         if the shared connection had already carried calls and fails with a
+         <code>StaleConnectionException</code>.
+         */
+        private byte[] exchangeShared(Request request) throws IOException {
+            SharedConnection connection = sharedConnection();
+            boolean reused = connection.isReused();
+            byte[] response;
+            try {
+                byte[] frame = request.encode(connection.getMethodTables(), connection.getClassCache());
+                response = connection.call(frame, request.sent, request.received);
+            } catch (StaleConnectionException e) {
+                if (!reused) {
                     throw e;
                 }
-                throw new RMIException(e);
+                connection = sharedConnection();
+                byte[] frame = request.encode(connection.getMethodTables(), connection.getClassCache());
+                response = connection.call(frame, request.sent, request.received);
+            }
+
+            if (isAgreed(response)) {
+                connection.getMethodTables().add(request.table.fingerprint());
+            }
+            return response;
+        }
+
+        /** Closes the shared connection of the stub, if it has one. */
+        synchronized void closeSharedConnection() {
+            if (sharedConnection != null) {
+                sharedConnection.run();
+            }
+        }
+
+        /**
+         Returns the shared connection of the stub, replacing it if it
+         has failed or has been idle for too long.
+         */
+        private synchronized SharedConnection sharedConnection() throws IOException {
+            if (sharedConnection == null) {
+                // The cleaner is registered for the handler rather than the
+                // stub: each handler belongs to a single stub, and this way it
+                // is registered however the stub was made, deserialized
+                // proxies included.
+                sharedConnection = new SharedConnectionHolder();
+                cleaner.register(this, sharedConnection);
+            }
+            return sharedConnection.get(address);
+        }
+
+        /**
+         The calls of a request.
+
+         <p>
+         A request is encoded anew for each connection over which it is sent.
+         Until the skeleton at the other end of the connection has agreed on
+         the method table of the interface, calls are identified by name and
+         parameter types, and the request carries the fingerprint of the
+         table; afterwards, they are identified by their method identifier.
+         */
+        private final class Request implements Frames.Body {
+            private final int flags;
+            private final Method[] methods;
+            private final Object[][] args;
+            /** The arguments of a single call marshalled as raw bits, or <code>null</code>. */
+            private final long[] primitives;
+            private final MethodTable table = MethodTable.of(interfaceClass);
+            private final RemoteInterface remoteInterface = RemoteInterface.of(interfaceClass);
+            private Codec codec = codec();
+            private boolean ids;
+            /** The class cache of the connection the request was last encoded for. */
+            private ClassCache cache;
+            /** The bulk data of the request, as last encoded. */
+            private Bulk sent;
+            /** Receives the bulk data of the response to the request, as last encoded. */
+            private Bulk received;
+
+            /**
+             @param flags <code>Frames.BATCH</code> for a batch, zero for a
+             single call, and <code>Frames.MULTIPLEXED</code> for a single call
+             to be served concurrently with the other calls of its connection
+             whatever the mode of the stub.
+             */
+            private Request(int flags, Method[] methods, Object[][] args) {
+                this.flags = flags;
+                this.methods = methods;
+                this.args = args;
+                primitives = null;
+            }
+
+            /** Creates the request of a single call, with its arguments as raw bits. */
+            private Request(Method method, long[] primitives) {
+                flags = 0;
+                methods = new Method[]{method};
+                args = null;
+                this.primitives = primitives;
+            }
+
+            /**
+             Encodes the request for a connection.
+
+             @param agreed The method tables agreed over the connection.
+             @param cache The class cache of the connection.
+             */
+            private byte[] encode(MethodTable.Agreed agreed, ClassCache cache) throws IOException {
+                this.cache = cache;
+                sent = new Bulk();
+                received = new Bulk();
+                ids = agreed.contains(table.fingerprint());
+                int flags = this.flags | (ids ? Frames.METHOD_IDS : Frames.METHOD_TABLE);
+                if (mode == MULTIPLEXED) {
+                    flags |= Frames.MULTIPLEXED;
+                }
+                byte[] request = Frames.encode(0, flags, codec, this, cache, compressionThreshold, sent);
+                Frames.setObjectId(request, objectId);
+                return request;
+            }
+
+            @Override
+            public void write(ObjectOutput out) throws IOException {
+                if (!ids) {
+                    out.writeLong(table.fingerprint());
+                }
+                if ((flags & Frames.BATCH) != 0) {
+                    out.writeInt(methods.length);
+                }
+                for (int call = 0; call < methods.length; call++) {
+                    Class<?>[] parameterTypes = remoteInterface.method(methods[call]).parameterTypes();
+                    if (ids) {
+                        out.writeInt(table.id(methods[call]));
+                    } else {
+                        out.writeObject(methods[call].getName());
+                        out.writeObject(parameterTypes);
+                    }
+                    if (primitives != null) {
+                        Marshal.writePrimitives(out, parameterTypes, primitives);
+                    } else {
+                        Marshal.writeArguments(out, parameterTypes, args[call], sent);
+                    }
+                }
             }
         }
     }
 
     private static <T> void validateClass(Class<T> c) {
-        for (Method m : c.getMethods()) {
-            if (!Arrays.asList(m.getExceptionTypes()).contains(RMIException.class)) {
-                throw new Error("Every method of " + c.getCanonicalName() +
-                        " must throw " + RMIException.class.getCanonicalName() + " to be used as remote interface");
-            }
+        String problem = RemoteInterface.of(c).problem();
+        if (problem != null) {
+            throw new Error(problem);
         }
     }
 }
@@ -0,0 +1,543 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Generates stub classes for remote interfaces at runtime.
+
+ <p>
+ The class generated for an interface extends <code>GeneratedStub</code>, and
+ implements each method of the interface with straight-line bytecode: the
+ arguments are boxed into an array, passed with the index of the method to
+ <code>GeneratedStub.invokeRemote</code>, and the result is cast or unboxed
+ to the return type. A method whose parameters and result are all primitive
+ stores its arguments as raw bits into a <code>long</code> array instead,
+ passed to <code>GeneratedStub.invokePrimitive</code>, and converts the raw
+ bits of the result back, so that nothing is boxed. The class is defined as a hidden class of this package,
+ so it can only be reached through the stubs created from it.
+
+ <p>
+ The class file is written by hand rather than with a bytecode library, so
+ that the library keeps no dependency beyond the JDK; the class-file API of
+ the JDK is only final from Java 24 on, after the Java 17 the library is built
+ for. The writer is small because the code it emits is: a constructor, and
+ one straight-line method per interface method, without branches, fields or
+ stack map frames. A proxy with a table of method handles could not replace
+ it: a proxy passes the arguments of every call as an array of objects, so
+ the primitive values of a method would be boxed on each call.
+
+ <p>
+ An interface is only given a class if it, and every type in the signatures
+ of its methods, can be accessed from this package; otherwise
+ <code>create</code> returns <code>null</code>, and the stub factory falls
+ back to a proxy.
+ */
+final class StubGenerator {
+
+    private static final ClassValue<Factory> factories = new ClassValue<Factory>() {
+        @Override
+        protected Factory computeValue(Class<?> type) {
+            return generate(type);
+        }
+    };
+
+    /** Factory for interfaces which cannot be given a generated class. */
+    private static final Factory UNAVAILABLE = new Factory(null);
+
+    private static final String SUPER_CLASS = "rmi/GeneratedStub";
+    private static final String CONSTRUCTOR_DESCRIPTOR = MethodType.methodType(void.class,
+            Object.class).toMethodDescriptorString();
+    private static final String INVOKE_DESCRIPTOR = MethodType.methodType(Object.class,
+            int.class, Object[].class).toMethodDescriptorString();
+    private static final String INVOKE_PRIMITIVE_DESCRIPTOR = MethodType.methodType(long.class,
+            int.class, long[].class).toMethodDescriptorString();
+
+    private StubGenerator() {
+    }
+
+    /**
+     Creates a stub of the class generated at build time for an interface,
+     if there is one, or else, if requested, of a class generated at runtime.
+
+     @param interfaceClass The remote interface.
+     @param handler The handler of the stub.
+     @param generate <code>true</code> to generate a class if none was
+     generated at build time.
+     @return The stub, or <code>null</code> if there is no class for the
+     interface.
+     */
+    static Object create(Class<?> interfaceClass, Stub.StubInvocationHandler<?> handler, boolean generate) {
+        MethodHandle constructor = CompiledClasses.stubConstructor(interfaceClass);
+        if (constructor == null && generate) {
+            constructor = factories.get(interfaceClass).constructor;
+        }
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            return constructor.invoke((Object) handler);
+        } catch (Throwable t) {
+            throw new Error("Generated stub for " + interfaceClass.getName() + " could not be created", t);
+        }
+    }
+
+    /** Generates and defines the class of an interface. */
+    private static Factory generate(Class<?> interfaceClass) {
+        if (!isAccessible(interfaceClass)) {
+            return UNAVAILABLE;
+        }
+        Map<String, Integer> indices = new HashMap<>();
+        Method[] ordered = CompiledClasses.methods(interfaceClass);
+        for (int index = 0; index < ordered.length; index++) {
+            indices.put(CompiledClasses.signature(ordered[index]), index);
+        }
+
+        // Methods inherited from several interfaces with different return
+        // types are distinct methods of the class, with the same index.
+        List<Method> methods = new ArrayList<>();
+        for (Method method : interfaceClass.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || CompiledClasses.isObjectMethod(method)) {
+                continue;
+            }
+            if (!isAccessible(method.getReturnType()) || overridesBase(method)) {
+                return UNAVAILABLE;
+            }
+            for (Class<?> type : method.getParameterTypes()) {
+                if (!isAccessible(type)) {
+                    return UNAVAILABLE;
+                }
+            }
+            methods.add(method);
+        }
+
+        String simpleName = interfaceClass.getSimpleName().isEmpty() ? "Impl" : interfaceClass.getSimpleName();
+        try {
+            byte[] bytes = new ClassWriter("rmi/GeneratedStub$" + simpleName, interfaceClass, methods, indices)
+                    .toBytes();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return new Factory(lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object.class)));
+        } catch (IOException | ReflectiveOperationException | LinkageError e) {
+            return UNAVAILABLE;
+        }
+    }
+
+    /**
+     Returns <code>true</code> if a type can be named by a class of this
+     package: it is a primitive type, or a public class visible from its
+     class loader, or an array of either.
+     */
+    private static boolean isAccessible(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive()) {
+            return true;
+        }
+        Module module = StubGenerator.class.getModule();
+        if (!Modifier.isPublic(type.getModifiers()) || !module.canRead(type.getModule())
+                || !type.getModule().isExported(type.getPackageName(), module)) {
+            return false;
+        }
+        try {
+            return Class.forName(type.getName(), false, StubGenerator.class.getClassLoader()) == type;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /** Returns <code>true</code> if a method has the signature of a method of <code>GeneratedStub</code>. */
+    private static boolean overridesBase(Method method) {
+        for (Method declared : GeneratedStub.class.getDeclaredMethods()) {
+            if (declared.getName().equals(method.getName())
+                    && Arrays.equals(declared.getParameterTypes(), method.getParameterTypes())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Constructor of a generated class, taking the handler of the stub. */
+    private static final class Factory {
+        private final MethodHandle constructor;
+
+        Factory(MethodHandle constructor) {
+            this.constructor = constructor;
+        }
+    }
+
+    /**
+     Writes the class file of a stub class. The code of the methods has no
+     branches, so no stack map frames are needed.
+     */
+    private static final class ClassWriter {
+
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+
+        private static final int ICONST_0 = 0x03;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC_W = 0x13;
+        private static final int ILOAD = 0x15;
+        private static final int LLOAD = 0x16;
+        private static final int FLOAD = 0x17;
+        private static final int DLOAD = 0x18;
+        private static final int ALOAD = 0x19;
+        private static final int LASTORE = 0x50;
+        private static final int AASTORE = 0x53;
+        private static final int POP = 0x57;
+        private static final int POP2 = 0x58;
+        private static final int DUP = 0x59;
+        private static final int I2L = 0x85;
+        private static final int L2I = 0x88;
+        private static final int I2B = 0x91;
+        private static final int I2C = 0x92;
+        private static final int I2S = 0x93;
+        private static final int IRETURN = 0xac;
+        private static final int LRETURN = 0xad;
+        private static final int FRETURN = 0xae;
+        private static final int DRETURN = 0xaf;
+        private static final int ARETURN = 0xb0;
+        private static final int RETURN = 0xb1;
+        private static final int INVOKEVIRTUAL = 0xb6;
+        private static final int INVOKESPECIAL = 0xb7;
+        private static final int INVOKESTATIC = 0xb8;
+        private static final int NEWARRAY = 0xbc;
+        private static final int ANEWARRAY = 0xbd;
+        private static final int T_LONG = 11;
+        private static final int CHECKCAST = 0xc0;
+
+        /** Version of the class file format: Java 8, whose format is enough. */
+        private static final int MAJOR_VERSION = 52;
+
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> constants = new HashMap<>();
+        private int constantCount = 1;
+
+        private final String className;
+        private final Class<?> interfaceClass;
+        private final List<Method> methods;
+        /** The indices of the methods, by signature. */
+        private final Map<String, Integer> indices;
+
+        ClassWriter(String className, Class<?> interfaceClass, List<Method> methods, Map<String, Integer> indices) {
+            this.className = className;
+            this.interfaceClass = interfaceClass;
+            this.methods = methods;
+            this.indices = indices;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(classConstant(className));
+            out.writeShort(classConstant(SUPER_CLASS));
+            out.writeShort(1);
+            out.writeShort(classConstant(internalName(interfaceClass)));
+            out.writeShort(0);
+
+            out.writeShort(methods.size() + 1);
+            writeConstructor(out);
+            for (Method method : methods) {
+                int index = indices.get(CompiledClasses.signature(method));
+                if (Marshal.isPrimitive(method)) {
+                    writePrimitiveMethod(out, index, method);
+                } else {
+                    writeMethod(out, index, method);
+                }
+            }
+            out.writeShort(0);
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            DataOutputStream fileOut = new DataOutputStream(file);
+            fileOut.writeInt(0xcafebabe);
+            fileOut.writeShort(0);
+            fileOut.writeShort(MAJOR_VERSION);
+            fileOut.writeShort(constantCount);
+            pool.writeTo(fileOut);
+            body.writeTo(fileOut);
+            return file.toByteArray();
+        }
+
+        /** Writes the constructor, which passes the handler to the constructor of the superclass. */
+        private void writeConstructor(DataOutputStream out) throws IOException {
+            ByteArrayOutputStream code = new ByteArrayOutputStream();
+            code.write(ALOAD);
+            code.write(0);
+            code.write(ALOAD);
+            code.write(1);
+            writeInstruction(code, INVOKESPECIAL, methodConstant(SUPER_CLASS, "<init>", CONSTRUCTOR_DESCRIPTOR));
+            code.write(RETURN);
+
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8Constant("<init>"));
+            out.writeShort(utf8Constant(CONSTRUCTOR_DESCRIPTOR));
+            writeCode(out, code, 2, 2);
+        }
+
+        /**
+         Writes a method of the interface, which boxes its arguments, calls
+         <code>invokeRemote</code> and returns its result as the return type.
+         */
+        private void writeMethod(DataOutputStream out, int index, Method method) throws IOException {
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            Class<?> returnType = method.getReturnType();
+            ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+            code.write(ALOAD);
+            code.write(0);
+            writeInt(code, index);
+            writeInt(code, parameterTypes.length);
+            writeInstruction(code, ANEWARRAY, classConstant("java/lang/Object"));
+            int slot = 1;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                Class<?> type = parameterTypes[i];
+                code.write(DUP);
+                writeInt(code, i);
+                code.write(loadOpcode(type));
+                code.write(slot);
+                if (type.isPrimitive()) {
+                    Class<?> wrapper = MethodType.methodType(type).wrap().returnType();
+                    writeInstruction(code, INVOKESTATIC, methodConstant(internalName(wrapper), "valueOf",
+                            MethodType.methodType(wrapper, type).toMethodDescriptorString()));
+                }
+                code.write(AASTORE);
+                slot += type == long.class || type == double.class ? 2 : 1;
+            }
+            writeInstruction(code, INVOKEVIRTUAL, methodConstant(SUPER_CLASS, "invokeRemote", INVOKE_DESCRIPTOR));
+
+            if (returnType == void.class) {
+                code.write(POP);
+                code.write(RETURN);
+            } else if (returnType.isPrimitive()) {
+                Class<?> wrapper = MethodType.methodType(returnType).wrap().returnType();
+                writeInstruction(code, CHECKCAST, classConstant(internalName(wrapper)));
+                writeInstruction(code, INVOKEVIRTUAL, methodConstant(internalName(wrapper),
+                        returnType.getName() + "Value", MethodType.methodType(returnType).toMethodDescriptorString()));
+                code.write(returnOpcode(returnType));
+            } else {
+                if (returnType != Object.class) {
+                    writeInstruction(code, CHECKCAST, classConstant(internalName(returnType)));
+                }
+                code.write(ARETURN);
+            }
+
+            String descriptor = MethodType.methodType(returnType, parameterTypes).toMethodDescriptorString();
+            out.writeShort(ACC_PUBLIC | ACC_FINAL);
+            out.writeShort(utf8Constant(method.getName()));
+            out.writeShort(utf8Constant(descriptor));
+            // The receiver, the index and the array, then the array, the
+            // element index and a value of up to two slots while storing.
+            writeCode(out, code, 7, slot);
+        }
+
+        /**
+         Writes a method of the interface whose parameters and result are all
+         primitive, which stores its arguments as raw bits into an array,
+         calls <code>invokePrimitive</code> and converts the raw bits of its
+         result to the return type.
+         */
+        private void writePrimitiveMethod(DataOutputStream out, int index, Method method) throws IOException {
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            Class<?> returnType = method.getReturnType();
+            ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+            code.write(ALOAD);
+            code.write(0);
+            writeInt(code, index);
+            writeInt(code, parameterTypes.length);
+            code.write(NEWARRAY);
+            code.write(T_LONG);
+            int slot = 1;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                Class<?> type = parameterTypes[i];
+                code.write(DUP);
+                writeInt(code, i);
+                code.write(loadOpcode(type));
+                code.write(slot);
+                if (type == float.class) {
+                    writeInstruction(code, INVOKESTATIC, methodConstant("java/lang/Float", "floatToRawIntBits",
+                            "(F)I"));
+                    code.write(I2L);
+                } else if (type == double.class) {
+                    writeInstruction(code, INVOKESTATIC, methodConstant("java/lang/Double", "doubleToRawLongBits",
+                            "(D)J"));
+                } else if (type != long.class) {
+                    code.write(I2L);
+                }
+                code.write(LASTORE);
+                slot += type == long.class || type == double.class ? 2 : 1;
+            }
+            writeInstruction(code, INVOKEVIRTUAL, methodConstant(SUPER_CLASS, "invokePrimitive",
+                    INVOKE_PRIMITIVE_DESCRIPTOR));
+
+            if (returnType == void.class) {
+                code.write(POP2);
+                code.write(RETURN);
+            } else {
+                if (returnType == double.class) {
+                    writeInstruction(code, INVOKESTATIC, methodConstant("java/lang/Double", "longBitsToDouble",
+                            "(J)D"));
+                } else if (returnType != long.class) {
+                    code.write(L2I);
+                }
+                if (returnType == float.class) {
+                    writeInstruction(code, INVOKESTATIC, methodConstant("java/lang/Float", "intBitsToFloat",
+                            "(I)F"));
+                } else if (returnType == byte.class) {
+                    code.write(I2B);
+                } else if (returnType == short.class) {
+                    code.write(I2S);
+                } else if (returnType == char.class) {
+                    code.write(I2C);
+                }
+                code.write(returnOpcode(returnType));
+            }
+
+            String descriptor = MethodType.methodType(returnType, parameterTypes).toMethodDescriptorString();
+            out.writeShort(ACC_PUBLIC | ACC_FINAL);
+            out.writeShort(utf8Constant(method.getName()));
+            out.writeShort(utf8Constant(descriptor));
+            // The receiver, the index and the array, then the array, the
+            // element index and a value of two slots while storing.
+            writeCode(out, code, 7, slot);
+        }
+
+        private void writeCode(DataOutputStream out, ByteArrayOutputStream code, int maxStack, int maxLocals)
+                throws IOException {
+            out.writeShort(1);
+            out.writeShort(utf8Constant("Code"));
+            out.writeInt(12 + code.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.size());
+            code.writeTo(out);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        /** Writes the instruction pushing an integer constant. */
+        private void writeInt(ByteArrayOutputStream code, int value) throws IOException {
+            if (value <= 5) {
+                code.write(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                code.write(value >> 8);
+                code.write(value);
+            } else {
+                writeInstruction(code, LDC_W, integerConstant(value));
+            }
+        }
+
+        private static void writeInstruction(ByteArrayOutputStream code, int opcode, int operand) {
+            code.write(opcode);
+            code.write(operand >> 8);
+            code.write(operand);
+        }
+
+        private static int loadOpcode(Class<?> type) {
+            if (type == long.class) {
+                return LLOAD;
+            } else if (type == float.class) {
+                return FLOAD;
+            } else if (type == double.class) {
+                return DLOAD;
+            } else if (type.isPrimitive()) {
+                return ILOAD;
+            }
+            return ALOAD;
+        }
+
+        private static int returnOpcode(Class<?> type) {
+            if (type == long.class) {
+                return LRETURN;
+            } else if (type == float.class) {
+                return FRETURN;
+            } else if (type == double.class) {
+                return DRETURN;
+            }
+            return IRETURN;
+        }
+
+        /** Returns the name of a class as it appears in class files. */
+        private static String internalName(Class<?> type) {
+            return type.isArray() ? type.descriptorString() : type.getName().replace('.', '/');
+        }
+
+        private int utf8Constant(String value) throws IOException {
+            Integer index = constants.get("Utf8 " + value);
+            if (index == null) {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(value);
+                index = add("Utf8 " + value);
+            }
+            return index;
+        }
+
+        private int classConstant(String name) throws IOException {
+            Integer index = constants.get("Class " + name);
+            if (index == null) {
+                int nameIndex = utf8Constant(name);
+                poolOut.writeByte(7);
+                poolOut.writeShort(nameIndex);
+                index = add("Class " + name);
+            }
+            return index;
+        }
+
+        private int integerConstant(int value) throws IOException {
+            Integer index = constants.get("Integer " + value);
+            if (index == null) {
+                poolOut.writeByte(3);
+                poolOut.writeInt(value);
+                index = add("Integer " + value);
+            }
+            return index;
+        }
+
+        private int methodConstant(String owner, String name, String descriptor) throws IOException {
+            String key = "Methodref " + owner + "." + name + descriptor;
+            Integer index = constants.get(key);
+            if (index == null) {
+                int classIndex = classConstant(owner);
+                int nameIndex = utf8Constant(name);
+                int descriptorIndex = utf8Constant(descriptor);
+                poolOut.writeByte(12);
+                poolOut.writeShort(nameIndex);
+                poolOut.writeShort(descriptorIndex);
+                int nameAndType = add("NameAndType " + name + descriptor);
+                poolOut.writeByte(10);
+                poolOut.writeShort(classIndex);
+                poolOut.writeShort(nameAndType);
+                index = add(key);
+            }
+            return index;
+        }
+
+        private int add(String key) {
+            int index = constantCount;
+            constants.put(key, index);
+            constantCount++;
+            return index;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ Argument stream of a call, as received by the skeleton.
+
+ <p>
+ A remote method may take an <code>InputStream</code> parameter. The stub
+ then opens an upload with the skeleton, sends the call with the identifier
+ of the upload in place of the stream, and sends the bytes of the stream in
+ chunks while the call is served. The server method reads them from this
+ stream as they arrive. Chunks travel as multiplexed messages, numbered so
+ that they are taken in order however they are served. The stub has at most
+ <code>WINDOW</code> chunks in flight, and a chunk is only acknowledged once
+ the upload has room for it, so that the server holds a bounded number of
+ chunks however fast the stub sends them. A chunk which finds no room before
+ the timeout, because the server does not read the stream, closes the
+ upload rather than holding its thread for longer.
+
+ <p>
+ The upload ends when the stub sends the end of the stream, or an abort if
+ reading its stream failed. The skeleton closes the upload when the call
+ returns, whether or not the server has read it to the end; the stub then
+ stops sending chunks.
+
+ <p>
+ Chunks follow the call over its connection, so a skeleton which has
+ keep-alive connections disabled refuses to open uploads, and calls taking a
+ stream argument fail with an <code>RMIException</code>.
+
+ <p>
+ Uploads are kept by the skeleton under random identifiers, and belong to the
+ client address which opened them: chunks and calls from other addresses do
+ not find them.
+ */
+final class Upload extends InputStream {
+
+    /** Largest number of bytes sent in one chunk. */
+    static final int CHUNK_SIZE = 64 * 1024;
+    /** Number of chunks the stub sends ahead of their acknowledgement. */
+    static final int WINDOW = 4;
+    /** Number of chunks held by the upload until the server reads them. */
+    static final int CAPACITY = 4;
+    /** Length of the chunk marking the end of the stream. */
+    static final int END = -1;
+    /** Length of the chunk marking that the stream of the stub failed. */
+    static final int ABORTED = -2;
+    /**
+     Identifier sent in place of that of an upload when the skeleton refuses
+     to open one, because its connections are closed after each call and so
+     could not carry the chunks.
+     */
+    static final long REFUSED = 0;
+    /** Time in milliseconds after which an upload without chunks times out. */
+    static final long TIMEOUT = 60 * 1000;
+
+    private final long id;
+    private final InetAddress owner;
+    /** Guards the upload. The server method and the threads taking in chunks wait on it. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a chunk is taken in or read, or the upload is closed. */
+    private final Condition changed = lock.newCondition();
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private int nextSequence = 0;
+    private byte[] current;
+    private int position;
+    private boolean ended;
+    private boolean aborted;
+    private boolean closed;
+    private boolean attached;
+    private long lastUsed = System.currentTimeMillis();
+
+    /**
+     Creates an upload.
+
+     @param id The identifier of the upload, unique within its skeleton.
+     @param owner The address of the client which opened the upload.
+     */
+    Upload(long id, InetAddress owner) {
+        this.id = id;
+        this.owner = owner;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /** Returns <code>true</code> if the upload was opened by the given client. */
+    boolean isOwnedBy(InetAddress client) {
+        return owner.equals(client);
+    }
+
+    /**
+     Marks the upload as the argument of a call, which releases it when it
+     returns.
+
+     @return <code>false</code> if the upload is already the argument of a
+     call.
+     */
+    boolean attach() {
+        lock.lock();
+        try {
+            if (attached) {
+                return false;
+            }
+            attached = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Returns <code>true</code> if the upload is not the argument of a call and
+     has received no chunk for longer than the timeout.
+     */
+    boolean isExpired(long now) {
+        lock.lock();
+        try {
+            return !attached && now - lastUsed > TIMEOUT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Takes in a chunk, once the chunks before it have been taken in and the
+     upload has room for it.
+
+     @param sequence The number of the chunk, starting from zero.
+     @param data The bytes of the chunk, or <code>null</code> for the end of
+     the stream or an abort.
+     @param length The length of the chunk, <code>END</code> or
+     <code>ABORTED</code>.
+     @return <code>false</code> if the upload has been closed, or is closed
+     because the chunk could not be taken in before the timeout, and no more
+     chunks are wanted.
+     @throws InterruptedException If the serving thread is interrupted.
+     */
+    boolean offer(int sequence, byte[] data, int length) throws InterruptedException {
+        lock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!closed && (sequence != nextSequence || chunks.size() >= CAPACITY)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    close();
+                    return false;
+                }
+                changed.await(remaining, TimeUnit.MILLISECONDS);
+            }
+            if (closed) {
+                return false;
+            }
+            nextSequence++;
+            lastUsed = System.currentTimeMillis();
+            if (length == END) {
+                ended = true;
+            } else if (length == ABORTED) {
+                aborted = true;
+            } else {
+                chunks.addLast(data);
+            }
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (current == null || position == current.length) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (!chunks.isEmpty()) {
+                    current = chunks.removeFirst();
+                    position = 0;
+                    changed.signalAll();
+                    continue;
+                }
+                if (aborted) {
+                    throw new IOException("Stream of the stub failed while being sent");
+                }
+                if (ended) {
+                    return -1;
+                }
+                long remaining = lastUsed + TIMEOUT - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("No data received from the stub before the timeout");
+                }
+                try {
+                    changed.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for data from the stub");
+                }
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return current == null ? 0 : current.length - position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Discards the chunks not yet read, and refuses further chunks. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            chunks.clear();
+            current = null;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ Access to virtual threads.
+
+ <p>
+ Virtual threads are available from Java 21 on, while the library is built
+ for Java 17. The builder methods of <code>java.lang.Thread</code> are
+ therefore looked up reflectively, once, when the class is initialized.
+ */
+class VirtualThreads {
+
+    /** Handle on <code>Thread.ofVirtual()</code>, or <code>null</code>. */
+    private static final MethodHandle OF_VIRTUAL;
+    /** Handle on <code>Thread.Builder.name(String, long)</code>. */
+    private static final MethodHandle NAME;
+    /** Handle on <code>Thread.Builder.factory()</code>. */
+    private static final MethodHandle FACTORY;
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle factory = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilder));
+            name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class, long.class));
+            factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            // Virtual threads are not supported by this runtime.
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /** Returns <code>true</code> if the runtime supports virtual threads. */
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     Creates a factory of virtual threads.
+
+     @param prefix Prefix of the thread names. Threads are numbered from zero.
+     @return The thread factory.
+     @throws UnsupportedOperationException If the runtime does not support
+     virtual threads.
+     */
+    static ThreadFactory factory(String prefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running "
+                    + System.getProperty("java.version"));
+        }
+
+        try {
+            Object builder = OF_VIRTUAL.invoke();
+            builder = NAME.invoke(builder, prefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Throwable t) {
+            throw new UnsupportedOperationException("Virtual threads could not be created", t);
+        }
+    }
+}
@@ -70,5 +70,10 @@
     client. To avoid this, the RMI library allows the client to create an
     initial stub by directly providing a network address to a version of
     <code>create</code>.
+
+    <p>
+    The library requires Java 17 or later, and is compiled for that release.
+    Skeletons can serve calls on virtual threads when the runtime offers
+    them, from Java 21 on.
  */
 package rmi;
@@ -0,0 +1,508 @@
+package rmic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ Annotation processor generating the stub classes and skeleton dispatchers of
+ remote interfaces marked with <code>rmi.Remote</code>.
+
+ <p>
+ For each annotated interface, the processor checks that every method is
+ marked as throwing <code>RMIException</code> and takes at most one
+ <code>InputStream</code> parameter, and generates two classes in
+ the package of the interface. The stub class extends
+ <code>rmi.GeneratedStub</code>, and implements each method by passing its
+ index and arguments to <code>invokeRemote</code>. The dispatcher implements
+ <code>rmi.RemoteDispatcher</code> with a switch on the index of the method,
+ whose branches call the server directly. Methods whose parameters and result
+ are all primitive, or whose result is <code>void</code>, go through
+ <code>invokePrimitive</code> and <code>dispatchPrimitive</code> instead, with
+ their values held as raw bits in <code>long</code> values rather than boxed.
+ The methods are numbered in the
+ order of their signatures, computed from the erasure of their parameter
+ types exactly as the <code>rmi</code> package computes them at runtime.
+
+ <p>
+ The processor is compiled on its own, and then given to <code>javac</code>
+ with <code>-processor rmic.RemoteProcessor</code> when compiling the
+ sources which use it. It depends only on the names of the classes of the
+ <code>rmi</code> package.
+ */
+@SupportedAnnotationTypes("rmi.Remote")
+public class RemoteProcessor extends AbstractProcessor {
+
+    private static final String REMOTE = "rmi.Remote";
+    private static final String RMI_EXCEPTION = "rmi.RMIException";
+    private static final String INPUT_STREAM = "java.io.InputStream";
+    private static final String STUB_SUPERCLASS = "rmi.GeneratedStub";
+    private static final String DISPATCHER_INTERFACE = "rmi.RemoteDispatcher";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        TypeElement remote = processingEnv.getElementUtils().getTypeElement(REMOTE);
+        if (remote == null) {
+            return false;
+        }
+        for (Element element : round.getElementsAnnotatedWith(remote)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error(element, "Only interfaces can be marked as remote");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            if (!isAccessible(type)) {
+                error(type, "Remote interface " + type.getQualifiedName()
+                        + " must be accessible from its package to have generated classes");
+                continue;
+            }
+            Map<String, ExecutableElement> methods = methods(type);
+            if (methods == null) {
+                continue;
+            }
+            try {
+                writeStub(type, methods);
+                writeDispatcher(type, methods);
+            } catch (IOException e) {
+                error(type, "Classes of remote interface " + type.getQualifiedName()
+                        + " could not be generated: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     Returns <code>true</code> if an interface can be implemented by a class
+     of its package: neither it nor any of its enclosing classes is private
+     or local.
+     */
+    private static boolean isAccessible(TypeElement type) {
+        Element element = type;
+        while (element instanceof TypeElement) {
+            TypeElement enclosing = (TypeElement) element;
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)
+                    || enclosing.getNestingKind() == NestingKind.LOCAL
+                    || enclosing.getNestingKind() == NestingKind.ANONYMOUS) {
+                return false;
+            }
+            element = enclosing.getEnclosingElement();
+        }
+        return true;
+    }
+
+    /**
+     Returns the methods of an interface implemented by the generated
+     classes, by signature, in the order of their index.
+
+     @return The methods, or <code>null</code> if the interface is not a
+     valid remote interface. The errors are then reported.
+     */
+    private Map<String, ExecutableElement> methods(TypeElement type) {
+        TypeElement object = processingEnv.getElementUtils().getTypeElement("java.lang.Object");
+        Set<String> objectMethods = new HashSet<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(object.getEnclosedElements())) {
+            if (method.getModifiers().contains(Modifier.PUBLIC)) {
+                objectMethods.add(signature(method));
+            }
+        }
+
+        boolean valid = true;
+        Map<String, ExecutableElement> methods = new TreeMap<>();
+        List<? extends Element> members = processingEnv.getElementUtils().getAllMembers(type);
+        for (ExecutableElement method : ElementFilter.methodsIn(members)) {
+            Set<Modifier> modifiers = method.getModifiers();
+            String signature = signature(method);
+            if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)
+                    || objectMethods.contains(signature)) {
+                continue;
+            }
+            if (!throwsRemoteException(method)) {
+                error(method, "Every method of " + type.getQualifiedName() + " must throw " + RMI_EXCEPTION
+                        + " to be used as remote interface");
+                valid = false;
+            }
+            if (streamParameters(method) > 1) {
+                error(method, "Method " + method.getSimpleName() + " of " + type.getQualifiedName()
+                        + " has more than one InputStream parameter");
+                valid = false;
+            }
+            ExecutableElement previous = methods.get(signature);
+            if (previous == null) {
+                methods.put(signature, method);
+            } else if (!processingEnv.getTypeUtils().isSameType(returnType(type, previous), returnType(type, method))) {
+                error(type, "Remote interface " + type.getQualifiedName() + " inherits " + method.getSimpleName()
+                        + " with different return types");
+                valid = false;
+            }
+        }
+        return valid ? methods : null;
+    }
+
+    private boolean throwsRemoteException(ExecutableElement method) {
+        for (TypeMirror thrown : method.getThrownTypes()) {
+            Element element = processingEnv.getTypeUtils().asElement(thrown);
+            if (element instanceof TypeElement
+                    && ((TypeElement) element).getQualifiedName().contentEquals(RMI_EXCEPTION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int streamParameters(ExecutableElement method) {
+        int streams = 0;
+        for (VariableElement parameter : method.getParameters()) {
+            if (processingEnv.getTypeUtils().erasure(parameter.asType()).toString().equals(INPUT_STREAM)) {
+                streams++;
+            }
+        }
+        return streams;
+    }
+
+    /**
+     Returns the signature of a method as the <code>rmi</code> package
+     computes it from the method at runtime: its name, and the names of the
+     erasures of its declared parameter types as given by
+     <code>Class.getName</code>.
+     */
+    private String signature(ExecutableElement method) {
+        StringBuilder signature = new StringBuilder(method.getSimpleName()).append('(');
+        List<? extends TypeMirror> parameterTypes = ((ExecutableType) method.asType()).getParameterTypes();
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            signature.append(className(parameterTypes.get(i)));
+        }
+        return signature.append(')').toString();
+    }
+
+    /** Returns the name of the class of the erasure of a type, as given by <code>Class.getName</code>. */
+    private String className(TypeMirror type) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        if (erased.getKind() == TypeKind.ARRAY) {
+            return "[" + descriptor(((ArrayType) erased).getComponentType());
+        }
+        if (erased.getKind() == TypeKind.DECLARED) {
+            return binaryName(erased);
+        }
+        return erased.getKind().name().toLowerCase(Locale.ROOT);
+    }
+
+    /** Returns the descriptor of the erasure of a type, as it appears in the names of array classes. */
+    private String descriptor(TypeMirror type) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        switch (erased.getKind()) {
+            case BOOLEAN:
+                return "Z";
+            case BYTE:
+                return "B";
+            case CHAR:
+                return "C";
+            case SHORT:
+                return "S";
+            case INT:
+                return "I";
+            case LONG:
+                return "J";
+            case FLOAT:
+                return "F";
+            case DOUBLE:
+                return "D";
+            case ARRAY:
+                return "[" + descriptor(((ArrayType) erased).getComponentType());
+            default:
+                return "L" + binaryName(erased) + ";";
+        }
+    }
+
+    private String binaryName(TypeMirror declared) {
+        TypeElement element = (TypeElement) processingEnv.getTypeUtils().asElement(declared);
+        return processingEnv.getElementUtils().getBinaryName(element).toString();
+    }
+
+    /** Returns the type of a method as a member of the interface, with the type arguments of its supertypes. */
+    private ExecutableType memberType(TypeElement type, ExecutableElement method) {
+        return (ExecutableType) processingEnv.getTypeUtils().asMemberOf((DeclaredType) type.asType(), method);
+    }
+
+    private TypeMirror returnType(TypeElement type, ExecutableElement method) {
+        return processingEnv.getTypeUtils().erasure(memberType(type, method).getReturnType());
+    }
+
+    /** Returns the source form of the erasure of a type. */
+    private String sourceName(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    /**
+     Returns the simple name of a class generated for an interface: the name
+     of the interface within its package, with the names of nested classes
+     separated by underscores, followed by a suffix.
+     */
+    private String generatedName(TypeElement type, String suffix) {
+        String packageName = packageName(type);
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String name = packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1);
+        return name.replace('$', '_') + suffix;
+    }
+
+    private String packageName(TypeElement type) {
+        return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    }
+
+    /** Writes the package declaration and the annotations of a generated class. */
+    private void writeHeader(StringBuilder source, TypeElement type, String description) {
+        String packageName = packageName(type);
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+                .append(" ").append(description).append(" <code>").append(type.getQualifiedName())
+                .append("</code>,\n")
+                .append(" generated by <code>").append(getClass().getName()).append("</code>.\n")
+                .append(" */\n")
+                .append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n")
+                .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+    }
+
+    /** Generates the stub class of an interface. */
+    private void writeStub(TypeElement type, Map<String, ExecutableElement> methods) throws IOException {
+        String name = generatedName(type, "_Stub");
+        StringBuilder source = new StringBuilder();
+        writeHeader(source, type, "Stub class of");
+        source.append("public final class ").append(name).append(" extends ").append(STUB_SUPERCLASS)
+                .append(" implements ").append(sourceName(type.asType())).append(" {\n\n")
+                .append("    public ").append(name).append("(Object handler) {\n")
+                .append("        super(handler);\n")
+                .append("    }\n");
+
+        int index = 0;
+        for (ExecutableElement method : methods.values()) {
+            ExecutableType member = memberType(type, method);
+            TypeMirror returnType = processingEnv.getTypeUtils().erasure(member.getReturnType());
+            List<? extends TypeMirror> parameterTypes = member.getParameterTypes();
+
+            source.append("\n    @Override\n    public ").append(sourceName(returnType)).append(' ')
+                    .append(method.getSimpleName()).append('(');
+            for (int i = 0; i < parameterTypes.size(); i++) {
+                String parameterType = sourceName(parameterTypes.get(i));
+                if (method.isVarArgs() && i == parameterTypes.size() - 1) {
+                    parameterType = parameterType.substring(0, parameterType.length() - 2) + "...";
+                }
+                source.append(i > 0 ? ", " : "").append(parameterType).append(" arg").append(i);
+            }
+            source.append(") {\n        ");
+
+            if (isPrimitive(returnType, parameterTypes)) {
+                StringBuilder call = new StringBuilder("invokePrimitive(").append(index).append(", new long[] {");
+                for (int i = 0; i < parameterTypes.size(); i++) {
+                    call.append(i > 0 ? ", " : "").append(toBits(parameterTypes.get(i), "arg" + i));
+                }
+                call.append("})");
+                if (returnType.getKind() == TypeKind.VOID) {
+                    source.append(call);
+                } else {
+                    source.append("return ").append(fromBits(returnType, call.toString()));
+                }
+                source.append(";\n    }\n");
+            } else {
+                if (returnType.getKind() == TypeKind.VOID) {
+                    source.append("invokeRemote(");
+                } else if (returnType.getKind().isPrimitive()) {
+                    source.append("return (").append(boxedName(returnType)).append(") invokeRemote(");
+                } else {
+                    source.append("return (").append(sourceName(returnType)).append(") invokeRemote(");
+                }
+                source.append(index).append(", new Object[] {");
+                for (int i = 0; i < parameterTypes.size(); i++) {
+                    source.append(i > 0 ? ", " : "").append("arg").append(i);
+                }
+                source.append("});\n    }\n");
+            }
+            index++;
+        }
+        source.append("}\n");
+        write(type, name, source);
+    }
+
+    /** Generates the dispatcher of an interface. */
+    private void writeDispatcher(TypeElement type, Map<String, ExecutableElement> methods) throws IOException {
+        String name = generatedName(type, "_Dispatcher");
+        String interfaceName = sourceName(type.asType());
+        StringBuilder source = new StringBuilder();
+        writeHeader(source, type, "Skeleton dispatcher of");
+        source.append("public final class ").append(name).append(" implements ").append(DISPATCHER_INTERFACE)
+                .append('<').append(interfaceName).append("> {\n\n")
+                .append("    @Override\n")
+                .append("    public Object dispatch(").append(interfaceName)
+                .append(" server, int index, Object[] args) throws Throwable {\n")
+                .append("        switch (index) {\n");
+
+        int index = 0;
+        for (ExecutableElement method : methods.values()) {
+            ExecutableType member = memberType(type, method);
+            TypeMirror returnType = processingEnv.getTypeUtils().erasure(member.getReturnType());
+            List<? extends TypeMirror> parameterTypes = member.getParameterTypes();
+
+            StringBuilder call = new StringBuilder("server.").append(method.getSimpleName()).append('(');
+            for (int i = 0; i < parameterTypes.size(); i++) {
+                TypeMirror parameterType = processingEnv.getTypeUtils().erasure(parameterTypes.get(i));
+                String cast = parameterType.getKind().isPrimitive() ? boxedName(parameterType)
+                        : sourceName(parameterType);
+                call.append(i > 0 ? ", " : "").append('(').append(cast).append(") args[").append(i).append(']');
+            }
+            call.append(')');
+
+            source.append("            case ").append(index).append(":\n");
+            if (returnType.getKind() == TypeKind.VOID) {
+                source.append("                ").append(call).append(";\n")
+                        .append("                return null;\n");
+            } else {
+                source.append("                return ").append(call).append(";\n");
+            }
+            index++;
+        }
+        source.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Unknown method index \" + index);\n")
+                .append("        }\n")
+                .append("    }\n");
+        writeDispatchPrimitive(source, type, methods);
+        source.append("}\n");
+        write(type, name, source);
+    }
+
+    /**
+     Generates the method of a dispatcher calling the methods whose values are
+     all primitive, with their arguments and result held as raw bits.
+     */
+    private void writeDispatchPrimitive(StringBuilder source, TypeElement type,
+            Map<String, ExecutableElement> methods) {
+        source.append("\n    @Override\n")
+                .append("    public long dispatchPrimitive(").append(sourceName(type.asType()))
+                .append(" server, int index, long[] args) throws Throwable {\n")
+                .append("        switch (index) {\n");
+
+        int index = 0;
+        for (ExecutableElement method : methods.values()) {
+            ExecutableType member = memberType(type, method);
+            TypeMirror returnType = processingEnv.getTypeUtils().erasure(member.getReturnType());
+            List<? extends TypeMirror> parameterTypes = member.getParameterTypes();
+            if (!isPrimitive(returnType, parameterTypes)) {
+                index++;
+                continue;
+            }
+
+            StringBuilder call = new StringBuilder("server.").append(method.getSimpleName()).append('(');
+            for (int i = 0; i < parameterTypes.size(); i++) {
+                call.append(i > 0 ? ", " : "").append(fromBits(parameterTypes.get(i), "args[" + i + "]"));
+            }
+            call.append(')');
+
+            source.append("            case ").append(index).append(":\n");
+            if (returnType.getKind() == TypeKind.VOID) {
+                source.append("                ").append(call).append(";\n")
+                        .append("                return 0L;\n");
+            } else {
+                source.append("                return ").append(toBits(returnType, call.toString())).append(";\n");
+            }
+            index++;
+        }
+        source.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"No primitive method \" + index);\n")
+                .append("        }\n")
+                .append("    }\n");
+    }
+
+    /**
+     Returns <code>true</code> if the values of a method can be held as raw
+     bits: its parameter types are primitive, and its return type is
+     primitive or <code>void</code>.
+     */
+    private boolean isPrimitive(TypeMirror returnType, List<? extends TypeMirror> parameterTypes) {
+        if (returnType.getKind() != TypeKind.VOID && !returnType.getKind().isPrimitive()) {
+            return false;
+        }
+        for (TypeMirror parameterType : parameterTypes) {
+            if (!processingEnv.getTypeUtils().erasure(parameterType).getKind().isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the expression converting a primitive value to its raw bits, as a <code>long</code>. */
+    private static String toBits(TypeMirror type, String value) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "(" + value + " ? 1L : 0L)";
+            case FLOAT:
+                return "java.lang.Float.floatToRawIntBits(" + value + ")";
+            case DOUBLE:
+                return "java.lang.Double.doubleToRawLongBits(" + value + ")";
+            default:
+                return value;
+        }
+    }
+
+    /** Returns the expression converting raw bits, as a <code>long</code>, to a primitive value. */
+    private static String fromBits(TypeMirror type, String bits) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "(" + bits + " != 0)";
+            case LONG:
+                return bits;
+            case FLOAT:
+                return "java.lang.Float.intBitsToFloat((int) " + bits + ")";
+            case DOUBLE:
+                return "java.lang.Double.longBitsToDouble(" + bits + ")";
+            default:
+                return "(" + type.getKind().name().toLowerCase(Locale.ROOT) + ") " + bits;
+        }
+    }
+
+    private String boxedName(TypeMirror primitive) {
+        return processingEnv.getTypeUtils().boxedClass((PrimitiveType) primitive).getQualifiedName().toString();
+    }
+
+    private void write(TypeElement type, String name, StringBuilder source) throws IOException {
+        String packageName = packageName(type);
+        String qualifiedName = packageName.isEmpty() ? name : packageName + "." + name;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
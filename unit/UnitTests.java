@@ -8,6 +8,12 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link rmi.SampleUnitTest}</li>
+    <li>{@link rmi.FramesTest}</li>
+    <li>{@link rmi.MethodTableTest}</li>
+    <li>{@link rmi.ClassCacheTest}</li>
+    <li>{@link rmi.OutcomeTest}</li>
+    <li>{@link rmi.DispatcherTest}</li>
+    <li>{@link rmi.RemoteInterfaceTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +27,13 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {rmi.SampleUnitTest.class};
+            new Class[] {rmi.SampleUnitTest.class,
+                         rmi.FramesTest.class,
+                         rmi.MethodTableTest.class,
+                         rmi.ClassCacheTest.class,
+                         rmi.OutcomeTest.class,
+                         rmi.DispatcherTest.class,
+                         rmi.RemoteInterfaceTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
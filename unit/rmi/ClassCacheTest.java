@@ -0,0 +1,121 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for the class descriptor cache in <code>ClassCache</code>.
+
+    <p>
+    The test sends messages carrying the same classes from one cache to
+    another, and checks that messages sent after the first one are smaller and
+    still decode correctly. It checks that a message encoded before the first
+    one was sent defines its classes again, so that the two can be decoded in
+    either order, that objects modified between messages arrive modified, and
+    that a message referring to a class number the receiving cache has not
+    been given is rejected.
+ */
+public class ClassCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking class descriptor caching";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ClassCache              sender = new ClassCache();
+        ClassCache              receiver = new ClassCache();
+        ArrayList<Point>        points = new ArrayList<>();
+
+        points.add(new Point(1, 2));
+
+        try
+        {
+            byte[]              first = encode(sender, points);
+            byte[]              concurrent = encode(sender, points);
+
+            sender.sent(first);
+            sender.sent(concurrent);
+            points.get(0).x = 3;
+
+            byte[]              second = encode(sender, points);
+
+            if(second.length >= first.length ||
+               concurrent.length != first.length)
+            {
+                throw new TestFailed("class descriptors not cached: " +
+                                     first.length + ", " + concurrent.length +
+                                     " and " + second.length + " bytes");
+            }
+
+            receiver.received(first);
+            receiver.received(concurrent);
+            receiver.received(second);
+
+            checkPoint(second, receiver, 3);
+            checkPoint(concurrent, receiver, 1);
+            checkPoint(first, receiver, 1);
+
+            try
+            {
+                checkPoint(second, new ClassCache(), 3);
+                throw new TestFailed("message decoded without its classes");
+            }
+            catch(StreamCorruptedException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to send messages", e);
+        }
+    }
+
+    /** Encodes a message carrying the given object. */
+    private byte[] encode(ClassCache cache, final Object object)
+        throws IOException
+    {
+        Frames.Body             body = new Frames.Body()
+        {
+            @Override
+            public void write(ObjectOutput out) throws IOException
+            {
+                out.writeObject(object);
+            }
+        };
+
+        return Frames.encode(0, 0, Codecs.JAVA, body, cache);
+    }
+
+    /** Decodes a message and checks the point it carries.
+
+        @throws TestFailed If the point is not as expected.
+     */
+    private void checkPoint(byte[] message, ClassCache cache, int x)
+        throws Exception
+    {
+        List<?>                 points =
+            (List<?>)Frames.decode(message, cache).readObject();
+        Point                   point = (Point)points.get(0);
+
+        if(point.x != x || point.y != 2)
+            throw new TestFailed("point decoded incorrectly");
+    }
+
+    /** Serializable class sent by the test. */
+    private static class Point implements Serializable
+    {
+        private int             x;
+        private final int       y;
+
+        Point(int x, int y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+
+/** Unit tests for the dispatch tables in <code>Dispatcher</code>.
+
+    <p>
+    The test checks that the entries of a dispatch table have the identifiers
+    of the method table of the interface, and that an entry is found by name
+    and parameter types. It calls methods through their entries, with
+    primitive, <code>void</code> and failing methods, both with boxed values
+    and with primitive values held as raw bits, and checks that arguments of
+    the wrong type are rejected before the call. It checks what
+    the entries record of streamed results, remote references and stream
+    parameters. The interface used is not public, so the test also checks
+    that its methods can be reached.
+ */
+public class DispatcherTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking dispatch tables";
+
+    /** Last value passed to <code>Server.set</code>. */
+    private String              value;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Dispatcher              dispatcher =
+            new Dispatcher(Calls.class, new Server());
+        MethodTable             table = MethodTable.of(Calls.class);
+
+        if(dispatcher.fingerprint() != table.fingerprint())
+            throw new TestFailed("fingerprint differs from method table");
+
+        try
+        {
+            for(Method method : Calls.class.getMethods())
+            {
+                Dispatcher.Entry    entry =
+                    dispatcher.entry(method.getName(),
+                                     method.getParameterTypes());
+
+                if(entry == null || entry != dispatcher.entry(table.id(method)))
+                    throw new TestFailed("no entry found for " + method);
+            }
+
+            if(dispatcher.entry("add", new Class[] {String.class}) != null)
+                throw new TestFailed("entry found for unknown method");
+
+            Dispatcher.Entry    add =
+                dispatcher.entry("add", new Class[] {int.class, int.class});
+            Object[]            arguments = new Object[] {2, 3};
+
+            add.check(arguments);
+            if(!Integer.valueOf(5).equals(add.invoke(arguments)))
+                throw new TestFailed("primitive call returned wrong result");
+
+            Dispatcher.Entry    set =
+                dispatcher.entry("set", new Class[] {String.class});
+
+            if(set.invoke(new Object[] {"set"}) != null || !"set".equals(value))
+                throw new TestFailed("void call not carried out");
+
+            if(!add.isPrimitive() || set.isPrimitive())
+                throw new TestFailed("primitive methods not told apart");
+
+            long[]              bits = new long[] {2, -3};
+
+            add.check(bits);
+            if(add.invokePrimitive(bits) != -1)
+                throw new TestFailed("raw call returned wrong result");
+
+            Dispatcher.Entry    scale =
+                dispatcher.entry("scale",
+                                 new Class[] {float.class, boolean.class});
+
+            bits = new long[] {Float.floatToRawIntBits(1.5f), 1};
+            if(Double.longBitsToDouble(scale.invokePrimitive(bits)) != -1.5)
+                throw new TestFailed("raw call altered floating point values");
+
+            expectRejected(set, new Object[] {1});
+            expectRejected(add, new Object[] {2, null});
+            expectRejected(add, new Object[] {2});
+
+            Dispatcher.Entry    fail =
+                dispatcher.entry("fail", new Class[0]);
+
+            try
+            {
+                fail.invoke(new Object[0]);
+                throw new TestFailed("exception of the server not thrown");
+            }
+            catch(FileNotFoundException e) { }
+
+            try
+            {
+                fail.invokePrimitive(new long[0]);
+                throw new TestFailed("exception of the server not thrown");
+            }
+            catch(FileNotFoundException e) { }
+
+            if(set.isStreamed() || set.isRemote() ||
+               set.uploadParameter() != -1)
+            {
+                throw new TestFailed("void method has metadata");
+            }
+
+            if(!dispatcher.entry("range", new Class[0]).isStreamed())
+                throw new TestFailed("iterator result not streamed");
+
+            if(!dispatcher.entry("self", new Class[0]).isRemote())
+                throw new TestFailed("remote interface result not remote");
+
+            if(dispatcher.entry("upload",
+                    new Class[] {String.class, InputStream.class})
+                        .uploadParameter() != 1)
+            {
+                throw new TestFailed("stream parameter not found");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when dispatching", t);
+        }
+    }
+
+    /** Checks that arguments are rejected by an entry.
+
+        @throws TestFailed If the arguments are accepted.
+     */
+    private void expectRejected(Dispatcher.Entry entry, Object[] arguments)
+        throws TestFailed
+    {
+        try
+        {
+            entry.check(arguments);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return;
+        }
+        catch(IllegalAccessException e)
+        {
+            throw new TestFailed("method not accessible", e);
+        }
+
+        throw new TestFailed("arguments of the wrong type accepted");
+    }
+
+    /** Interface whose calls are dispatched. */
+    private interface Calls
+    {
+        int add(int first, int second) throws RMIException;
+        double scale(float value, boolean negate) throws RMIException;
+        void set(String value) throws RMIException;
+        void fail() throws RMIException, FileNotFoundException;
+        Iterator<String> range() throws RMIException;
+        Calls self() throws RMIException;
+        void upload(String name, InputStream stream) throws RMIException;
+    }
+
+    /** Server object. */
+    private class Server implements Calls
+    {
+        @Override
+        public int add(int first, int second)
+        {
+            return first + second;
+        }
+
+        @Override
+        public double scale(float value, boolean negate)
+        {
+            return negate ? -value : value;
+        }
+
+        @Override
+        public void set(String value)
+        {
+            DispatcherTest.this.value = value;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("failing as requested");
+        }
+
+        @Override
+        public Iterator<String> range()
+        {
+            return null;
+        }
+
+        @Override
+        public Calls self()
+        {
+            return this;
+        }
+
+        @Override
+        public void upload(String name, InputStream stream)
+        {
+        }
+    }
+}
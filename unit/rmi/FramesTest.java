@@ -0,0 +1,302 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.util.Arrays;
+
+/** Unit tests for the message framing in <code>Frames</code>.
+
+    <p>
+    The test writes several frames back to back into a buffer and checks that
+    they are read back intact and in order, byte for byte, with their call
+    identifiers, flags and object identifiers, that a stream ending between
+    frames or inside a frame is reported, and that a frame whose length prefix
+    is out of range is rejected before its payload is allocated. It then
+    checks that large messages are compressed, with and without a class cache,
+    that small ones are left as they are, that the length of the objects of
+    a message is reported as it will be decoded, and that a compressed
+    message whose length does not match its contents is rejected, including
+    one that announces far more than it inflates to. It also checks
+    that a response stream which ends before the first byte of a frame is
+    reported as a stale connection, and one which ends inside the frame is
+    not.
+ */
+public class FramesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking message framing";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        byte[]                  written;
+
+        try
+        {
+            written = Frames.encode(7, 0, Codecs.JAVA, "first", 1);
+            Frames.write(bytes, written);
+            byte[]              second =
+                Frames.encode(0, Frames.MULTIPLEXED, Codecs.JAVA,
+                              new int[] {2, 3});
+            Frames.setCallId(second, -2);
+            Frames.setObjectId(second, 5);
+            Frames.write(bytes, second);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write frames", e);
+        }
+
+        DataInputStream         in = new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+
+        try
+        {
+            byte[]              payload = Frames.read(in);
+
+            if(!Arrays.equals(payload, written))
+                throw new TestFailed("frame read differs from frame written");
+
+            if(Frames.callId(payload) != 7 || Frames.flags(payload) != 0 ||
+               Frames.objectId(payload) != 0)
+            {
+                throw new TestFailed("first message header decoded " +
+                                     "incorrectly");
+            }
+
+            ObjectInput         first = Frames.decode(payload);
+
+            if(!"first".equals(first.readObject()) ||
+               !Integer.valueOf(1).equals(first.readObject()))
+            {
+                throw new TestFailed("first frame decoded incorrectly");
+            }
+
+            payload = Frames.read(in);
+
+            if(Frames.callId(payload) != -2 ||
+               Frames.flags(payload) != Frames.MULTIPLEXED ||
+               Frames.objectId(payload) != 5)
+            {
+                throw new TestFailed("second message header decoded " +
+                                     "incorrectly");
+            }
+
+            int[]               second =
+                (int[])Frames.decode(payload).readObject();
+
+            if(second.length != 2 || second[0] != 2 || second[1] != 3)
+                throw new TestFailed("second frame decoded incorrectly");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to read frames", e);
+        }
+
+        expectFailure(new byte[0], EOFException.class,
+                      "end of stream between frames");
+        expectFailure(new byte[] {0, 0, 0, 12, 1, 2}, EOFException.class,
+                      "end of stream inside a frame");
+        expectFailure(new byte[] {-1, -1, -1, -1},
+                      StreamCorruptedException.class, "negative length");
+        expectFailure(new byte[] {127, -1, -1, -1},
+                      StreamCorruptedException.class, "excessive length");
+        expectFailure(new byte[] {0, 0, 0, 2, 1, 2},
+                      StreamCorruptedException.class,
+                      "length shorter than a message header");
+
+        checkResponses(written);
+        checkCompression();
+    }
+
+    /** Checks that the end of a stream before the first byte of a response
+        is told apart from its end inside the response.
+
+        @param frame A complete frame.
+        @throws TestFailed If the test fails.
+     */
+    private void checkResponses(byte[] frame) throws TestFailed
+    {
+        try
+        {
+            if(!Arrays.equals(Frames.readResponse(stream(frame, 0)), frame))
+                throw new TestFailed("response read differs from frame");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read response", e);
+        }
+
+        for(int length = 0; length < frame.length; ++length)
+        {
+            try
+            {
+                Frames.readResponse(stream(frame, frame.length - length));
+                throw new TestFailed("truncated response read");
+            }
+            catch(StaleConnectionException e)
+            {
+                if(length != 0)
+                {
+                    throw new TestFailed("response cut short reported as " +
+                                         "never started", e);
+                }
+            }
+            catch(EOFException e)
+            {
+                if(length == 0)
+                {
+                    throw new TestFailed("missing response reported as cut " +
+                                         "short", e);
+                }
+            }
+            catch(IOException e)
+            {
+                throw new TestFailed("unexpected exception for truncated " +
+                                     "response", e);
+            }
+        }
+    }
+
+    /** Returns a stream over the first bytes of a frame, leaving out the
+        given number of bytes at its end. */
+    private static DataInputStream stream(byte[] frame, int missing)
+    {
+        return new DataInputStream(new ByteArrayInputStream(
+            frame, 0, frame.length - missing));
+    }
+
+    /** Checks the compression of large messages.
+
+        @throws TestFailed If the test fails.
+     */
+    private void checkCompression() throws TestFailed
+    {
+        char[]                  filler = new char[10000];
+        Arrays.fill(filler, 'x');
+        final String            large = new String(filler);
+
+        Frames.Body             body = new Frames.Body()
+        {
+            @Override
+            public void write(ObjectOutput out) throws IOException
+            {
+                out.writeObject(large);
+            }
+        };
+
+        try
+        {
+            byte[]              small =
+                Frames.encode(1, 0, Codecs.JAVA, body, null, 20000);
+
+            if((Frames.flags(small) & Frames.COMPRESSED) != 0)
+                throw new TestFailed("message below threshold compressed");
+
+            byte[]              compressed =
+                Frames.encode(1, 0, Codecs.JAVA, body, null, 100);
+
+            if((Frames.flags(compressed) & Frames.COMPRESSED) == 0 ||
+               compressed.length >= small.length / 10)
+            {
+                throw new TestFailed("large message not compressed");
+            }
+
+            if(!large.equals(Frames.decode(compressed).readObject()))
+                throw new TestFailed("compressed message decoded incorrectly");
+
+            if(Frames.objectsLength(small) !=
+                   small.length - Frames.BODY_OFFSET ||
+               Frames.objectsLength(compressed) <= large.length())
+            {
+                throw new TestFailed("length of message objects reported " +
+                                     "incorrectly");
+            }
+
+            ClassCache          sender = new ClassCache();
+            ClassCache          receiver = new ClassCache();
+            byte[]              cached =
+                Frames.encode(1, 0, Codecs.JAVA, body, sender, 100);
+
+            if((Frames.flags(cached) & Frames.CLASS_CACHE) == 0 ||
+               (Frames.flags(cached) & Frames.COMPRESSED) == 0)
+            {
+                throw new TestFailed("message with class cache not " +
+                                     "compressed");
+            }
+
+            receiver.received(cached);
+
+            if(!large.equals(Frames.decode(cached, receiver).readObject()))
+            {
+                throw new TestFailed("compressed message with class cache " +
+                                     "decoded incorrectly");
+            }
+
+            // Announce one byte more than the message inflates to.
+            compressed[Frames.BODY_OFFSET + 3]++;
+
+            try
+            {
+                Frames.decode(compressed).readObject();
+                throw new TestFailed("compressed message with incorrect " +
+                                     "length decoded");
+            }
+            catch(StreamCorruptedException e) { }
+
+            // Announce far more than the message inflates to. The message
+            // must be rejected without allocating the announced length.
+            int                 announced = Frames.MAX_FRAME_SIZE - 1;
+
+            for(int index = 0; index < 4; ++index)
+            {
+                compressed[Frames.BODY_OFFSET + index] =
+                    (byte)(announced >>> (24 - 8 * index));
+            }
+
+            try
+            {
+                Frames.decode(compressed).readObject();
+                throw new TestFailed("compressed message with inflated " +
+                                     "length decoded");
+            }
+            catch(StreamCorruptedException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to compress messages", e);
+        }
+    }
+
+    /** Checks that reading a frame from the given bytes fails.
+
+        @throws TestFailed If the read succeeds or fails differently.
+     */
+    private void expectFailure(byte[] data, Class<?> expected, String description)
+        throws TestFailed
+    {
+        try
+        {
+            Frames.read(new DataInputStream(new ByteArrayInputStream(data)));
+        }
+        catch(IOException e)
+        {
+            if(!expected.isInstance(e))
+            {
+                throw new TestFailed("unexpected exception for " + description,
+                                     e);
+            }
+
+            return;
+        }
+
+        throw new TestFailed("frame read despite " + description);
+    }
+}
@@ -0,0 +1,159 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/** Unit tests for the method tables in <code>MethodTable</code>.
+
+    <p>
+    The test checks that every method of an interface, including overloaded
+    and inherited methods, is given a distinct identifier which maps back to
+    it, that a method inherited from two interfaces has a single identifier,
+    that identifiers out of range are rejected, and that the fingerprint of a
+    table depends on the methods of the interface but not on the order of
+    their declaration. Finally, it checks the set of tables agreed over a
+    connection, which holds the tables of several interfaces.
+ */
+public class MethodTableTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking method tables";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        MethodTable             table = MethodTable.of(Derived.class);
+
+        if(MethodTable.of(Derived.class) != table)
+            throw new TestFailed("method table not cached");
+
+        Method[]                methods = Derived.class.getMethods();
+
+        try
+        {
+            for(Method method : methods)
+            {
+                Method          resolved = table.method(table.id(method));
+
+                if(!resolved.getName().equals(method.getName()) ||
+                   !Arrays.equals(resolved.getParameterTypes(),
+                                 method.getParameterTypes()))
+                {
+                    throw new TestFailed("identifier of " + method +
+                                         " maps to " + resolved);
+                }
+            }
+
+            // add(int), add(int, int), add(String) and remove(int), with
+            // remove declared by both parent interfaces.
+            table.method(3);
+        }
+        catch(StreamCorruptedException e)
+        {
+            throw new TestFailed("method identifier not found", e);
+        }
+
+        expectUnknown(table, 4);
+        expectUnknown(table, -1);
+
+        if(table.fingerprint() == MethodTable.of(First.class).fingerprint())
+            throw new TestFailed("different interfaces have the same " +
+                                 "fingerprint");
+
+        if(table.fingerprint() != MethodTable.of(Reordered.class).fingerprint())
+        {
+            throw new TestFailed("interfaces with the same methods have " +
+                                 "different fingerprints");
+        }
+
+        checkAgreed(table.fingerprint(),
+                    MethodTable.of(First.class).fingerprint());
+    }
+
+    /** Checks that a set of agreed tables holds the tables of several
+        interfaces at once, and replaces the oldest once it is full.
+
+        @throws TestFailed If the test fails.
+     */
+    private void checkAgreed(long first, long second) throws TestFailed
+    {
+        MethodTable.Agreed      agreed = new MethodTable.Agreed();
+
+        if(agreed.contains(first))
+            throw new TestFailed("empty set of tables holds a table");
+
+        agreed.add(first);
+        agreed.add(second);
+
+        if(!agreed.contains(first) || !agreed.contains(second))
+            throw new TestFailed("agreed table of one interface forgotten " +
+                                 "for another");
+
+        // Fill the set with other tables, adding the second one again.
+        for(int other = 1; other < MethodTable.Agreed.CAPACITY - 1; ++other)
+            agreed.add(other);
+
+        agreed.add(second);
+
+        if(!agreed.contains(first) || !agreed.contains(second))
+            throw new TestFailed("full set of tables lost a table");
+
+        agreed.add(-1);
+
+        if(agreed.contains(first) || !agreed.contains(second))
+            throw new TestFailed("oldest table not replaced");
+    }
+
+    /** Checks that a method identifier is rejected.
+
+        @throws TestFailed If the identifier is accepted.
+     */
+    private void expectUnknown(MethodTable table, int id) throws TestFailed
+    {
+        try
+        {
+            table.method(id);
+        }
+        catch(StreamCorruptedException e)
+        {
+            return;
+        }
+
+        throw new TestFailed("unknown method identifier " + id + " accepted");
+    }
+
+    /** First parent interface. */
+    private interface First
+    {
+        void add(int value) throws RMIException;
+        void remove(int value) throws RMIException;
+    }
+
+    /** Second parent interface. */
+    private interface Second
+    {
+        void remove(int value) throws RMIException;
+    }
+
+    /** Interface with overloaded and inherited methods. */
+    private interface Derived extends First, Second
+    {
+        void add(int first, int second) throws RMIException;
+        void add(String value) throws RMIException;
+    }
+
+    /** Interface with the methods of <code>Derived</code> in another order. */
+    private interface Reordered
+    {
+        void remove(int value) throws RMIException;
+        void add(String value) throws RMIException;
+        void add(int first, int second) throws RMIException;
+        void add(int value) throws RMIException;
+    }
+}
@@ -0,0 +1,92 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+
+/** Unit tests for the encoding of call outcomes in <code>Outcome</code>.
+
+    <p>
+    The test writes the outcomes of calls to methods returning nothing, a
+    primitive value and an object, and of a failed call, into one stream, and
+    checks that they are read back with their status and value. It then
+    checks that an outcome which does not match the return type of the method
+    is rejected.
+ */
+public class OutcomeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call outcome encoding";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Method              run = Methods.class.getMethod("run");
+            Method              count = Methods.class.getMethod("count");
+            Method              name = Methods.class.getMethod("name");
+
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream  out = new ObjectOutputStream(bytes);
+
+            Outcome.returned(run, null).write(out, Void.TYPE);
+            Outcome.returned(count, 7).write(out, Integer.TYPE);
+            Outcome.returned(name, "name").write(out, String.class);
+            Outcome.failed(new IOException("failed")).write(out, null);
+            Outcome.returned(run, null).write(out, Void.TYPE);
+            out.close();
+
+            ObjectInputStream   in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+
+            Outcome             outcome = Outcome.read(in, Void.TYPE);
+
+            if(outcome.isFailed() || outcome.getValue() != null)
+                throw new TestFailed("void outcome decoded incorrectly");
+
+            outcome = Outcome.read(in, Integer.TYPE);
+
+            if(outcome.isFailed() || !outcome.getValue().equals(7))
+                throw new TestFailed("primitive result decoded incorrectly");
+
+            outcome = Outcome.read(in, String.class);
+
+            if(outcome.isFailed() || !outcome.getValue().equals("name"))
+                throw new TestFailed("object result decoded incorrectly");
+
+            outcome = Outcome.read(in, String.class);
+
+            if(!outcome.isFailed() ||
+               !(outcome.getValue() instanceof IOException))
+            {
+                throw new TestFailed("failure decoded incorrectly");
+            }
+
+            try
+            {
+                Outcome.read(in, String.class);
+                throw new TestFailed("void outcome accepted for a method " +
+                                     "returning a result");
+            }
+            catch(StreamCorruptedException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to encode outcomes", e);
+        }
+    }
+
+    /** Methods whose outcomes are encoded. */
+    public interface Methods
+    {
+        void run();
+        int count();
+        String name();
+    }
+}
@@ -0,0 +1,125 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+
+/** Unit tests for the registry of remote interfaces in
+    <code>RemoteInterface</code>.
+
+    <p>
+    The test checks that the registry gives the same object for a class each
+    time it is asked, that interfaces are remote only if all their methods,
+    including inherited methods, are marked as throwing
+    <code>RMIException</code> and take at most one <code>InputStream</code>
+    parameter, and that classes are never remote. It checks the metadata kept
+    for the methods of a remote interface: the exceptions declared, whether
+    results are remote references, and the index of the stream parameter.
+ */
+public class RemoteInterfaceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the remote interface registry";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        RemoteInterface         remote = RemoteInterface.of(Calls.class);
+
+        if(RemoteInterface.of(Calls.class) != remote)
+            throw new TestFailed("remote interface not registered once");
+
+        if(!remote.isRemote())
+            throw new TestFailed("remote interface rejected");
+
+        if(RemoteInterface.isRemote(Local.class))
+            throw new TestFailed("interface without RMIException accepted");
+
+        if(RemoteInterface.isRemote(Derived.class))
+        {
+            throw new TestFailed("interface inheriting a method without " +
+                                 "RMIException accepted");
+        }
+
+        if(RemoteInterface.isRemote(TwoStreams.class))
+        {
+            throw new TestFailed("interface with two stream parameters " +
+                                 "accepted");
+        }
+
+        if(RemoteInterface.isRemote(Object.class))
+            throw new TestFailed("class accepted as remote interface");
+
+        try
+        {
+            RemoteInterface.RemoteMethod    fail =
+                remote.method(Calls.class.getMethod("fail"));
+            RemoteInterface.RemoteMethod    self =
+                remote.method(Calls.class.getMethod("self"));
+            RemoteInterface.RemoteMethod    local =
+                remote.method(Calls.class.getMethod("local"));
+
+            if(fail == null || self == null || local == null)
+                throw new TestFailed("method metadata not registered");
+
+            if(!fail.declares(FileNotFoundException.class) ||
+               fail.declares(IOException.class))
+            {
+                throw new TestFailed("declared exceptions not recorded");
+            }
+
+            if(!self.returnsRemote() || local.returnsRemote())
+                throw new TestFailed("remote results not recognized");
+
+            RemoteInterface.RemoteMethod    upload =
+                remote.method(Calls.class.getMethod("upload", String.class,
+                                                    InputStream.class));
+
+            if(upload.uploadParameter() != 1 || self.uploadParameter() != -1)
+                throw new TestFailed("stream parameter not recorded");
+
+            Method              toString = Object.class.getMethod("toString");
+
+            if(remote.method(toString) != null)
+                throw new TestFailed("metadata found for unknown method");
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new TestFailed("method of test interface not found", e);
+        }
+    }
+
+    /** Remote interface, returning itself and a non-remote interface. */
+    private interface Calls
+    {
+        void fail() throws RMIException, FileNotFoundException;
+        Calls self() throws RMIException;
+        Local local() throws RMIException;
+        void upload(String name, InputStream stream) throws RMIException;
+    }
+
+    /** Interface with a method not marked as throwing RMIException. */
+    private interface Local
+    {
+        void call() throws RMIException;
+        void local();
+    }
+
+    /** Interface with a method taking two streams. */
+    private interface TwoStreams
+    {
+        void upload(InputStream first, InputStream second)
+            throws RMIException;
+    }
+
+    /** Interface inheriting a method not marked as throwing RMIException. */
+    private interface Derived extends Local
+    {
+        void derived() throws RMIException;
+    }
+}